@@ -0,0 +1,130 @@
+package pt.ulisboa.tecnico.sec.blockchain;
+
+import java.io.IOException;
+import java.util.List;
+
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+
+// Sizes the blocks of a server. A block is due once it has the target number of transactions or the byte
+//  limit, or once its oldest transaction waited for the latency budget. The target doubles while requests
+//  are left over after cutting a block (consensus is the bottleneck) and halves when the deadline cuts a
+//  block short, so a lone request isn't held for the whole budget.
+// The limits are settings (P block-max-transactions [n], P block-max-bytes [n], P block-latency [ms])
+//  that can also be changed at runtime; replicas reject blocks over them.
+public class BlockBuilder {
+    public static final int DEFAULT_MAX_TRANSACTIONS = 32;
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+    public static final int DEFAULT_LATENCY = 500; // ms
+    // The previous fixed block size
+    private static final int INITIAL_TARGET = 2;
+
+    private volatile int maxTransactions;
+    private volatile int maxBytes;
+    private volatile long latency;
+    // Guarded by this
+    private int target;
+
+    public BlockBuilder(int maxTransactions, int maxBytes, long latency) {
+        setMaxTransactions(maxTransactions);
+        setMaxBytes(maxBytes);
+        setLatency(latency);
+        this.target = Math.min(INITIAL_TARGET, this.maxTransactions);
+    }
+
+    public int getMaxTransactions() {
+        return maxTransactions;
+    }
+
+    public synchronized void setMaxTransactions(int maxTransactions) {
+        this.maxTransactions = Math.max(1, maxTransactions);
+        this.target = Math.min(target, this.maxTransactions);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    // Longest a transaction waits for its block to fill
+    public long getLatency() {
+        return latency;
+    }
+
+    public void setLatency(long latency) {
+        this.latency = Math.max(0, latency);
+    }
+
+    public synchronized int getTarget() {
+        return target;
+    }
+
+    // Bytes a transaction takes in a block (its rewards are rebuilt from it)
+    public static int size(Transaction transaction) throws IllegalStateException {
+        try {
+            return transaction.getDataBytes().length;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[ERROR] Encoding transaction %s", transaction));
+        }
+    }
+
+    public static int size(BlockchainNode block) throws IllegalStateException {
+        int bytes = 0;
+        for (Transaction t : block.getTransactions())
+            bytes += size(t);
+        return bytes;
+    }
+
+    // Whether the block is due without waiting for the deadline
+    public boolean isFull(BlockchainNode block) {
+        return block.getTransactions().size() >= getTarget() || size(block) >= maxBytes;
+    }
+
+    // Within the limits every replica checks
+    public boolean fits(BlockchainNode block) {
+        return block.isComplete() && block.getTransactions().size() <= maxTransactions && size(block) <= maxBytes;
+    }
+
+    // The first candidates that fit in a block of the target size. A single transaction over the byte limit
+    //  can't be proposed, it is left out.
+    public BlockchainNode build(List<Transaction> candidates, AccountId producer) {
+        int count = getTarget();
+        BlockchainNode block = new BlockchainNode();
+        int bytes = 0;
+        for (Transaction t : candidates) {
+            if (block.getTransactions().size() >= count) break;
+            int size = size(t);
+            if (bytes + size > maxBytes) continue;
+            block.addTransaction(t, producer);
+            bytes += size;
+        }
+        return block;
+    }
+
+    // Adapts the target to a block that is about to be proposed, with leftOver requests still waiting
+    public synchronized void cut(BlockchainNode block, int leftOver, boolean byDeadline) {
+        int transactions = block.getTransactions().size();
+        int bytes = size(block);
+        adapt(block, leftOver, byDeadline);
+
+        Metrics.increment(Metrics.BLOCKS_CUT);
+        if (byDeadline) Metrics.increment(Metrics.BLOCKS_CUT_BY_DEADLINE);
+        Metrics.add(Metrics.BLOCK_TRANSACTIONS, transactions);
+        Metrics.add(Metrics.BLOCK_BYTES, bytes);
+        // Of the hard limits, whichever is closer to being reached
+        Metrics.add(Metrics.BLOCK_FILL_PERCENT, Math.max(100L * transactions / maxTransactions, 100L * bytes / maxBytes));
+    }
+
+    // Adapts the target alone, for the batches of requests disseminated before ordering
+    public synchronized void adapt(BlockchainNode block, int leftOver, boolean byDeadline) {
+        int transactions = block.getTransactions().size();
+        if (leftOver >= target && transactions >= target)
+            target = Math.min(maxTransactions, target * 2);
+        else if (byDeadline && transactions < target)
+            target = Math.max(1, Math.max(transactions, target / 2));
+    }
+}
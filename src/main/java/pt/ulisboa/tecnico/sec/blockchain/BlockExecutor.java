@@ -0,0 +1,163 @@
+package pt.ulisboa.tecnico.sec.blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.TESState;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+
+// Applies the transactions of a block and then its rewards to a state, with the same result as applying them
+//  one by one in block order (P execution-threads [n]). Transactions on disjoint accounts commute, so each one
+//  goes in the wave after the last earlier transaction it shares an account with, and the transactions of a
+//  wave run concurrently on a ForkJoin pool. Transactions that may add accounts change the account map itself:
+//  they are chained with each other, so accounts are still added in block order, and run alone after the rest
+//  of their wave. The rewards all pay the producer and are applied in order at the end.
+public class BlockExecutor {
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    // Smaller blocks are applied serially, splitting them costs more than it saves
+    public static final int MIN_PARALLEL_TRANSACTIONS = 64;
+    // Transactions a task applies without splitting further
+    private static final int GRAIN = 16;
+
+    public static final class Result {
+        private final boolean[] executed;
+        private final boolean[] successful;
+        private final boolean[] rewarded;
+
+        private Result(int transactions, int rewards) {
+            this.executed = new boolean[transactions];
+            this.successful = new boolean[transactions];
+            this.rewarded = new boolean[rewards];
+        }
+
+        // False for transactions already applied before, or repeated in the block
+        public boolean isExecuted(int transaction) {
+            return executed[transaction];
+        }
+
+        public boolean isSuccessful(int transaction) {
+            return successful[transaction];
+        }
+
+        public boolean isRewarded(int reward) {
+            return rewarded[reward];
+        }
+    }
+
+    // Applies a range of the transactions of a wave, splitting it among the pool
+    private static final class Wave extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Transaction> transactions;
+        private final int[] wave;
+        private final int from;
+        private final int to;
+        private final TESState state;
+        private final Result result;
+
+        private Wave(List<Transaction> transactions, int[] wave, int from, int to, TESState state, Result result) {
+            this.transactions = transactions;
+            this.wave = wave;
+            this.from = from;
+            this.to = to;
+            this.state = state;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++)
+                    result.successful[wave[i]] = transactions.get(wave[i]).updateTESState(state);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Wave(transactions, wave, from, middle, state, result),
+                new Wave(transactions, wave, middle, to, state, result));
+        }
+    }
+
+    // Null when serial
+    private final ForkJoinPool pool;
+
+    public BlockExecutor(int threads) {
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    // executedBefore tells the transactions applied to the state before
+    public Result execute(BlockchainNode block, TESState state, Predicate<Transaction> executedBefore) {
+        List<Transaction> transactions = block.getTransactions();
+        Result result = new Result(transactions.size(), block.getRewards().size());
+        Set<Long> seen = new HashSet<>();
+        for (int j = 0; j < transactions.size(); j++) {
+            Transaction t = transactions.get(j);
+            result.executed[j] = !executedBefore.test(t) && seen.add(BlockchainNode.shortId(t));
+        }
+
+        if (pool == null || transactions.size() < MIN_PARALLEL_TRANSACTIONS) {
+            for (int j = 0; j < transactions.size(); j++)
+                result.successful[j] = result.executed[j] && transactions.get(j).updateTESState(state);
+        } else {
+            executeInWaves(transactions, state, result);
+        }
+
+        List<Transaction> rewards = block.getRewards();
+        for (int j = 0; j < rewards.size(); j++)
+            result.rewarded[j] = j < result.executed.length && result.executed[j] && rewards.get(j).updateTESState(state);
+        return result;
+    }
+
+    private void executeInWaves(List<Transaction> transactions, TESState state, Result result) {
+        // The conflict graph only matters through the longest chain before each transaction: its wave
+        Map<AccountId, Integer> lastWave = new HashMap<>();
+        int lastAlone = -1;
+        List<List<Integer>> concurrent = new ArrayList<>();
+        List<Integer> alone = new ArrayList<>();
+        for (int j = 0; j < transactions.size(); j++) {
+            if (!result.executed[j]) continue;
+            Transaction transaction = transactions.get(j);
+            Set<AccountId> accounts = transaction.getAccounts();
+
+            int wave = transaction.addsAccounts() ? lastAlone + 1 : 0;
+            for (AccountId account : accounts)
+                wave = Math.max(wave, lastWave.getOrDefault(account, -1) + 1);
+            for (AccountId account : accounts)
+                lastWave.put(account, wave);
+
+            while (concurrent.size() <= wave) {
+                concurrent.add(new ArrayList<>());
+                alone.add(-1);
+            }
+            if (transaction.addsAccounts()) {
+                lastAlone = wave;
+                alone.set(wave, j);
+            } else {
+                concurrent.get(wave).add(j);
+            }
+        }
+        Metrics.add(Metrics.EXECUTION_WAVES, concurrent.size());
+
+        for (int w = 0; w < concurrent.size(); w++) {
+            int[] wave = concurrent.get(w).stream().mapToInt(Integer::intValue).toArray();
+            Wave task = new Wave(transactions, wave, 0, wave.length, state, result);
+            if (wave.length > GRAIN) pool.invoke(task);
+            else task.compute();
+
+            int j = alone.get(w);
+            if (j >= 0) result.successful[j] = transactions.get(j).updateTESState(state);
+        }
+    }
+
+    public void stop() {
+        if (pool != null) pool.shutdownNow();
+    }
+}
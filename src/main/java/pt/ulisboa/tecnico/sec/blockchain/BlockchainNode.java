@@ -1,23 +1,35 @@
 package pt.ulisboa.tecnico.sec.blockchain;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.PublicKey;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
 import pt.ulisboa.tecnico.sec.ibft.IBFTValueIT;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
 import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public class BlockchainNode implements IBFTValueIT {
-    public static final int FILL_TIMEOUT = 2000; // ms
-    public static final int NODE_SIZE = 2;
     public static final int TRANSACTION_FEE = 1; // every transaction must pay 1 coin to the block producer
     private List<Transaction> transactions;
     private List<Transaction> rewards;
+    private AccountId producer;
+    // Short transaction ids of a node received in compact form, until it is completed
+    private long[] shortIds;
+    // Digests of the disseminated batches the transactions are made of, in order (null if not built from batches)
+    private List<byte[]> batches;
+    // A node received in batch form has no transactions until its batches are known
+    private boolean batchesPending;
+
+    // Compact forms: short transaction ids, or batch digests
+    private static final byte ID_FORM = 0;
+    private static final byte BATCH_FORM = 1;
 
     public BlockchainNode() {
         transactions = new ArrayList<>();
@@ -32,6 +44,10 @@ public class BlockchainNode implements IBFTValueIT {
     public BlockchainNode(BlockchainNode node) {
         this.transactions = new ArrayList<>(node.transactions);
         this.rewards = new ArrayList<>(node.rewards);
+        this.producer = node.producer;
+        this.shortIds = node.shortIds;
+        this.batches = node.batches;
+        this.batchesPending = node.batchesPending;
     }
 
     public static BlockchainNode copy(BlockchainNode node) {
@@ -50,18 +66,93 @@ public class BlockchainNode implements IBFTValueIT {
         return rewards;
     }
 
-    public void addTransaction(Transaction transaction, PublicKey producerKey) throws IllegalStateException {
-        if (transactions.size() >= NODE_SIZE) 
-            throw new IllegalStateException("Node is full, cannot add more transactions!");
+    // Null for empty nodes
+    public AccountId getProducer() {
+        return producer;
+    }
+
+    // The size of the node is up to the BlockBuilder
+    public void addTransaction(Transaction transaction, AccountId producer) throws IllegalStateException {
+        if (this.producer != null && !this.producer.equals(producer))
+            throw new IllegalStateException("Node already has a different producer!");
         
+        this.producer = producer;
         transactions.add(transaction);
+        rewards.add(reward(transaction, producer));
+    }
+
+    // no need to sign these transactions, get scammed lmao
+    private static Transaction reward(Transaction transaction, AccountId producer) {
+        return new TransferTransaction(transaction.getSource(), producer, TRANSACTION_FEE);
+    }
+
+    // First 8 bytes of the transaction digest
+    public static long shortId(Transaction transaction) throws IllegalStateException {
+        try {
+            return ByteBuffer.wrap(transaction.getDigest()).getLong();
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[ERROR] Computing short id of transaction %s", transaction));
+        }
+    }
+
+    public long[] getShortIds() {
+        return shortIds;
+    }
+
+    public List<byte[]> getBatches() {
+        return batches;
+    }
 
-        // no need to sign these transactions, get scammed lmao
-        rewards.add(new TransferTransaction(transaction.getSource(), producerKey, TRANSACTION_FEE));
+    // The node is sent as these batches, which must hold its transactions in order
+    public void setBatches(List<byte[]> batches) {
+        this.batches = batches;
     }
 
-    public boolean isFull() {
-        return transactions.size() == NODE_SIZE;
+    public boolean isComplete() {
+        return !batchesPending && !transactions.contains(null);
+    }
+
+    // Fills the transactions of a compact node with the known ones (replacing those already there)
+    //  and rebuilds its rewards, returns the ids that are still missing
+    public List<Long> complete(Map<Long, Transaction> known) {
+        List<Long> missing = new ArrayList<>();
+        if (shortIds == null) return missing;
+
+        for (int i = 0; i < shortIds.length; i++) {
+            Transaction t = known.get(shortIds[i]);
+            if (t != null) transactions.set(i, t);
+            else if (transactions.get(i) == null) missing.add(shortIds[i]);
+        }
+
+        if (missing.isEmpty()) {
+            rewards = new ArrayList<>();
+            for (Transaction t : transactions)
+                rewards.add(reward(t, producer));
+        }
+        return missing;
+    }
+
+    // Fills the transactions of a node received in batch form with those of the known batches (by digest)
+    //  and rebuilds its rewards, returns the digests of the batches that are still missing
+    public List<byte[]> completeBatches(Function<byte[], List<Transaction>> known) {
+        List<byte[]> missing = new ArrayList<>();
+        if (!batchesPending) return missing;
+
+        List<Transaction> all = new ArrayList<>();
+        for (byte[] digest : batches) {
+            List<Transaction> batch = known.apply(digest);
+            if (batch == null) missing.add(digest);
+            else all.addAll(batch);
+        }
+
+        if (missing.isEmpty()) {
+            transactions = all;
+            rewards = new ArrayList<>();
+            for (Transaction t : transactions)
+                rewards.add(reward(t, producer));
+            batchesPending = false;
+        }
+        return missing;
     }
 
     public boolean isEmpty() {
@@ -69,55 +160,104 @@ public class BlockchainNode implements IBFTValueIT {
     }
 
     @Override
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        byte[] transactionBytes;
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        writeTransactions(buffer, transactions);
+        writeTransactions(buffer, rewards);
+    }
 
+    // Each transaction is length prefixed and the list ends with a zero length
+    private static void writeTransactions(ByteBuffer buffer, List<Transaction> transactions) throws IOException {
         for (Transaction t : transactions) {
-            transactionBytes = t.toByteArray();
-            dos.writeInt(transactionBytes.length);
-            dos.write(transactionBytes);
+            int section = WireCodec.beginSection(buffer);
+            t.writeTo(buffer);
+            WireCodec.endSection(buffer, section);
         }
 
-        dos.writeInt(0);
+        buffer.putInt(0);
+    }
 
-        for (Transaction t : rewards) {
-            transactionBytes = t.toByteArray();
-            dos.writeInt(transactionBytes.length);
-            dos.write(transactionBytes);
-        }
+    // Every reward goes to the same producer, so the node is its transaction ids (or batch digests) and the producer
+    @Override
+    public boolean hasCompactForm() {
+        return producer != null && !transactions.isEmpty() && isComplete();
+    }
 
-        dos.writeInt(0);
+    @Override
+    public void writeCompactTo(ByteBuffer buffer) throws IOException {
+        producer.writeTo(buffer);
+        if (batches != null) {
+            buffer.put(BATCH_FORM);
+            buffer.putInt(batches.size());
+            for (byte[] digest : batches)
+                buffer.put(digest);
+            return;
+        }
 
-        return baos.toByteArray();
+        buffer.put(ID_FORM);
+        buffer.putInt(transactions.size());
+        for (Transaction t : transactions)
+            buffer.putLong(shortId(t));
     }
 
     @SuppressWarnings("unchecked")
     @Override
-    public BlockchainNode fromDataInputStream(DataInputStream dis) throws IOException {
-        this.transactions = new ArrayList<>();
+    public BlockchainNode readCompactFrom(ByteBuffer buffer) throws IOException {
+        this.producer = AccountId.fromByteBuffer(buffer);
+
+        byte form = buffer.get();
+        if (form == BATCH_FORM) {
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / AuthenticationHandler.DIGEST_LENGTH)
+                throw new IOException("[ERROR] Invalid number of batch digests " + count);
+
+            this.batches = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[AuthenticationHandler.DIGEST_LENGTH];
+                buffer.get(digest);
+                batches.add(digest);
+            }
+            this.batchesPending = true;
+            this.transactions = new ArrayList<>();
+            this.rewards = new ArrayList<>();
+            return this;
+        } else if (form != ID_FORM) {
+            throw new IOException("[ERROR] Unknown compact node form " + form);
+        }
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / Long.BYTES)
+            throw new IOException("[ERROR] Invalid number of short transaction ids " + count);
+
+        this.shortIds = new long[count];
+        for (int i = 0; i < count; i++)
+            shortIds[i] = buffer.getLong();
+
+        this.transactions = new ArrayList<>(Collections.nCopies(count, null));
         this.rewards = new ArrayList<>();
 
-        int lenght = dis.readInt();
-        byte[] bytes = null;
+        return this;
+    }
 
-        while (lenght != 0) {
-            bytes = dis.readNBytes(lenght);
-            this.transactions.add(Transaction.fromByteArray(bytes));
-            lenght = dis.readInt();
-        }
+    @SuppressWarnings("unchecked")
+    @Override
+    public BlockchainNode readFrom(ByteBuffer buffer) throws IOException {
+        this.transactions = readTransactions(buffer);
+        this.rewards = readTransactions(buffer);
 
-        lenght = dis.readInt();
+        return this;
+    }
+
+    private static List<Transaction> readTransactions(ByteBuffer buffer) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
 
-        while (lenght != 0) {
-            bytes = dis.readNBytes(lenght);
-            this.rewards.add(Transaction.fromByteArray(bytes));
-            lenght = dis.readInt();
+        int length = buffer.getInt();
+        while (length != 0) {
+            ByteBuffer transactionBytes = WireCodec.section(buffer, length);
+            transactions.add(WireCodec.read(transactionBytes, Transaction::fromByteBuffer));
+            length = buffer.getInt();
         }
 
-        return this;
+        return transactions;
     }
 
     // public static BlockchainNode fromByteArray(byte[] bytes) throws IOException {
@@ -146,7 +286,7 @@ public class BlockchainNode implements IBFTValueIT {
     @Override
     public String toString() {
         //String res = String.join(" \\ ", transactions.stream().map((t) -> t.toString()).collect(Collectors.joining()));
-        String res = String.join(" \\ ", transactions.stream().map((t) -> t.toString()).toArray(CharSequence[]::new));
+        String res = String.join(" \\ ", transactions.stream().map((t) -> String.valueOf(t)).toArray(CharSequence[]::new));
         return String.format("[Transactions:'%s']", res);
     }
 }
@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.sec.blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+// Transactions applied to the state, as a round change may order a transaction twice. The short ids of the
+//  last window instances are kept; older instances only leave the highest nonce each source executed in them.
+//  Clients send their requests in nonce order, so a signed transaction at or below that nonce is ordered again
+//  (or replayed) and isn't executed. The window is counted in instances, so every replica forgets the same ids.
+public class ExecutedTransactions {
+    private final int window;
+    // Short ids of the executed transactions of the window, with their instance
+    private final Map<Long, Integer> recent = new ConcurrentHashMap<>();
+    // Executed transactions of the window by instance, guarded by this
+    private final NavigableMap<Integer, List<Transaction>> instances = new TreeMap<>();
+    // Highest nonce each source executed before the window
+    private final Map<AccountId, Integer> highestNonces = new ConcurrentHashMap<>();
+
+    public ExecutedTransactions(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public boolean contains(Transaction transaction) {
+        if (recent.containsKey(BlockchainNode.shortId(transaction))) return true;
+
+        Integer nonce = transaction.getNonce();
+        Integer highest = highestNonces.get(transaction.getSource());
+        return highest != null && !AuthenticationHandler.UNDEFINED.equals(nonce) && nonce <= highest;
+    }
+
+    // Called in instance order, for each transaction the instance executed
+    public synchronized void add(int instance, Transaction transaction) {
+        recent.put(BlockchainNode.shortId(transaction), instance);
+        instances.computeIfAbsent(instance, i -> new ArrayList<>()).add(transaction);
+    }
+
+    // The instance was applied: the ones that left the window only keep the highest nonces
+    public synchronized void applied(int instance) {
+        NavigableMap<Integer, List<Transaction>> old = instances.headMap(instance - window, true);
+        for (List<Transaction> transactions : old.values()) {
+            for (Transaction t : transactions) {
+                // Raised before the id goes, so the transaction is never missing from both
+                if (!AuthenticationHandler.UNDEFINED.equals(t.getNonce()))
+                    highestNonces.merge(t.getSource(), t.getNonce(), Math::max);
+                recent.remove(BlockchainNode.shortId(t));
+            }
+        }
+        old.clear();
+    }
+
+    // Transactions kept by short id
+    public int size() {
+        return recent.size();
+    }
+}
@@ -0,0 +1,227 @@
+package pt.ulisboa.tecnico.sec.blockchain;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+
+// Client transactions waiting to be decided, with the client to answer. Indexed by short id (digest) and by
+//  (source, nonce), so a transaction is only pending once, and kept in buckets by fee, each in arrival order:
+//  blocks are built from the highest fee, oldest first, and a decided transaction is removed in O(1).
+// The pool is bounded (P mempool-capacity [n]); when full, a transaction paying more evicts the newest of the
+//  lowest fee that isn't pinned (already proposed), otherwise it is turned away. Pools of different servers
+//  may differ, and a transaction no leader has may never be proposed, so transactions that aren't pinned are
+//  also evicted after waiting for too long (P mempool-max-age [ms]).
+public class Mempool {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_AGE = 30000; // ms
+
+    public enum Admission {
+        ADDED,
+        DUPLICATE,
+        FULL
+    }
+
+    public static final class Entry {
+        private final Transaction transaction;
+        private final HDLProcess client;
+        private final long id;
+        private final int fee;
+        private final long arrival; // ns
+
+        private Entry(Transaction transaction, HDLProcess client) {
+            this.transaction = transaction;
+            this.client = client;
+            this.id = BlockchainNode.shortId(transaction);
+            this.fee = fee(transaction);
+            this.arrival = System.nanoTime();
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        public HDLProcess getClient() {
+            return client;
+        }
+
+        public long getAge() {
+            return System.nanoTime() - arrival;
+        }
+    }
+
+    private final int capacity;
+    private final long maxAge; // ns
+    // Transactions that can't be evicted
+    private final Predicate<Transaction> pinned;
+    // Told about evicted transactions, whose clients are still waiting
+    private final Consumer<Entry> evicted;
+
+    // Guarded by this
+    private final Map<Long, Entry> byId = new HashMap<>();
+    private final Map<SimpleImmutableEntry<AccountId, Integer>, Entry> bySource = new HashMap<>();
+    private final NavigableMap<Integer, LinkedHashMap<Long, Entry>> byFee = new TreeMap<>(Collections.reverseOrder());
+
+    public Mempool(int capacity, long maxAge, Predicate<Transaction> pinned, Consumer<Entry> evicted) {
+        this.capacity = Math.max(1, capacity);
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAge));
+        this.pinned = pinned;
+        this.evicted = evicted;
+    }
+
+    // Every transaction pays the same fee to the block producer for now
+    public static int fee(Transaction transaction) {
+        return BlockchainNode.TRANSACTION_FEE;
+    }
+
+    private static SimpleImmutableEntry<AccountId, Integer> sourceKey(Transaction transaction) {
+        return new SimpleImmutableEntry<>(transaction.getSource(), transaction.getNonce());
+    }
+
+    public Admission add(Transaction transaction, HDLProcess client) {
+        Entry entry = new Entry(transaction, client);
+        Admission admission = Admission.ADDED;
+        List<Entry> victims;
+        synchronized (this) {
+            if (byId.containsKey(entry.id) || bySource.containsKey(sourceKey(transaction))) {
+                Metrics.increment(Metrics.MEMPOOL_DUPLICATES);
+                return Admission.DUPLICATE;
+            }
+            victims = expired();
+            if (byId.size() >= capacity) {
+                Entry victim = victim(entry.fee);
+                if (victim == null) {
+                    admission = Admission.FULL;
+                } else {
+                    unlink(victim);
+                    victims.add(victim);
+                }
+            }
+
+            if (admission == Admission.ADDED) {
+                byId.put(entry.id, entry);
+                bySource.put(sourceKey(transaction), entry);
+                byFee.computeIfAbsent(entry.fee, f -> new LinkedHashMap<>()).put(entry.id, entry);
+                Metrics.max(Metrics.MEMPOOL_MAX_SIZE, byId.size());
+            }
+        }
+
+        Metrics.increment(admission == Admission.ADDED ? Metrics.MEMPOOL_ADDED : Metrics.MEMPOOL_FULL);
+        evict(victims);
+        return admission;
+    }
+
+    // Outside the lock, the listener answers the clients
+    private void evict(List<Entry> victims) {
+        for (Entry victim : victims) {
+            Metrics.increment(Metrics.MEMPOOL_EVICTED);
+            evicted.accept(victim);
+        }
+    }
+
+    // Unlinks the transactions that aren't pinned and waited for longer than the max age. Buckets are in
+    //  arrival order, so only the expired ones and the first one that isn't are looked at (besides pinned).
+    private List<Entry> expired() {
+        List<Entry> expired = new ArrayList<>();
+        for (LinkedHashMap<Long, Entry> bucket : byFee.values()) {
+            for (Entry e : bucket.values()) {
+                if (e.getAge() <= maxAge) break;
+                if (!pinned.test(e.transaction)) expired.add(e);
+            }
+        }
+        for (Entry e : expired)
+            unlink(e);
+        return expired;
+    }
+
+    // The newest unpinned transaction paying less than fee
+    private Entry victim(int fee) {
+        for (Map.Entry<Integer, LinkedHashMap<Long, Entry>> bucket : byFee.descendingMap().entrySet()) {
+            if (bucket.getKey() >= fee) return null;
+            Entry victim = null;
+            for (Entry e : bucket.getValue().values())
+                if (!pinned.test(e.transaction)) victim = e;
+            if (victim != null) return victim;
+        }
+        return null;
+    }
+
+    private void unlink(Entry entry) {
+        byId.remove(entry.id);
+        bySource.remove(sourceKey(entry.transaction));
+        LinkedHashMap<Long, Entry> bucket = byFee.get(entry.fee);
+        bucket.remove(entry.id);
+        if (bucket.isEmpty()) byFee.remove(entry.fee);
+    }
+
+    // Removes a decided transaction, returns its entry (null if it wasn't pending here)
+    public Entry remove(Transaction transaction) {
+        Entry entry;
+        synchronized (this) {
+            entry = byId.get(BlockchainNode.shortId(transaction));
+            if (entry == null) return null;
+            unlink(entry);
+        }
+
+        long age = entry.getAge();
+        Metrics.increment(Metrics.MEMPOOL_REMOVED);
+        Metrics.add(Metrics.MEMPOOL_WAIT_NANOS, age);
+        Metrics.max(Metrics.MEMPOOL_MAX_WAIT_NANOS, age);
+        return entry;
+    }
+
+    // The pending transactions that pass the filter, highest fee first and then in arrival order
+    public List<Transaction> candidates(Predicate<Transaction> filter) {
+        List<Transaction> candidates = new ArrayList<>();
+        List<Entry> victims;
+        synchronized (this) {
+            victims = expired();
+            for (LinkedHashMap<Long, Entry> bucket : byFee.values())
+                for (Entry e : bucket.values())
+                    if (filter.test(e.transaction)) candidates.add(e.transaction);
+        }
+        evict(victims);
+        return candidates;
+    }
+
+    // Entry of a pending transaction, left in the pool (null if it isn't pending here)
+    public synchronized Entry get(Transaction transaction) {
+        return byId.get(BlockchainNode.shortId(transaction));
+    }
+
+    public synchronized boolean contains(Transaction transaction) {
+        return byId.containsKey(BlockchainNode.shortId(transaction));
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return byId.isEmpty();
+    }
+
+    // How long the oldest pending transaction has waited (ns), 0 if none
+    public synchronized long getOldestAge() {
+        long oldest = 0;
+        for (LinkedHashMap<Long, Entry> bucket : byFee.values()) {
+            Iterator<Entry> first = bucket.values().iterator();
+            if (first.hasNext()) oldest = Math.max(oldest, first.next().getAge());
+        }
+        return oldest;
+    }
+}
@@ -1,6 +1,8 @@
 package pt.ulisboa.tecnico.sec.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -18,11 +20,18 @@ public class AuthenticationHandler {
     public static final Integer UNDEFINED = -2;
     public static final String UNDEFINED_HASH = "\0";
 
+    public static final String DIGEST_ALGO = "SHA-256";
+    public static final int DIGEST_LENGTH = 32;
+
     private AuthenticationHandler() throws IllegalStateException {
         throw new IllegalStateException("Utility class");
     }
 
     public static String getMessageMAC(SecretKey key, byte[] dataBytes) throws IllegalStateException {
+        return getMessageMAC(key, ByteBuffer.wrap(dataBytes));
+    }
+
+    public static String getMessageMAC(SecretKey key, ByteBuffer dataBytes) throws IllegalStateException {
         byte[] macBytes; // new MAC according to the given secret
         try {
             Mac mac = Mac.getInstance("HmacSHA512"); // HMAC
@@ -36,6 +45,10 @@ public class AuthenticationHandler {
     }
 
     public static boolean checkMAC(SecretKey key, String mac, byte[] dataBytes) throws IllegalStateException {
+        return checkMAC(key, mac, ByteBuffer.wrap(dataBytes));
+    }
+
+    public static boolean checkMAC(SecretKey key, String mac, ByteBuffer dataBytes) throws IllegalStateException {
         boolean valid = false;
         byte[] dataMACBytes;
         try {
@@ -50,7 +63,12 @@ public class AuthenticationHandler {
         }
         return valid;
     }
+
     public static String signBytes(PrivateKey key, byte[] dataBytes) throws IllegalStateException {
+        return signBytes(key, ByteBuffer.wrap(dataBytes));
+    }
+
+    public static String signBytes(PrivateKey key, ByteBuffer dataBytes) throws IllegalStateException {
         byte[] signatureBytes;
         try {
             Signature signature = Signature.getInstance("SHA256withRSA");
@@ -64,6 +82,10 @@ public class AuthenticationHandler {
     }
 
     public static boolean checkSignature(PublicKey key, String signature, byte[] dataBytes) throws IllegalStateException {
+        return checkSignature(key, signature, ByteBuffer.wrap(dataBytes));
+    }
+
+    public static boolean checkSignature(PublicKey key, String signature, ByteBuffer dataBytes) throws IllegalStateException {
         byte[] signatureBytes = Base64.getDecoder().decode(signature);
         boolean valid = false;
         try {
@@ -76,4 +98,12 @@ public class AuthenticationHandler {
         }
         return valid;
     }
-}
\ No newline at end of file
+
+    public static byte[] digest(byte[] dataBytes) throws IllegalStateException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGO).digest(dataBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException();
+        }
+    }
+}
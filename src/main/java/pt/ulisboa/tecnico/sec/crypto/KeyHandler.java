@@ -1,9 +1,15 @@
 package pt.ulisboa.tecnico.sec.crypto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
@@ -11,9 +17,13 @@ import java.security.*;
 import java.security.spec.*;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -23,10 +33,29 @@ public class KeyHandler {
     static final String PRIVATE_SUFFIX = ".prv.key";
     static final String PUBLIC_SUFFIX = ".pub.key";
     static final String SECRET_SUFFIX = ".key";
+    static final String KEYSTORE_FILE = "keystore.bin";
 
     static final String ASSYM_ALGO = "RSA";
     static final String SYM_ALGO = "AES";
     static final String RANDOM_ALGO = "SHA1PRNG";
+    static final String KDF_ALGO = "HmacSHA256";
+    static final String FINGERPRINT_ALGO = "SHA-256";
+
+    // Upper bound of distinct public keys kept by the interning caches (byzantine senders can make up keys),
+    //  once full a new key takes the place of an arbitrary one
+    static final int MAX_INTERNED_KEYS = 1 << 16;
+
+    // Keystore layout and pairwise key derivation (HKDF over the master secret)
+    static final int KEYSTORE_VERSION = 1;
+    static final int MASTER_SECRET_LENGTH = 32;
+    static final int SECRET_KEY_LENGTH = 16;
+    static final byte[] KDF_SALT = "HDSLedger-keystore".getBytes(StandardCharsets.UTF_8);
+
+    // How keys are provisioned for the system processes
+    public enum ProvisioningMode {
+        FILES,      // one file per key pair and per pair of processes
+        KEYSTORE    // single keystore file, pairwise secrets derived on demand
+    }
 
     // Used for printing key in a readable way
     static final int KEY_B64_BEGIN_INDEX = 46;
@@ -35,6 +64,15 @@ public class KeyHandler {
 
     static final List<File> keysFiles = new ArrayList<File>();
 
+    private static ProvisioningMode provisioningMode = ProvisioningMode.FILES;
+    private static volatile byte[] masterSecret = null;
+    private static final Map<Integer, KeyPair> keystore = new ConcurrentHashMap<>();
+    private static final Map<Long, SecretKey> derivedSecrets = new ConcurrentHashMap<>();
+
+    // Canonical public key instances by their X.509 encoding, and their SHA-256 fingerprints
+    private static final BoundedCache<ByteBuffer, PublicKey> internedKeys = new BoundedCache<>(MAX_INTERNED_KEYS);
+    private static final BoundedCache<PublicKey, byte[]> fingerprints = new BoundedCache<>(MAX_INTERNED_KEYS);
+
     private KeyHandler() throws IllegalStateException {
         throw new IllegalStateException("Utility class");
     }
@@ -67,6 +105,18 @@ public class KeyHandler {
         return getSecretPrefix(id1, id2) + SECRET_SUFFIX;
     }
 
+    private static String getKeystoreFile() {
+        return String.format("%s/%s", KEYS_FOLDER, KEYSTORE_FILE);
+    }
+
+    public static ProvisioningMode getProvisioningMode() {
+        return provisioningMode;
+    }
+
+    public static void setProvisioningMode(ProvisioningMode mode) {
+        provisioningMode = mode;
+    }
+
     public static void generateKeyPair(int id) {
         generateKeyPair(getPrivateKeyFile(id), getPublicKeyFile(id));
     }
@@ -140,7 +190,120 @@ public class KeyHandler {
         }
     }
 
+    // Generates every key pair in parallel and stores them, together with a fresh master secret,
+    //  in a single keystore file. Pairwise secrets are never stored, they are derived when needed.
+    public static void generateKeystore(List<Integer> ids) throws IllegalStateException {
+        if (!Files.isDirectory(Path.of(".", KEYS_FOLDER), LinkOption.NOFOLLOW_LINKS)) {
+            throw new IllegalStateException("Directory '" + KEYS_FOLDER + "' does not exist!");
+        }
+
+        Map<Integer, KeyPair> pairs = new ConcurrentHashMap<>();
+        ids.parallelStream().distinct().forEach(id -> {
+            KeyPair pair = generateAccountKeyPair();
+            if (pair == null)
+                throw new IllegalStateException(String.format("[ERROR] Generating key pair for process %d", id));
+            pairs.put(id, pair);
+        });
+
+        byte[] secret = new byte[MASTER_SECRET_LENGTH];
+        new SecureRandom().nextBytes(secret);
+
+        String keystorePathName = getKeystoreFile();
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(keystorePathName)))) {
+            dos.writeInt(KEYSTORE_VERSION);
+            dos.writeInt(secret.length);
+            dos.write(secret);
+
+            dos.writeInt(pairs.size());
+            for (Map.Entry<Integer, KeyPair> entry : pairs.entrySet()) {
+                byte[] publicBytes = entry.getValue().getPublic().getEncoded();
+                byte[] privateBytes = entry.getValue().getPrivate().getEncoded();
+
+                dos.writeInt(entry.getKey());
+                dos.writeInt(publicBytes.length);
+                dos.write(publicBytes);
+                dos.writeInt(privateBytes.length);
+                dos.write(privateBytes);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("[ERROR] Writing keystore");
+        }
+
+        keysFiles.add(new File(keystorePathName));
+        loadKeystore();
+    }
+
+    private static synchronized void loadKeystore() throws IllegalStateException {
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(getKeystoreFile())))) {
+            if (dis.readInt() != KEYSTORE_VERSION)
+                throw new IllegalStateException("[ERROR] Unknown keystore version");
+
+            byte[] secret = dis.readNBytes(dis.readInt());
+
+            KeyFactory factory = KeyFactory.getInstance(ASSYM_ALGO);
+            Map<Integer, KeyPair> pairs = new ConcurrentHashMap<>();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = dis.readInt();
+                byte[] publicBytes = dis.readNBytes(dis.readInt());
+                byte[] privateBytes = dis.readNBytes(dis.readInt());
+
+                PublicKey publicKey = intern(factory.generatePublic(new X509EncodedKeySpec(publicBytes)));
+                PrivateKey privateKey = factory.generatePrivate(new PKCS8EncodedKeySpec(privateBytes));
+                pairs.put(id, new KeyPair(publicKey, privateKey));
+            }
+
+            derivedSecrets.clear();
+            keystore.clear();
+            keystore.putAll(pairs);
+            masterSecret = secret;
+        } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("[ERROR] Loading keystore");
+        }
+    }
+
+    private static KeyPair getKeystoreEntry(int id) throws IllegalStateException {
+        if (masterSecret == null) loadKeystore();
+
+        KeyPair pair = keystore.get(id);
+        if (pair == null)
+            throw new IllegalStateException(String.format("[ERROR] No keystore entry for process %d", id));
+        return pair;
+    }
+
+    // HKDF (RFC 5869) extract-and-expand of the master secret bound to the (unordered) pair of processes
+    private static SecretKey deriveSecretKey(int id1, int id2) throws IllegalStateException {
+        int low = Math.min(id1, id2);
+        int high = Math.max(id1, id2);
+        long pairId = ((long) low << 32) | (high & 0xffffffffL);
+
+        return derivedSecrets.computeIfAbsent(pairId, k -> {
+            if (masterSecret == null) loadKeystore();
+            try {
+                Mac extract = Mac.getInstance(KDF_ALGO);
+                extract.init(new SecretKeySpec(KDF_SALT, KDF_ALGO));
+                byte[] prk = extract.doFinal(masterSecret);
+
+                Mac expand = Mac.getInstance(KDF_ALGO);
+                expand.init(new SecretKeySpec(prk, KDF_ALGO));
+                expand.update(String.format("secret-%d-%d", low, high).getBytes(StandardCharsets.UTF_8));
+                expand.update((byte) 1);
+                byte[] okm = expand.doFinal();
+
+                return new SecretKeySpec(okm, 0, SECRET_KEY_LENGTH, SYM_ALGO);
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException(
+                    String.format("[ERROR] Deriving secret key for processes %d and %d", low, high));
+            }
+        });
+    }
+
     public static PrivateKey getPrivateKey(int id) throws IllegalStateException {
+        if (provisioningMode == ProvisioningMode.KEYSTORE)
+            return getKeystoreEntry(id).getPrivate();
+
         PrivateKey key = null;
 
         try {
@@ -161,6 +324,9 @@ public class KeyHandler {
     }
 
     public static PublicKey getPublicKey(int id) {
+        if (provisioningMode == ProvisioningMode.KEYSTORE)
+            return getKeystoreEntry(id).getPublic();
+
         PublicKey key = null;
 
         try {
@@ -169,10 +335,9 @@ public class KeyHandler {
             byte[] keyBytes = fis.readAllBytes();
             fis.close();
 
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(keyBytes);
-            key = KeyFactory.getInstance(ASSYM_ALGO).generatePublic(publicKeySpec);
+            key = deserializePublicKey(keyBytes);
         }
-        catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+        catch (IllegalStateException | IOException e) {
             throw new IllegalStateException(String.format("[ERROR] Getting public key for process %d", id));
         }
 
@@ -180,6 +345,9 @@ public class KeyHandler {
     }
 
     public static SecretKey getSecretKey(int id1, int id2) {
+        if (provisioningMode == ProvisioningMode.KEYSTORE)
+            return deriveSecretKey(id1, id2);
+
         SecretKey key = null;
 
         try {
@@ -202,17 +370,102 @@ public class KeyHandler {
             file.delete();
         }
         keysFiles.clear();
+        keystore.clear();
+        derivedSecrets.clear();
+        masterSecret = null;
+        internedKeys.clear();
+        fingerprints.clear();
     }
 
+    // Shared by every handler thread, so lookups take no lock. An evicted key is only decoded again when next seen
+    private static final class BoundedCache<K, V> {
+        private final int capacity;
+        private final Map<K, V> entries = new ConcurrentHashMap<>();
+
+        BoundedCache(int capacity) {
+            this.capacity = capacity;
+        }
+
+        V get(Object key) {
+            return entries.get(key);
+        }
+
+        V putIfAbsent(K key, V value) {
+            V previous = entries.putIfAbsent(key, value);
+            if (previous == null && entries.size() > capacity) {
+                for (Iterator<K> it = entries.keySet().iterator(); it.hasNext(); ) {
+                    if (!it.next().equals(key)) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            return previous;
+        }
+
+        void clear() {
+            entries.clear();
+        }
+    }
+
+    // Decoding of an already seen key is a hash lookup on its encoding
     public static PublicKey deserializePublicKey(byte[] keyBytes) throws IllegalStateException {
-        PublicKey pubKey = null;
+        PublicKey pubKey = internedKeys.get(ByteBuffer.wrap(keyBytes));
+        if (pubKey != null) return pubKey;
+
         try {
             pubKey = KeyFactory.getInstance(ASSYM_ALGO).generatePublic(new X509EncodedKeySpec(keyBytes));
 
         } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
             throw new IllegalStateException();
         }
-        return pubKey;
+        return intern(pubKey);
+    }
+
+    // Decodes the encoded key held by the view; known keys are found without copying the bytes
+    public static PublicKey deserializePublicKey(ByteBuffer keyBytes) throws IllegalStateException {
+        PublicKey pubKey = internedKeys.get(keyBytes);
+        if (pubKey != null) return pubKey;
+
+        byte[] bytes = new byte[keyBytes.remaining()];
+        keyBytes.duplicate().get(bytes);
+        return deserializePublicKey(bytes);
+    }
+
+    // Returns the cached instance of the given key, so repeated decodes share it. An evicted key gets a new
+    //  instance, so equal keys may still be different objects: compare them with equals or sameKey
+    public static PublicKey intern(PublicKey key) {
+        if (key == null) return null;
+
+        ByteBuffer encoded = ByteBuffer.wrap(key.getEncoded());
+        PublicKey canonical = internedKeys.putIfAbsent(encoded, key);
+        return canonical != null ? canonical : key;
+    }
+
+    public static byte[] fingerprint(PublicKey key) throws IllegalStateException {
+        return cachedFingerprint(key).clone();
+    }
+
+    // The cached array itself, never handed out
+    private static byte[] cachedFingerprint(PublicKey key) throws IllegalStateException {
+        byte[] fingerprint = fingerprints.get(key);
+        if (fingerprint != null) return fingerprint;
+
+        try {
+            fingerprint = MessageDigest.getInstance(FINGERPRINT_ALGO).digest(key.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("[ERROR] Computing key fingerprint");
+        }
+
+        fingerprints.putIfAbsent(key, fingerprint);
+        return fingerprint;
+    }
+
+    public static boolean sameKey(PublicKey key1, PublicKey key2) {
+        if (key1 == key2) return true;
+        if (key1 == null || key2 == null) return false;
+
+        return MessageDigest.isEqual(cachedFingerprint(key1), cachedFingerprint(key2));
     }
 
     public static PrivateKey deserializePrivateKey(byte[] keyBytes) throws IllegalStateException {
@@ -1,13 +1,41 @@
 package pt.ulisboa.tecnico.sec.ibft;
 
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public interface IBFTValueIT {
 
     // Serialization
-    public byte[] toByteArray() throws IOException;
-    public <T extends IBFTValueIT> T fromDataInputStream(DataInputStream dis) throws IOException;
+    public void writeTo(ByteBuffer buffer) throws IOException;
+    public <T extends IBFTValueIT> T readFrom(ByteBuffer buffer) throws IOException;
+
+    public default byte[] toByteArray() throws IOException {
+        return WireCodec.toByteArray(this::writeTo);
+    }
+
+    // Compact form sent in PRE_PREPAREs, which the receiver completes from what it already knows
+    //  (values without one are always sent in full)
+    public default boolean hasCompactForm() {
+        return false;
+    }
+
+    public default void writeCompactTo(ByteBuffer buffer) throws IOException {
+        writeTo(buffer);
+    }
+
+    public default <T extends IBFTValueIT> T readCompactFrom(ByteBuffer buffer) throws IOException {
+        return readFrom(buffer);
+    }
+
+    // Identifies the value in PREPARE and COMMIT messages
+    public default byte[] computeDigest() throws IOException {
+        Metrics.increment(Metrics.DIGESTS);
+        return AuthenticationHandler.digest(toByteArray());
+    }
     
     @Override
     boolean equals(Object obj);
@@ -19,4 +47,4 @@ public interface IBFTValueIT {
     String toString();
 
     // ...
-}
\ No newline at end of file
+}
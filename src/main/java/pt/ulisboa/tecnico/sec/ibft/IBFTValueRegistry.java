@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.sec.ibft;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue;
+
+// Values that can be agreed on, identified on the wire by a one-byte tag (tags must never be reused)
+public final class IBFTValueRegistry {
+
+    public static final byte BLOCKCHAIN_NODE = 1;
+    public static final byte STRONG_READ = 2;
+
+    private static final Class<?>[] _classes = new Class<?>[256];
+    private static final Supplier<?>[] _factories = new Supplier<?>[256];
+    private static final Map<Class<?>, Byte> _tags = new ConcurrentHashMap<>();
+
+    static {
+        register(BLOCKCHAIN_NODE, BlockchainNode.class, BlockchainNode::new);
+        register(STRONG_READ, StrongReadIBFTValue.class, StrongReadIBFTValue::new);
+    }
+
+    private IBFTValueRegistry() throws IllegalStateException {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static synchronized <T extends IBFTValueIT> void register(byte tag, Class<T> clazz, Supplier<T> factory)
+            throws IllegalStateException {
+        int index = Byte.toUnsignedInt(tag);
+        if (_classes[index] != null || _tags.containsKey(clazz))
+            throw new IllegalStateException(String.format("[ERROR] IBFT value tag %d or %s already registered", index, clazz.getName()));
+
+        _factories[index] = factory;
+        _classes[index] = clazz;
+        _tags.put(clazz, tag);
+    }
+
+    public static byte tagOf(Class<?> clazz) throws IllegalStateException {
+        Byte tag = _tags.get(clazz);
+        if (tag == null)
+            throw new IllegalStateException("[ERROR] Unregistered IBFT value " + clazz.getName());
+        return tag;
+    }
+
+    // Null for unknown tags
+    @SuppressWarnings("unchecked")
+    public static Class<? extends IBFTValueIT> classOf(byte tag) {
+        return (Class<? extends IBFTValueIT>) _classes[Byte.toUnsignedInt(tag)];
+    }
+
+    // Empty value to be filled by readFrom
+    @SuppressWarnings("unchecked")
+    public static <T extends IBFTValueIT> T newValue(Class<T> clazz) throws IllegalStateException {
+        return (T) _factories[Byte.toUnsignedInt(tagOf(clazz))].get();
+    }
+}
@@ -0,0 +1,235 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.messages.BatchAckMessage;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+// Batches of client requests disseminated apart from ordering (P batch-dissemination 1). Each server batches
+//  the requests of its share of the clients and sends the batch to every server, which stores it and signs an
+//  ack. The acks of f+1 servers certify the batch: a correct server holds it, so leaders propose the digests of
+//  certified batches instead of their transactions, and a server missing one fetches it from the acking ones.
+//  A stored batch that is never certified (its batcher is faulty, or too few servers acked it) is dropped once
+//  it is as old as a pending request may get, its requests are batched again by the servers that have them.
+public class BatchPool {
+    // Proposed by this server, until the PRE_PREPARE tells the actual instance
+    public static final int UNASSIGNED = Integer.MAX_VALUE;
+    // Requests of other servers' clients are batched here if their batch doesn't arrive in time
+    public static final int DEFAULT_TIMEOUT = 1000; // ms
+
+    private final int certificateSize;
+    private final long maxAge; // ns
+    // All guarded by this, by the Base64 digest of each batch
+    private final Map<String, List<Transaction>> batches = new HashMap<>();
+    // When each stored batch arrived (ns)
+    private final Map<String, Long> stored = new HashMap<>();
+    // Short ids of the transactions of the stored batches that are certified or ordered
+    private final Set<Long> certifiedTransactions = new HashSet<>();
+    // Acks of the batches this server disseminated, until certified
+    private final Map<String, Map<Integer, BatchAckMessage>> acks = new HashMap<>();
+    // Certified batches that aren't ordered yet, in certification order, with the servers that hold them
+    private final Map<String, Set<Integer>> certified = new LinkedHashMap<>();
+    // Instance each certified batch is proposed in
+    private final Map<String, Integer> proposed = new HashMap<>();
+    // Ordered batches by the instance that decided them, kept until every server applied it
+    private final NavigableMap<Integer, List<String>> ordered = new TreeMap<>();
+    private final Set<String> orderedDigests = new TreeSet<>();
+
+    public BatchPool(int certificateSize, long maxAge) {
+        this.certificateSize = certificateSize;
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAge));
+    }
+
+    private static String key(byte[] digest) {
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    public static byte[] digest(List<Transaction> batch) throws IllegalStateException {
+        try {
+            return new BlockchainNode(batch, new ArrayList<>()).computeDigest();
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[ERROR] Computing digest of batch of %d transactions", batch.size()));
+        }
+    }
+
+    // Stores a batch, returns its digest
+    public synchronized byte[] add(List<Transaction> batch) {
+        byte[] digest = digest(batch);
+        String key = key(digest);
+        if (batches.putIfAbsent(key, batch) == null) {
+            stored.put(key, System.nanoTime());
+            // The certificate may have come first
+            if (certified.containsKey(key) || orderedDigests.contains(key)) hold(key);
+        }
+        return digest;
+    }
+
+    // The stored batch is certified or ordered, its transactions need no other batch
+    private void hold(String key) {
+        List<Transaction> batch = batches.get(key);
+        if (batch == null) return;
+        for (Transaction t : batch)
+            certifiedTransactions.add(BlockchainNode.shortId(t));
+    }
+
+    public synchronized List<Transaction> get(byte[] digest) {
+        return batches.get(key(digest));
+    }
+
+    // Whether the transaction is in a stored batch that is certified or ordered
+    public synchronized boolean isBatched(Transaction transaction) {
+        return certifiedTransactions.contains(BlockchainNode.shortId(transaction));
+    }
+
+    // The batch was disseminated by this server, which collects its acks
+    public synchronized void expectAcks(byte[] digest) {
+        acks.putIfAbsent(key(digest), new TreeMap<>());
+    }
+
+    // The acks that certify the batch once the sender's makes them enough (only then), null otherwise
+    public synchronized Map<Integer, BatchAckMessage> ack(int sender, BatchAckMessage ack) {
+        Map<Integer, BatchAckMessage> batchAcks = acks.get(key(ack.getBatchDigest()));
+        if (batchAcks == null || batchAcks.putIfAbsent(sender, ack) != null || batchAcks.size() != certificateSize)
+            return null;
+        return new TreeMap<>(batchAcks);
+    }
+
+    // Whether the batch wasn't certified (or ordered) before
+    public synchronized boolean certify(byte[] digest, Set<Integer> holders) {
+        String key = key(digest);
+        if (orderedDigests.contains(key) || certified.containsKey(key)) return false;
+        certified.put(key, holders);
+        acks.remove(key);
+        hold(key);
+        return true;
+    }
+
+    // Servers that acked the batch, empty if it isn't certified here
+    public synchronized Set<Integer> getHolders(byte[] digest) {
+        return certified.getOrDefault(key(digest), Set.of());
+    }
+
+    // Certified batches this server holds that aren't in any proposal yet
+    public synchronized int pendingTransactions() {
+        int pending = 0;
+        for (String key : certified.keySet()) {
+            if (!proposed.containsKey(key) && batches.containsKey(key))
+                pending += batches.get(key).size();
+        }
+        return pending;
+    }
+
+    // The oldest certified batches this server holds that aren't in any proposal yet, whole, within the limits
+    //  of a block. Marked as proposed by this server.
+    public synchronized BlockchainNode propose(BlockBuilder builder, AccountId producer) {
+        BlockchainNode block = new BlockchainNode();
+        List<byte[]> digests = new ArrayList<>();
+        int bytes = 0;
+        for (String key : certified.keySet()) {
+            List<Transaction> batch = batches.get(key);
+            if (batch == null || proposed.containsKey(key)) continue;
+
+            int size = 0;
+            for (Transaction t : batch)
+                size += BlockBuilder.size(t);
+            if (block.getTransactions().size() + batch.size() > builder.getMaxTransactions() || bytes + size > builder.getMaxBytes())
+                break;
+
+            for (Transaction t : batch)
+                block.addTransaction(t, producer);
+            bytes += size;
+            digests.add(Base64.getDecoder().decode(key));
+        }
+
+        if (!digests.isEmpty()) {
+            block.setBatches(digests);
+            assign(digests, UNASSIGNED);
+        }
+        return block;
+    }
+
+    // The batches are proposed in the instance
+    public synchronized void assign(List<byte[]> digests, int instance) {
+        for (byte[] digest : digests) {
+            String key = key(digest);
+            if (!orderedDigests.contains(key)) proposed.put(key, instance);
+        }
+    }
+
+    // The proposal of the instance didn't go out, its batches are free to be proposed again
+    public synchronized void release(List<byte[]> digests, int instance) {
+        for (byte[] digest : digests)
+            proposed.remove(key(digest), instance);
+    }
+
+    // The batches were decided in the instance, and those proposed in it but not decided are free again
+    public synchronized void ordered(List<byte[]> digests, int instance) {
+        List<String> keys = new ArrayList<>();
+        for (byte[] digest : digests) {
+            String key = key(digest);
+            certified.remove(key);
+            proposed.remove(key);
+            if (orderedDigests.add(key)) keys.add(key);
+            hold(key);
+        }
+        if (!keys.isEmpty()) ordered.put(instance, keys);
+        proposed.values().removeIf(proposedIn -> proposedIn == instance);
+    }
+
+    // Drops the batches of the instances every server applied
+    public synchronized void collect(int lowWatermark) {
+        NavigableMap<Integer, List<String>> applied = ordered.headMap(lowWatermark, false);
+        for (List<String> keys : applied.values()) {
+            for (String key : keys) {
+                List<Transaction> batch = drop(key);
+                if (batch != null) {
+                    for (Transaction t : batch)
+                        certifiedTransactions.remove(BlockchainNode.shortId(t));
+                }
+                orderedDigests.remove(key);
+            }
+        }
+        applied.clear();
+    }
+
+    // Drops the stored batches that weren't certified, ordered or proposed within the max age, returns how many
+    public synchronized int expire() {
+        long now = System.nanoTime();
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : stored.entrySet()) {
+            String key = entry.getKey();
+            if (now - entry.getValue() >= maxAge && !certified.containsKey(key) && !orderedDigests.contains(key)
+                && !proposed.containsKey(key))
+                expired.add(key);
+        }
+        // Their transactions weren't held by them, though they may be by another batch
+        for (String key : expired)
+            drop(key);
+        return expired.size();
+    }
+
+    private List<Transaction> drop(String key) {
+        stored.remove(key);
+        acks.remove(key);
+        return batches.remove(key);
+    }
+
+    public synchronized int size() {
+        return batches.size();
+    }
+}
@@ -0,0 +1,98 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+// Owns the block being filled with the client requests of a server, from a thread of its own. The block is
+//  cut once the BlockBuilder finds it full, or once its first request waited for the latency budget, and
+//  handed to consensus. Request handlers only queue their transaction and return.
+public class BlockCutter {
+
+    @FunctionalInterface
+    public interface Action {
+        // Called from the cutter thread, byDeadline when the block was cut short
+        void cut(BlockchainNode block, boolean byDeadline) throws InterruptedException;
+    }
+
+    private final BlockBuilder builder;
+    private final AccountId producer;
+    private final Action action;
+    private final ScheduledExecutorService executor;
+    // Only used from the cutter thread
+    private BlockchainNode toPropose = new BlockchainNode();
+    private ScheduledFuture<?> deadline;
+    // CPU time of the cutter thread (ns), only written by it
+    private volatile long cpuTime;
+
+    public BlockCutter(String name, BlockBuilder builder, AccountId producer, Action action) {
+        this.builder = builder;
+        this.producer = producer;
+        this.action = action;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void add(Transaction transaction) {
+        try {
+            executor.execute(() -> measured(() -> {
+                toPropose.addTransaction(transaction, producer);
+                if (builder.isFull(toPropose))
+                    cut(false);
+                else if (deadline == null)
+                    deadline = executor.schedule(() -> measured(() -> cut(true)), builder.getLatency(), TimeUnit.MILLISECONDS);
+            }));
+        } catch (RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    private void measured(Runnable task) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        try {
+            task.run();
+        } finally {
+            cpuTime += threads.getCurrentThreadCpuTime() - start;
+        }
+    }
+
+    private void cut(boolean byDeadline) {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if (toPropose.isEmpty()) return;
+
+        BlockchainNode block = toPropose;
+        toPropose = new BlockchainNode();
+        try {
+            action.cut(block, byDeadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.out);
+            System.out.flush();
+        }
+    }
+
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -1,14 +1,33 @@
 package pt.ulisboa.tecnico.sec.instances;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
 import pt.ulisboa.tecnico.sec.broadcasts.BestEffortBroadcast;
 import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
 import pt.ulisboa.tecnico.sec.ibft.IBFTValueIT;
+import pt.ulisboa.tecnico.sec.ibft.IBFTValueRegistry;
 import pt.ulisboa.tecnico.sec.messages.BFTMessage;
 import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
 
 @SuppressWarnings("unchecked")
 public class Consensus<T extends IBFTValueIT> {
@@ -16,124 +35,921 @@ public class Consensus<T extends IBFTValueIT> {
 
 	private BestEffortBroadcast ibftBroadcast;
 
+	// Instances the leader may have undecided at once (P pipeline [size])
+	public static final int DEFAULT_PIPELINE = 4;
+	// Timer of the first round of an instance, doubled on every round change (P round-timeout [ms])
+	public static final int DEFAULT_ROUND_TIMEOUT = 5000; // ms
+	private static final int MAX_TIMEOUT_SHIFT = 10;
+	// Applied instances between checkpoints (P checkpoint-interval [instances])
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+	// Fast path: the leader commits for all on the PREPAREs of all the servers, which only send their COMMITs
+	//  if no certificate came within the fast timer (P fast-path 1, P fast-path-timeout [ms])
+	public static final int DEFAULT_FAST_PATH_TIMEOUT = 100; // ms
+
 	// IBFT related variables
-	private int instance = 0;
+	// Next instance to propose (leader) or to expect (replicas), only raised by the others
+	private final AtomicInteger instance = new AtomicInteger();
+	// Parallel lanes (P lanes [k], at most the servers): instance i belongs to lane i % k, which is led by its own
+	//  server and proposes its own sequence. Decided instances are applied in instance order, so the lanes are
+	//  interleaved round robin; a lane behind the others fills its instances (see isBehind).
+	private final int lanes;
+	// Next instance of each lane to propose or to expect
+	private final AtomicIntegerArray laneInstances;
+	// Guards the pipeline window (instance and applied) of the leader
 	private Object instanceLock = new Object();
-	private int round = 0;
-	private Map<BFTMessage<T>, Set<Integer>> prepareCount;
-	private Map<BFTMessage<T>, Set<Integer>> commitCount;
+	private final int pipeline;
+	private final long roundTimeout;
+	private final boolean fastPath;
+	private final long fastPathTimeout;
+	// Instances before this one were applied
+	private int applied = 0;
+	private final int checkpointInterval;
+	// State of the instances before this one was discarded, their late messages are ignored
+	private final AtomicInteger lowWatermark = new AtomicInteger();
+	// Highest instance this process sent a COMMIT for or decided (-1 if none)
+	private final AtomicInteger committed = new AtomicInteger(-1);
+	private final Class<T> clazz;
+	// Proposed by a new leader of the given instance when no value was prepared in the previous rounds
+	private final IntFunction<T> fallbackValue;
+	// Fault injection: this process never sends its PRE_PREPAREs (P mute-server [id])
+	private final boolean muted;
+	private final List<HDLProcess> servers;
+	private final LeaderPolicy leaders;
+	// State of every instance from the low watermark on, instances only contend on their own state
+	private Map<Integer, InstanceState> states;
+	private ScheduledExecutorService timers;
+
+	private static final class QuorumKey {
+		private final int instance;
+		private final int round;
+		private final byte[] digest;
+
+		private QuorumKey(int instance, int round, byte[] digest) {
+			this.instance = instance;
+			this.round = round;
+			this.digest = digest;
+		}
+
+		private QuorumKey(BFTMessage<?> message) {
+			this(message.getInstance(), message.getRound(), message.getValueDigest());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof QuorumKey)) return false;
+			QuorumKey key = (QuorumKey) o;
+			return instance == key.instance && round == key.round && Arrays.equals(digest, key.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * instance + round) + Arrays.hashCode(digest);
+		}
+	}
 
+	// Votes for a value without locking: a bit per server, and how many are set
+	private static final class Votes {
+		private final AtomicLongArray replicas;
+		private final AtomicInteger count = new AtomicInteger();
 
-	public Consensus(HDLProcess process, BestEffortBroadcast ibftBroadcast) {
+		private Votes(int servers) {
+			this.replicas = new AtomicLongArray((servers + Long.SIZE - 1) / Long.SIZE);
+		}
+
+		// Number of votes with this one, 0 if the replica had already voted. Each count is returned once,
+		//  so a single caller sees the quorum being reached.
+		private int add(int replica) {
+			long bit = 1L << (replica % Long.SIZE);
+			long previous = replicas.getAndAccumulate(replica / Long.SIZE, bit, (bits, b) -> bits | b);
+			if ((previous & bit) != 0) return 0;
+			return count.incrementAndGet();
+		}
+	}
+
+	// Round state is guarded by the object itself, votes and values are concurrent
+	private final class InstanceState {
+		private int round = 0;
+		// Round of the last PRE_PREPARE accepted, or sent by this process as leader
+		private int acceptedRound = -1;
+		private int proposedRound = -1;
+		private int preparedRound = -1;
+		private byte[] preparedDigest;
+		private Map<Integer, BFTMessage<T>> preparedCertificate;
+		// Own signed PREPARE of the accepted round (fast path)
+		private BFTMessage<T> acceptedPrepare;
+		// FAST_COMMIT this process decided on, sent to the servers that still commit
+		private BFTMessage<T> fastCertificate;
+		private boolean decided = false;
+		private int decidedRound;
+		private T decidedValue;
+		private ScheduledFuture<?> timer;
+		// Start of the recovery, when the first round change happened
+		private long firstRoundChange = 0;
+		// ROUND_CHANGEs by round and sender
+		private TreeMap<Integer, Map<Integer, BFTMessage<T>>> roundChanges = new TreeMap<>();
+		private final Map<QuorumKey, Votes> prepares = new ConcurrentHashMap<>();
+		// PREPAREs are signed so that a quorum of them proves a value was prepared in a ROUND_CHANGE
+		private final Map<QuorumKey, Map<Integer, BFTMessage<T>>> signedPrepares = new ConcurrentHashMap<>();
+		private final Map<QuorumKey, Votes> commits = new ConcurrentHashMap<>();
+		// PREPARE and COMMIT only carry the value digest, the value itself comes from the PRE_PREPARE
+		private final Map<QuorumKey, T> proposals = new ConcurrentHashMap<>();
+		// Committed by a quorum before the PRE_PREPARE arrived
+		private final Set<QuorumKey> pendingDecisions = ConcurrentHashMap.newKeySet();
+
+		private boolean isRunning() {
+			return !decided && timer != null;
+		}
+	}
+
+	public Consensus(HDLProcess process, BestEffortBroadcast ibftBroadcast, Class<T> clazz, Supplier<T> fallbackValue) {
+		this(process, ibftBroadcast, clazz, consensusInstance -> fallbackValue.get(), 1);
+	}
+
+	public Consensus(HDLProcess process, BestEffortBroadcast ibftBroadcast, Class<T> clazz, IntFunction<T> fallbackValue, int lanes) {
 		this.process = process;
 		this.ibftBroadcast = ibftBroadcast;
-		this.prepareCount = new HashMap<>();
-		this.commitCount = new HashMap<>();
+		this.clazz = clazz;
+		this.fallbackValue = fallbackValue;
+		this.states = new ConcurrentHashMap<>();
+		this.pipeline = Math.max(1, InstanceManager.getIntParameter("pipeline", DEFAULT_PIPELINE));
+		this.checkpointInterval = Math.max(1, InstanceManager.getIntParameter("checkpoint-interval", DEFAULT_CHECKPOINT_INTERVAL));
+		this.roundTimeout = Math.max(1, InstanceManager.getIntParameter("round-timeout", DEFAULT_ROUND_TIMEOUT));
+		this.fastPath = InstanceManager.getIntParameter("fast-path", 0) != 0;
+		this.fastPathTimeout = Math.max(1, InstanceManager.getIntParameter("fast-path-timeout", DEFAULT_FAST_PATH_TIMEOUT));
+		this.muted = process.getID() == InstanceManager.getIntParameter("mute-server", -1);
+		this.servers = InstanceManager.getAllParticipants();
+		this.lanes = Math.max(1, Math.min(lanes, servers.size()));
+		this.laneInstances = new AtomicIntegerArray(this.lanes);
+		for (int lane = 0; lane < this.lanes; lane++)
+			laneInstances.set(lane, lane);
+		// The leader of an instance never has more than a pipeline of instances unapplied
+		this.leaders = InstanceManager.newLeaderPolicy(pipeline);
+		this.timers = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "round-timers-" + process.getID());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	public Integer getInstance() {
-		return this.instance;
+		return this.instance.get();
+	}
+
+	public Integer incrementInstance() {
+		return this.instance.incrementAndGet();
+	}
+
+	// Current round of an instance (0 for the ones not started yet)
+	public int getRound(int consensusInstance) {
+		InstanceState state = getState(consensusInstance);
+		if (state == null) return 0;
+		synchronized (state) {
+			return state.round;
+		}
+	}
+
+	// Null if this process can't tell yet
+	public HDLProcess getLeader(int consensusInstance, int round) {
+		// Each lane starts with its own server, round changes move on to the next ones
+		if (lanes > 1)
+			return servers.get((getLane(consensusInstance) + round) % servers.size());
+		return leaders.getLeader(servers, consensusInstance, round);
+	}
+
+	public int getLanes() {
+		return lanes;
+	}
+
+	public int getLane(int consensusInstance) {
+		return consensusInstance % lanes;
+	}
+
+	// Lane this process leads the first rounds of (-1 if none), the only one without lanes
+	public int getOwnLane() {
+		if (lanes == 1) return 0;
+		int index = servers.indexOf(process);
+		return index < lanes ? index : -1;
 	}
 
-	public synchronized Integer incrementInstance() {
-		return ++this.instance;
+	// Whether an instance after the next one of this process's lane was seen: the lane holds back the
+	//  application of the others' blocks until it fills the gap, with an empty block if it has nothing else
+	public boolean isBehind() {
+		int lane = getOwnLane();
+		return lanes > 1 && lane >= 0 && laneInstances.get(lane) < instance.get();
 	}
 
-	public Integer getRound() {
-		return this.round;
+	public boolean isLeader(HDLProcess p, int consensusInstance, int round) {
+		HDLProcess leader = getLeader(consensusInstance, round);
+		return leader != null && leader.equals(p);
 	}
 
-	// Start IBFT protocol if this process is the leader
-	public void startConsensus(T value) throws InterruptedException {
-		int currentInstance = 0;
+	// Whether this process leads the first round of the next instance of its lane
+	public boolean leadsNextInstance() {
+		int lane = getOwnLane();
+		return lane >= 0 && isLeader(process, laneInstances.get(lane), 0);
+	}
+
+	// Leader of the first round of the next instance of the lane, null if this process can't tell yet
+	public HDLProcess getNextLeader(int lane) {
+		return getLeader(laneInstances.get(lane), 0);
+	}
+
+	// Whether startConsensus can propose without waiting for an instance to be applied
+	public boolean hasFreeSlot() {
+		int lane = Math.max(0, getOwnLane());
 		synchronized (instanceLock) {
-			currentInstance = instance++;
+			return laneInstances.get(lane) - applied < pipeline * lanes;
+		}
+	}
+
+	public void stop() {
+		timers.shutdownNow();
+	}
+
+	// Null for the instances below the low watermark, or too far past it to be held
+	private InstanceState getState(int consensusInstance) {
+		if (!beforeWindowEnd(consensusInstance)) {
+			Metrics.increment(Metrics.FUTURE_MESSAGES);
+			return null;
+		}
+		if (consensusInstance >= lowWatermark.get()) {
+			InstanceState state = states.computeIfAbsent(consensusInstance, i -> new InstanceState());
+			// Unless the watermark passed it meanwhile
+			if (consensusInstance >= lowWatermark.get()) return state;
+			states.remove(consensusInstance, state);
+		}
+		Metrics.increment(Metrics.STALE_MESSAGES);
+		return null;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark.get();
+	}
+
+	// Instances this process holds state for. Its applied instance is less than two checkpoints past the low
+	//  watermark, and no leader gets more than a pipeline ahead of it, so correct servers never send past them
+	public boolean inWindow(int consensusInstance) {
+		return consensusInstance >= lowWatermark.get() && beforeWindowEnd(consensusInstance);
+	}
+
+	private boolean beforeWindowEnd(int consensusInstance) {
+		return consensusInstance < lowWatermark.get() + 2 * checkpointInterval + getPipeline();
+	}
+
+	public int getRetainedInstances() {
+		return states.size();
+	}
+
+	// Every decided instance had a quorum of COMMITs, so the highest of any quorum of these covers them all
+	public int getCommittedInstance() {
+		return committed.get();
+	}
+
+	// Instances that may be undecided at once, a pipeline per lane
+	public int getPipeline() {
+		return pipeline * lanes;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	// Discards the state of every instance before the given one, which must all be decided
+	public void setLowWatermark(int consensusInstance) {
+		if (lowWatermark.getAndAccumulate(consensusInstance, Math::max) >= consensusInstance) return;
+
+		int collected = 0;
+		for (Iterator<Map.Entry<Integer, InstanceState>> it = states.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Integer, InstanceState> entry = it.next();
+			if (entry.getKey() >= consensusInstance) continue;
+			synchronized (entry.getValue()) {
+				if (entry.getValue().timer != null) entry.getValue().timer.cancel(false);
+			}
+			it.remove();
+			collected++;
 		}
-		if (this.process.equals(InstanceManager.getLeader(currentInstance, round))) {
-			System.err.printf("[L] Server %d starting instance %d of consensus %n", process.getID(), currentInstance);
-			// Creates PRE_PREPARE message
-			BFTMessage<T> pre_prepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, currentInstance, round, value);
-			pre_prepare.signMessage(process.getPrivateKey());
-			// Broadcasts PRE_PREPARE
-			ibftBroadcast.broadcast(pre_prepare);
+		Metrics.add(Metrics.COLLECTED_INSTANCES, collected);
+	}
+
+	private void seenInstance(int consensusInstance) {
+		instance.accumulateAndGet(consensusInstance + 1, Math::max);
+		laneInstances.accumulateAndGet(getLane(consensusInstance), consensusInstance + lanes, Math::max);
+	}
+
+	// Frees a pipeline slot once a decided instance was applied (proposed by proposer, if known)
+	public void instanceApplied(int appliedInstance, HDLProcess proposer) {
+		leaders.applied(servers, appliedInstance, proposer);
+		synchronized (instanceLock) {
+			applied = Math.max(applied, appliedInstance + 1);
+			instanceLock.notifyAll();
 		}
+
+		// Every applied instance up to a checkpoint is decided, the state before the previous one is discarded
+		//  (the last interval is kept to answer the late ROUND_CHANGEs of lagging replicas)
+		if ((appliedInstance + 1) % checkpointInterval == 0)
+			setLowWatermark(appliedInstance + 1 - checkpointInterval);
 	}
 
-	public void handlePrePrepare(LinkMessage pre_prepare) throws InterruptedException {
-		int currentInstance;
+	// Start IBFT protocol if this process is the leader, returns the instance proposed in (-1 if none)
+	public int startConsensus(T value) throws InterruptedException {
+		int currentInstance = -1;
+		int lane = getOwnLane();
 		synchronized (instanceLock) {
-			currentInstance = instance;
+			// Replicas only expect the leader to start the next instance of its lane
+			for (int next = lane < 0 ? -1 : laneInstances.get(lane); next >= 0 && isLeader(process, next, 0); next = laneInstances.get(lane)) {
+				// The leader waits for a free slot in the pipeline
+				if (next - applied >= pipeline * lanes) {
+					instanceLock.wait();
+				} else if (laneInstances.compareAndSet(lane, next, next + lanes)) {
+					currentInstance = next;
+					instance.accumulateAndGet(next + 1, Math::max);
+					break;
+				}
+			}
+		}
+		if (currentInstance < 0) {
+			if (lane >= 0) expectInstance(lane);
+			return -1;
 		}
 
-		// Authenticates sender of the PRE_PREPARE message as the Leader (JUSTIFY_PRE_PREPARE)
-		if (!InstanceManager.getLeader(currentInstance, round).equals(pre_prepare.getSender()) ||
-			!pre_prepare.getMessage().hasValidSignature(pre_prepare.getSender().getPublicKey()))
+		InstanceState state = getState(currentInstance);
+		if (state == null) return -1;
+		synchronized (state) {
+			if (state.round != 0 || state.proposedRound >= 0) return -1;
+			state.proposedRound = 0;
+			startTimer(state, currentInstance);
+		}
+
+		System.err.printf("[L] Server %d starting instance %d of consensus %n", process.getID(), currentInstance);
+		// Creates PRE_PREPARE message
+		BFTMessage<T> pre_prepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, currentInstance, 0, value);
+		// Replicas already got the client requests, only send what they need to find them
+		pre_prepare.useCompactForm();
+		propose(pre_prepare);
+		return currentInstance;
+	}
+
+	private void propose(BFTMessage<T> pre_prepare) throws InterruptedException {
+		if (muted) {
+			System.err.printf("[L] Server %d is muted, withholding %s%n", process.getID(), pre_prepare);
 			return;
+		}
+
+		pre_prepare.signMessage(process.getPrivateKey());
+		try {
+			Metrics.add(Metrics.PROPOSAL_BYTES, (long) pre_prepare.getDataBytes().length * ibftBroadcast.getInteractProcesses().size());
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("[ERROR] Encoding PRE_PREPARE %s", pre_prepare));
+		}
+		// Broadcasts PRE_PREPARE
+		ibftBroadcast.broadcast(pre_prepare);
+	}
+
+	// This process has requests to order in the lane: if no instance of it is running, the next one must start
+	//  before its timer expires
+	public void expectInstance(int lane) {
+		int next = laneInstances.get(lane);
+		int firstUnapplied;
+		synchronized (instanceLock) {
+			firstUnapplied = applied;
+		}
+		// The requests are also applied after the instances of the other lanes before them
+		if (lanes > 1 && firstUnapplied < next)
+			expect(firstUnapplied);
+
+		for (Map.Entry<Integer, InstanceState> entry : states.entrySet()) {
+			if (getLane(entry.getKey()) != lane) continue;
+			InstanceState state = entry.getValue();
+			synchronized (state) {
+				if (state.isRunning()) return;
+				// Requests may be waiting for a decided instance; its application expects again
+				if (state.decided && entry.getKey() >= firstUnapplied) return;
+			}
+		}
+		expect(next);
+	}
+
+	private void expect(int consensusInstance) {
+		InstanceState state = getState(consensusInstance);
+		if (state == null) return;
+		synchronized (state) {
+			if (state.timer == null && !state.decided)
+				startTimer(state, consensusInstance);
+		}
+	}
+
+	private void startTimer(InstanceState state, int consensusInstance) {
+		if (state.timer != null)
+			state.timer.cancel(false);
+		if (state.decided || timers.isShutdown()) return;
+
+		long timeout = roundTimeout << Math.min(state.round, MAX_TIMEOUT_SHIFT);
+		state.timer = timers.schedule(() -> roundTimeout(consensusInstance), timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void roundTimeout(int consensusInstance) {
+		InstanceState state = getState(consensusInstance);
+		if (state == null) return;
+		BFTMessage<T> roundChange;
+		synchronized (state) {
+			if (state.decided) return;
+			roundChange = moveToRound(state, consensusInstance, state.round + 1);
+		}
+
+		System.err.printf("Server %d timed out on consensus %d, moving to round %d%n", process.getID(), consensusInstance, roundChange.getRound());
+		Metrics.increment(Metrics.ROUND_CHANGES);
+		broadcastLater(roundChange);
+	}
 
+	// Broadcasts from a thread of its own, timers must not wait for the links
+	private void broadcastLater(BFTMessage<T> message) {
+		new Thread(() -> {
+			try {
+				ibftBroadcast.broadcast(message);
+			} catch (InterruptedException | IllegalStateException e) {
+				// Closing
+			}
+		}).start();
+	}
+
+	// Restarts the timer in the new round, returns the ROUND_CHANGE to broadcast
+	private BFTMessage<T> moveToRound(InstanceState state, int consensusInstance, int round) {
+		if (state.firstRoundChange == 0)
+			state.firstRoundChange = System.nanoTime();
+		state.round = round;
+		startTimer(state, consensusInstance);
+
+		BFTMessage<T> roundChange;
+		T preparedValue = null;
+		if (state.preparedRound >= 0)
+			preparedValue = state.proposals.get(new QuorumKey(consensusInstance, state.preparedRound, state.preparedDigest));
+		// A value accepted after the prepared round may have been decided on the fast path
+		BFTMessage<T> accepted = state.acceptedPrepare;
+		if (accepted != null && accepted.getRound() <= state.preparedRound)
+			accepted = null;
+		// Without a prepared value, the accepted one goes along for the new leader
+		if (accepted != null && state.preparedRound < 0)
+			preparedValue = state.proposals.get(new QuorumKey(accepted));
+		if (preparedValue != null)
+			roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, consensusInstance, round, preparedValue);
+		else
+			roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, consensusInstance, round, clazz, state.preparedDigest);
+
+		if (state.preparedRound >= 0) {
+			roundChange.setPreparedRound(state.preparedRound);
+			roundChange.setJustification(state.preparedCertificate);
+		}
+		if (accepted != null)
+			roundChange.setAcceptedPrepare(accepted);
+		roundChange.signMessage(process.getPrivateKey());
+		return roundChange;
+	}
+
+	// Signed by one of the servers, for the given instance and round
+	private boolean isValidSigned(int sender, BFTMessage<T> message, BFTMessage.Type type, int consensusInstance) {
+		HDLProcess server = InstanceManager.getHDLProcess(sender);
+		return InstanceManager.isServer(server) && message.getType() == type && message.getInstance() == consensusInstance
+			&& message.hasValidSignature(server.getPublicKey());
+	}
+
+	// JUSTIFY_ROUND_CHANGE: the prepared value (if any) comes with a quorum of PREPAREs for it, and the
+	//  accepted one (if any) with the sender's own PREPARE in a round between the prepared one and this one
+	private boolean isValidRoundChange(int sender, BFTMessage<T> roundChange, int consensusInstance, int round) {
+		if (roundChange.getRound() != round || roundChange.getPreparedRound() >= round
+			|| !isValidSigned(sender, roundChange, BFTMessage.Type.ROUND_CHANGE, consensusInstance))
+			return false;
+		BFTMessage<T> accepted = roundChange.getAcceptedPrepare();
+		if (accepted != null && (accepted.getRound() >= round || accepted.getRound() <= roundChange.getPreparedRound()
+			|| accepted.getValueDigest() == null || !isValidSigned(sender, accepted, BFTMessage.Type.PREPARE, consensusInstance)))
+			return false;
+		if (roundChange.getPreparedRound() < 0)
+			return true;
+
+		byte[] digest = roundChange.getValueDigest();
+		int prepares = 0;
+		for (Map.Entry<Integer, BFTMessage<T>> entry : roundChange.getJustification().entrySet()) {
+			BFTMessage<T> prepare = entry.getValue();
+			if (prepare.getRound() != roundChange.getPreparedRound() || !Arrays.equals(prepare.getValueDigest(), digest)
+				|| !isValidSigned(entry.getKey(), prepare, BFTMessage.Type.PREPARE, consensusInstance))
+				return false;
+			prepares++;
+		}
+		return digest != null && prepares >= InstanceManager.getQuorum();
+	}
+
+	// Highest prepared ROUND_CHANGE among the given ones, null if none prepared a value
+	private BFTMessage<T> highestPrepared(Map<Integer, BFTMessage<T>> roundChanges) {
+		BFTMessage<T> highest = null;
+		for (BFTMessage<T> roundChange : roundChanges.values()) {
+			if (roundChange.getPreparedRound() >= 0 && (highest == null || roundChange.getPreparedRound() > highest.getPreparedRound()))
+				highest = roundChange;
+		}
+		return highest;
+	}
+
+	// Values f+1 of the ROUND_CHANGEs accepted after the highest prepared round. A value decided on the fast path
+	//  was PREPAREd by all the servers, so f+1 correct senders of any quorum accepted it in that round or (being
+	//  safe) later, and at most f others can claim a different one: it is the only value returned
+	private List<byte[]> acceptedByMany(Map<Integer, BFTMessage<T>> roundChanges, BFTMessage<T> highest) {
+		int preparedRound = highest == null ? -1 : highest.getPreparedRound();
+		List<byte[]> digests = new ArrayList<>();
+		List<Integer> claims = new ArrayList<>();
+		for (BFTMessage<T> roundChange : roundChanges.values()) {
+			BFTMessage<T> accepted = roundChange.getAcceptedPrepare();
+			if (accepted == null || accepted.getRound() <= preparedRound) continue;
+			int i = 0;
+			while (i < digests.size() && !Arrays.equals(digests.get(i), accepted.getValueDigest())) i++;
+			if (i == digests.size()) {
+				digests.add(accepted.getValueDigest());
+				claims.add(0);
+			}
+			claims.set(i, claims.get(i) + 1);
+		}
+
+		List<byte[]> many = new ArrayList<>();
+		for (int i = 0; i < digests.size(); i++) {
+			if (claims.get(i) >= InstanceManager.getNumberOfByzantines() + 1)
+				many.add(digests.get(i));
+		}
+		return many;
+	}
+
+	// JUSTIFY_PRE_PREPARE: the first round needs nothing, the others a quorum of ROUND_CHANGEs for the round
+	//  and the value f+1 of them accepted after the highest prepared round, or else the prepared one (if any)
+	private boolean isJustified(BFTMessage<T> pre_prepare) {
+		if (pre_prepare.getRound() == 0)
+			return true;
+
+		Map<Integer, BFTMessage<T>> roundChanges = pre_prepare.getJustification();
+		if (roundChanges.size() < InstanceManager.getQuorum())
+			return false;
+		for (Map.Entry<Integer, BFTMessage<T>> entry : roundChanges.entrySet()) {
+			if (!isValidRoundChange(entry.getKey(), entry.getValue(), pre_prepare.getInstance(), pre_prepare.getRound()))
+				return false;
+		}
+
+		BFTMessage<T> highest = highestPrepared(roundChanges);
+		List<byte[]> accepted = acceptedByMany(roundChanges, highest);
+		if (!accepted.isEmpty())
+			return accepted.stream().anyMatch(digest -> Arrays.equals(digest, pre_prepare.getValueDigest()));
+		return highest == null || Arrays.equals(highest.getValueDigest(), pre_prepare.getValueDigest());
+	}
+
+	// Returns the decided COMMIT if a quorum had already committed to this value
+	public BFTMessage<T> handlePrePrepare(LinkMessage pre_prepare) throws InterruptedException {
+		return handlePrePrepare(pre_prepare, accepted -> {});
+	}
+
+	// onAccepted runs once the PRE_PREPARE is taken from the leader of its (justified) round, before it is prepared
+	public BFTMessage<T> handlePrePrepare(LinkMessage pre_prepare, Consumer<BFTMessage<T>> onAccepted) throws InterruptedException {
 		BFTMessage<T> message = (BFTMessage<T>) pre_prepare.getMessage();
+		int currentInstance = message.getInstance();
+		int round = message.getRound();
+
+		if (!message.hasValue() || !InstanceManager.isServer(pre_prepare.getSender()) ||
+			!message.hasValidSignature(pre_prepare.getSender().getPublicKey()))
+			return null;
+
+		// The value matches its digest, so it can complete a decision even if this process
+		//  doesn't take the sender as the leader (JUSTIFY_PRE_PREPARE)
+		InstanceState state = getState(currentInstance);
+		if (state == null) return null;
+		QuorumKey key = new QuorumKey(message);
+		if (!isLeader(pre_prepare.getSender(), currentInstance, round) || !isJustified(message))
+			return storeProposal(state, key, message) ? decided(key, message.getValue()) : null;
 
-		System.err.printf("%sServer %d received valid PRE_PREPARE from %d of consensus %d%n",
-			InstanceManager.getLeader(currentInstance, round).equals(process)? "[L] ": "", process.getID(), pre_prepare.getSender().getID(), message.getInstance());
+		synchronized (state) {
+			// One PRE_PREPARE per round, and never for rounds this process already left
+			if (state.decided || round < state.round || round <= state.acceptedRound)
+				return null;
+			state.acceptedRound = round;
+			if (round > state.round) {
+				state.round = round;
+				startTimer(state, currentInstance);
+			} else if (state.timer == null) {
+				startTimer(state, currentInstance);
+			}
+		}
+		seenInstance(currentInstance);
+		onAccepted.accept(message);
+
+		// The digest is computed locally, or checked against the completed value for compact proposals (see Server)
+		boolean pending = storeProposal(state, key, message);
+
+		System.err.printf("%sServer %d received valid PRE_PREPARE from %d of consensus %d round %d%n",
+			isLeader(process, currentInstance, round) ? "[L] ": "", process.getID(), pre_prepare.getSender().getID(), currentInstance, round);
 
 		// Creates PREPARE message
-		BFTMessage<T> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, message.getInstance(), message.getRound(), message.getValue());
+		BFTMessage<T> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, currentInstance, round,
+			message.getClazz(), message.getValueDigest());
+		prepare.signMessage(process.getPrivateKey());
+		if (fastPath) {
+			synchronized (state) {
+				if (state.acceptedRound == round)
+					state.acceptedPrepare = prepare;
+			}
+		}
 
 		// Broadcasts PREPARE
 		ibftBroadcast.broadcast(prepare);
+
+		if (pending)
+			return decided(key, message.getValue());
+		return null;
 	}
 
-	public void handlePrepare(LinkMessage prepare) throws InterruptedException {
+	// Returns whether the value completes a decision that was waiting for it
+	private boolean storeProposal(InstanceState state, QuorumKey key, BFTMessage<T> message) {
+		if (!message.hasValue()) return false;
+		state.proposals.putIfAbsent(key, message.getValue());
+		return state.pendingDecisions.remove(key);
+	}
+
+	// Returns the value once a quorum prepared it in the current round (null if not now, or not known yet)
+	public BFTMessage<T> handlePrepare(LinkMessage prepare) throws InterruptedException {
 		BFTMessage<T> message = (BFTMessage<T>) prepare.getMessage();
+		int currentInstance = message.getInstance();
+
+		int replica = servers.indexOf(prepare.getSender());
+		if (replica < 0 || !message.hasValidSignature(prepare.getSender().getPublicKey()))
+			return null;
 
 		System.err.printf("%sServer %d received valid PREPARE from %d of consensus %d %n",
-			InstanceManager.getLeader(message.getInstance(), round).equals(process)? "[L] ": "", process.getID(), prepare.getSender().getID(), message.getInstance());
+			isLeader(process, currentInstance, message.getRound()) ? "[L] ": "", process.getID(), prepare.getSender().getID(), currentInstance);
 
-		int count = 0;
-		synchronized (prepareCount) {
-			prepareCount.putIfAbsent(message, new HashSet<>());
-			prepareCount.get(message).add(prepare.getSender().getID());
-			count = prepareCount.get(message).size();
-		}
+		InstanceState state = getState(currentInstance);
+		if (state == null) return null;
+		QuorumKey key = new QuorumKey(message);
+		storeProposal(state, key, message);
+
+		// Kept before counting, so the certificate is complete when the quorum is reached
+		Map<Integer, BFTMessage<T>> signed = state.signedPrepares.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+		signed.putIfAbsent(prepare.getSender().getID(), message);
+		int count = state.prepares.computeIfAbsent(key, k -> new Votes(servers.size())).add(replica);
 
 		// Reaching a quorum of PREPARE messages (given by different servers)
 		if (count == InstanceManager.getQuorum()) {
-			System.err.printf("%sServer %d received valid PREPARE quorum of consensus %d with value %s %n",
-				InstanceManager.getLeader(message.getInstance(), round).equals(process)? "[L] ": "", process.getID(), message.getInstance(), message.getValue());
+			synchronized (state) {
+				// Only prepares in the round it is in
+				if (state.decided || state.round != message.getRound()) return null;
+				state.preparedRound = message.getRound();
+				state.preparedDigest = message.getValueDigest();
+				state.preparedCertificate = new TreeMap<>(signed);
+			}
 
+			System.err.printf("%sServer %d received valid PREPARE quorum of consensus %d with value %s %n",
+				isLeader(process, currentInstance, message.getRound()) ? "[L] ": "", process.getID(), currentInstance, message);
 
 			// Creates COMMIT message
-			BFTMessage<T> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, message.getInstance(), message.getRound(), message.getValue());
+			BFTMessage<T> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, currentInstance, message.getRound(),
+				message.getClazz(), message.getValueDigest());
+
+			// Broadcasts COMMIT, on the fast path only if the leader's certificate doesn't come first
+			if (fastPath && !timers.isShutdown()) {
+				timers.schedule(() -> commitLate(state, commit), fastPathTimeout, TimeUnit.MILLISECONDS);
+			} else {
+				committed.accumulateAndGet(currentInstance, Math::max);
+				ibftBroadcast.broadcast(commit);
+			}
+		}
+
+		// Fast path: the PREPAREs of all the servers, in the round the leader is in, are a commit certificate
+		if (fastPath && count == servers.size() && isLeader(process, currentInstance, message.getRound())) {
+			synchronized (state) {
+				if (state.decided || state.round != message.getRound()) return null;
+			}
+			BFTMessage<T> certificate = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, currentInstance, message.getRound(),
+				message.getClazz(), message.getValueDigest());
+			certificate.setJustification(signed);
+			Metrics.increment(Metrics.FAST_CERTIFICATES);
+			System.err.printf("[L] Server %d sending commit certificate of consensus %d%n", process.getID(), currentInstance);
+			ibftBroadcast.broadcast(certificate);
+		}
+
+		if (count == InstanceManager.getQuorum()) {
+			T value = state.proposals.get(key);
+			if (value != null)
+				return new BFTMessage<>(BFTMessage.Type.PREPARE, currentInstance, message.getRound(), value);
+		}
+
+		return null;
+	}
+
+	// Fast timer of a prepared instance: no certificate came, falls back to the COMMIT phase
+	private void commitLate(InstanceState state, BFTMessage<T> commit) {
+		synchronized (state) {
+			if (state.decided || state.fastCertificate != null) return;
+		}
+		Metrics.increment(Metrics.FAST_FALLBACKS);
+		committed.accumulateAndGet(commit.getInstance(), Math::max);
+		broadcastLater(commit);
+	}
+
+	// The PREPAREs of all the servers for the value in the round of the certificate
+	private boolean isValidFastCertificate(BFTMessage<T> certificate) {
+		Map<Integer, BFTMessage<T>> prepares = certificate.getJustification();
+		byte[] digest = certificate.getValueDigest();
+		if (digest == null || prepares.size() < servers.size())
+			return false;
+		for (Map.Entry<Integer, BFTMessage<T>> entry : prepares.entrySet()) {
+			BFTMessage<T> prepare = entry.getValue();
+			if (prepare.getRound() != certificate.getRound() || !Arrays.equals(prepare.getValueDigest(), digest)
+				|| !isValidSigned(entry.getKey(), prepare, BFTMessage.Type.PREPARE, certificate.getInstance()))
+				return false;
+		}
+		return true;
+	}
+
+	// Decides on a commit certificate, whoever forwards it
+	public BFTMessage<T> handleFastCommit(LinkMessage fastCommit) throws InterruptedException {
+		BFTMessage<T> message = (BFTMessage<T>) fastCommit.getMessage();
+		InstanceState state = getState(message.getInstance());
+		if (state == null || !InstanceManager.isServer(fastCommit.getSender()) || !isValidFastCertificate(message))
+			return null;
 
-			// Broadcasts COMMIT
-			ibftBroadcast.broadcast(commit);
+		QuorumKey key = new QuorumKey(message);
+		synchronized (state) {
+			if (state.decided || state.fastCertificate != null) return null;
+			state.fastCertificate = message;
 		}
+
+		System.err.printf("Server %d received valid commit certificate from %d of consensus %d%n",
+			process.getID(), fastCommit.getSender().getID(), message.getInstance());
+		Metrics.increment(Metrics.FAST_DECISIONS);
+
+		T value = state.proposals.get(key);
+		if (value == null) {
+			// Decided once the PRE_PREPARE arrives (see storeProposal), unless it just did
+			state.pendingDecisions.add(key);
+			value = state.proposals.get(key);
+			if (value == null || !state.pendingDecisions.remove(key)) return null;
+		}
+		return decided(key, value);
 	}
 
 	public BFTMessage<T> handleCommit(LinkMessage commit) throws InterruptedException {
 		BFTMessage<T> message = (BFTMessage<T>) commit.getMessage();
 
 		System.err.printf("%sServer %d received valid COMMIT from %d of consensus %d %n",
-			InstanceManager.getLeader(message.getInstance(), round).equals(process)? "[L] ": "", process.getID(), commit.getSender().getID(), message.getInstance());
+			isLeader(process, message.getInstance(), message.getRound()) ? "[L] ": "", process.getID(), commit.getSender().getID(), message.getInstance());
 
-		int count = 0;
-		synchronized (commitCount) {
-			commitCount.putIfAbsent(message, new HashSet<>());
-			commitCount.get(message).add(commit.getSender().getID());
-			count = commitCount.get(message).size();
+		int replica = servers.indexOf(commit.getSender());
+		InstanceState state = getState(message.getInstance());
+		if (replica < 0 || state == null) return null;
+		QuorumKey key = new QuorumKey(message);
+		boolean pending = storeProposal(state, key, message);
+
+		int count = state.commits.computeIfAbsent(key, k -> new Votes(servers.size())).add(replica);
+
+		// The sender missed the certificate and the others won't commit, it decides on it as well
+		BFTMessage<T> certificate = state.fastCertificate;
+		if (certificate != null && !commit.getSender().equals(process)) {
+			ibftBroadcast.getChannel().send(new LinkMessage(certificate, process, commit.getSender()));
+			// The COMMIT may carry the value the certificate was waiting for (a decided server's answer to our
+			//  ROUND_CHANGE), storeProposal took its pending decision already
+			return pending ? decided(key, state.proposals.get(key)) : null;
 		}
 
 		if (message.getClazz() == StrongReadIBFTValue.class)
 			System.err.println("!!!! Server " + process.getID() + " Commit count for StrongRead is " + count);
 
 		// Reaching a quorum of COMMIT messages (given by different servers)
-		if (count == InstanceManager.getQuorum()) {
+		if (count == InstanceManager.getQuorum() || pending) {
 			System.err.printf("%sServer %d received valid COMMIT quorum of consensus %d with value %s %n",
-				InstanceManager.getLeader(message.getInstance(), round).equals(process)? "[L] ": "", process.getID(), message.getInstance(), message.getValue());
+				isLeader(process, message.getInstance(), message.getRound()) ? "[L] ": "", process.getID(), message.getInstance(), message);
+
+			T value = state.proposals.get(key);
+			if (value == null) {
+				// Decided once the PRE_PREPARE arrives (see storeProposal), unless it just did
+				state.pendingDecisions.add(key);
+				value = state.proposals.get(key);
+				if (value == null || !state.pendingDecisions.remove(key)) return null;
+			}
 
 			// Performs DECIDE
-			return message;
+			return decided(key, value);
+		}
+
+		return null;
+	}
+
+	private BFTMessage<T> decided(QuorumKey key, T value) {
+		InstanceState state = getState(key.instance);
+		if (state == null) return null;
+		synchronized (state) {
+			if (!state.decided) {
+				state.decided = true;
+				state.decidedRound = key.round;
+				state.decidedValue = value;
+				if (state.timer != null)
+					state.timer.cancel(false);
+
+				if (state.firstRoundChange != 0) {
+					Metrics.increment(Metrics.RECOVERED_INSTANCES);
+					Metrics.add(Metrics.RECOVERY_NANOS, System.nanoTime() - state.firstRoundChange);
+				}
+			}
+		}
+		seenInstance(key.instance);
+		committed.accumulateAndGet(key.instance, Math::max);
+
+		return new BFTMessage<>(BFTMessage.Type.COMMIT, key.instance, key.round, value);
+	}
+
+	public void handleRoundChange(LinkMessage roundChange) throws InterruptedException {
+		BFTMessage<T> message = (BFTMessage<T>) roundChange.getMessage();
+		int sender = roundChange.getSender().getID();
+		int currentInstance = message.getInstance();
+
+		if (!isValidRoundChange(sender, message, currentInstance, message.getRound()))
+			return;
+
+		System.err.printf("Server %d received valid ROUND_CHANGE from %d of consensus %d to round %d%n",
+			process.getID(), sender, currentInstance, message.getRound());
+
+		InstanceState state = getState(currentInstance);
+		if (state == null) return;
+		BFTMessage<T> decision = null;
+		BFTMessage<T> ownRoundChange = null;
+		BFTMessage<T> pre_prepare = null;
+		synchronized (state) {
+			if (state.decided) {
+				// The sender missed the decision, our COMMIT (with the value) helps it reach the quorum
+				decision = new BFTMessage<>(BFTMessage.Type.COMMIT, currentInstance, state.decidedRound, state.decidedValue);
+			} else {
+				state.roundChanges.computeIfAbsent(message.getRound(), r -> new TreeMap<>()).put(sender, message);
+
+				// f+1 processes are in higher rounds, so at least a correct one timed out: join the lowest of them
+				Set<Integer> ahead = new HashSet<>();
+				for (Map<Integer, BFTMessage<T>> senders : state.roundChanges.tailMap(state.round, false).values())
+					ahead.addAll(senders.keySet());
+				if (ahead.size() >= InstanceManager.getNumberOfByzantines() + 1) {
+					ownRoundChange = moveToRound(state, currentInstance, state.roundChanges.higherKey(state.round));
+					Metrics.increment(Metrics.ROUND_CHANGES);
+				}
+
+				pre_prepare = roundChangeProposal(state, currentInstance);
+			}
+		}
+
+		if (decision != null) {
+			ibftBroadcast.getChannel().send(new LinkMessage(decision, process, roundChange.getSender()));
+			return;
+		}
+		if (ownRoundChange != null) {
+			System.err.printf("Server %d joining round %d of consensus %d%n", process.getID(), ownRoundChange.getRound(), currentInstance);
+			ibftBroadcast.broadcast(ownRoundChange);
+		}
+		if (pre_prepare != null) {
+			System.err.printf("[L] Server %d starting round %d of consensus %d%n", process.getID(), pre_prepare.getRound(), currentInstance);
+			propose(pre_prepare);
+		}
+	}
+
+	// PRE_PREPARE of the new leader once it has a quorum of ROUND_CHANGEs for its round
+	private BFTMessage<T> roundChangeProposal(InstanceState state, int consensusInstance) {
+		Map<Integer, BFTMessage<T>> roundChanges = state.roundChanges.get(state.round);
+		if (state.round == 0 || state.proposedRound >= state.round || roundChanges == null
+			|| roundChanges.size() < InstanceManager.getQuorum() || !isLeader(process, consensusInstance, state.round))
+			return null;
+
+		T value;
+		BFTMessage<T> highest = highestPrepared(roundChanges);
+		List<byte[]> accepted = acceptedByMany(roundChanges, highest);
+		if (!accepted.isEmpty()) {
+			value = acceptedValue(state, consensusInstance, roundChanges, accepted.get(0));
+			// Waits for the accepted value, as for a prepared one
+			if (value == null) return null;
+		} else if (highest == null) {
+			value = fallbackValue.apply(consensusInstance);
+			if (value == null) value = IBFTValueRegistry.newValue(clazz);
+		} else if (highest.hasValue()) {
+			value = highest.getValue();
+		} else {
+			value = state.proposals.get(new QuorumKey(consensusInstance, highest.getPreparedRound(), highest.getValueDigest()));
+			// Waits for a ROUND_CHANGE that carries the prepared value
+			if (value == null) return null;
 		}
 
+		state.proposedRound = state.round;
+		BFTMessage<T> pre_prepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, consensusInstance, state.round, value);
+		pre_prepare.setJustification(roundChanges);
+		return pre_prepare;
+	}
+
+	// The accepted value of the given digest, carried by a ROUND_CHANGE or received in its round
+	private T acceptedValue(InstanceState state, int consensusInstance, Map<Integer, BFTMessage<T>> roundChanges, byte[] digest) {
+		for (BFTMessage<T> roundChange : roundChanges.values()) {
+			if (roundChange.hasValue() && Arrays.equals(roundChange.getValueDigest(), digest))
+				return roundChange.getValue();
+		}
+		for (BFTMessage<T> roundChange : roundChanges.values()) {
+			BFTMessage<T> accepted = roundChange.getAcceptedPrepare();
+			if (accepted == null || !Arrays.equals(accepted.getValueDigest(), digest)) continue;
+			T value = state.proposals.get(new QuorumKey(consensusInstance, accepted.getRound(), digest));
+			if (value != null) return value;
+		}
 		return null;
 	}
 }
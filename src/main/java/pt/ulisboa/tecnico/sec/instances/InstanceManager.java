@@ -5,6 +5,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.net.UnknownHostException;
 import java.security.PublicKey;
 import java.util.stream.Collectors;
@@ -20,9 +21,11 @@ import pt.ulisboa.tecnico.sec.instances.commands.CreateAccountCommand;
 import pt.ulisboa.tecnico.sec.instances.commands.CheckBalanceCommand;
 import pt.ulisboa.tecnico.sec.instances.commands.TransferCommand;
 import pt.ulisboa.tecnico.sec.instances.commands.InvalidCommandException;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
 import pt.ulisboa.tecnico.sec.tes.TESAccount;
 import pt.ulisboa.tecnico.sec.tes.transactions.CheckBalanceTransaction.ReadType;
 import pt.ulisboa.tecnico.sec.utils.Logger;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
 
 public class InstanceManager {
 
@@ -34,17 +37,33 @@ public class InstanceManager {
 
     private static List<HDLProcess> _systemsProcesses = new ArrayList<>();
 
+    // Optional system parameters given in the config file (P [name] [value])
+    private static Map<String, String> _parameters = new HashMap<>();
+
     public static void setSystemParameters(List<HDLProcess> processes) {
+        long start = System.currentTimeMillis();
+
         KeyHandler.cleanKeys();
-        for (HDLProcess p: processes) {
-            KeyHandler.generateKeyPair(p.getID());
-        }
-        for (int i = 0; i < processes.size(); i++) {
-            for (int j = i; j < processes.size(); j++) {
-                KeyHandler.generateKeyFor(processes.get(i).getID(), processes.get(j).getID());
-            }
+        switch (KeyHandler.getProvisioningMode()) {
+            case KEYSTORE:
+                KeyHandler.generateKeystore(processes.stream().map(HDLProcess::getID).collect(Collectors.toList()));
+                break;
+            case FILES:
+            default:
+                for (HDLProcess p: processes) {
+                    KeyHandler.generateKeyPair(p.getID());
+                }
+                for (int i = 0; i < processes.size(); i++) {
+                    for (int j = i; j < processes.size(); j++) {
+                        KeyHandler.generateKeyFor(processes.get(i).getID(), processes.get(j).getID());
+                    }
+                }
+                break;
         }
         _systemsProcesses = processes;
+
+        Logger.Logln(String.format("Key provisioning (%s) of %d processes took %d ms",
+            KeyHandler.getProvisioningMode(), processes.size(), System.currentTimeMillis() - start));
     }
 
     public static void setSystemParameters(List<Client> clients, List<Server> servers, int f) {
@@ -54,6 +73,9 @@ public class InstanceManager {
 
         // Prepare static system information
 
+        KeyHandler.setProvisioningMode(getParameter("keys", "files").equals("keystore") ?
+            KeyHandler.ProvisioningMode.KEYSTORE : KeyHandler.ProvisioningMode.FILES);
+
         _numByzantineProcesses = f;
         if (_servers.size() < (3 * _numByzantineProcesses + 1))
             throw new IllegalStateException(String.format("The system cannot support %d byzantine processes.%n" +
@@ -88,7 +110,11 @@ public class InstanceManager {
     }
 
     public static HDLProcess getHDLProcess(PublicKey key) {
-        return _systemsProcesses.stream().filter(p -> p.getPublicKey().equals(key)).findAny().orElse(null);
+        return _systemsProcesses.stream().filter(p -> KeyHandler.sameKey(p.getPublicKey(), key)).findAny().orElse(null);
+    }
+
+    public static HDLProcess getHDLProcess(AccountId id) {
+        return _systemsProcesses.stream().filter(p -> id.isOwnedBy(p.getPublicKey())).findAny().orElse(null);
     }
 
     public static List<HDLProcess> getSystemProcesses() {
@@ -99,10 +125,17 @@ public class InstanceManager {
         return _servers.stream().map(s -> (HDLProcess) s).collect(Collectors.toList());
     }
 
+    // Leader as seen by a process without history (each Consensus keeps its own LeaderPolicy)
     public static HDLProcess getLeader(int consensusInstance, int round) {
-        // for IBFT consensus with view change use this
-        // return servers.get((consensusInstance + round) % servers.size());
-        return _servers.get(0);
+        return newLeaderPolicy(0).getLeader(getAllParticipants(), consensusInstance, round);
+    }
+
+    public static LeaderPolicy newLeaderPolicy(int lag) {
+        return LeaderPolicy.create(getParameter("leader-policy", LeaderPolicy.DEFAULT), lag);
+    }
+
+    public static boolean isServer(HDLProcess process) {
+        return process != null && _servers.contains(process);
     }
 
     public static int getTotalNumberServers() {
@@ -117,6 +150,19 @@ public class InstanceManager {
         return _quorum;
     }
 
+    public static String getParameter(String name, String defaultValue) {
+        return _parameters.getOrDefault(name, defaultValue);
+    }
+
+    public static int getIntParameter(String name, int defaultValue) {
+        String value = _parameters.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static void setParameter(String name, String value) {
+        _parameters.put(name, value);
+    }
+
     public static void runSystem() {
         if (_clients.isEmpty() || _servers.isEmpty())
             throw new IllegalArgumentException("No client or server processes were created");
@@ -141,7 +187,7 @@ public class InstanceManager {
 
         for (Server s1 : _servers) {
             for (Server s2 : _servers) {
-                s1.getTESState(-1).addAccount(new TESAccount(s2.getPublicKey()));
+                s1.getTESState(-1).addAccount(new TESAccount(AccountId.of(s2.getPublicKey())));
             }
         }
 
@@ -193,6 +239,8 @@ public class InstanceManager {
             Logger.Logln("Blockchain State in server " + server.getID() + ": " + server.getBlockChainState(), System.out);
         }
 
+        Metrics.add(Metrics.PEAK_THREADS, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        Logger.Logln("Metrics: " + Metrics.dump(), System.out);
         Logger.Logln("Done!");
     }
 
@@ -200,6 +248,7 @@ public class InstanceManager {
         // [Number of byzantine processes] (ALWAYS the first line)
         // C [MESSAGE]
         // S [PORT]
+        // P [NAME] [VALUE]
         // #[COMMENT]
     public static void main(String[] args) throws IOException, IllegalStateException {
         if (!List.of(1, 2).contains(args.length) || (args.length == 2 && !args[1].equals("-debug"))) {
@@ -239,6 +288,9 @@ public class InstanceManager {
                             case 'T':   // create command > T <type> <sender> [other] [amount]
                                 addTransaction(clients, line);
                                 break;
+                            case 'P':   // system parameter > P <name> <value>
+                                addParameter(line);
+                                break;
                             default:
                                 Logger.Logln("Unknown command on line + '" + line + "'");
                                 break;
@@ -287,6 +339,15 @@ public class InstanceManager {
         servers.add(new Server(id, port));
     }
 
+    private static void addParameter(String line) throws InvalidCommandException {
+        if (!checkLineFormat(line, "P [a-z-]+ [A-Za-z0-9.-]+")) {
+            throw new InvalidCommandException(line, "System Parameter");
+        }
+
+        String[] args = line.split(" ");
+        setParameter(args[1], args[2]);
+    }
+
     private static void addCreateAccountTransaction(List<Client> clients, String line) throws NumberFormatException, InvalidCommandException {
         if (!checkLineFormat(line, "T C [0-9]+")) {
             throw new InvalidCommandException(line, "Create Account Transaction");
@@ -0,0 +1,97 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+
+// Leader of each (instance, round), selected in the config file (P leader-policy [fixed|round-robin|reputation]).
+//  Every round change moves to the next candidate, so a faulty leader only stalls one round.
+public abstract class LeaderPolicy {
+
+    public static final String DEFAULT = "fixed";
+
+    public static LeaderPolicy create(String name, int lag) throws IllegalStateException {
+        switch (name) {
+            case "fixed":
+                return new Fixed();
+            case "round-robin":
+                return new RoundRobin();
+            case "reputation":
+                return new Reputation(lag);
+            default:
+                throw new IllegalStateException("[ERROR] Unknown leader policy " + name);
+        }
+    }
+
+    // Null when this process doesn't know it yet (see Reputation)
+    public abstract HDLProcess getLeader(List<HDLProcess> servers, int instance, int round);
+
+    // Called in instance order with the server that proposed the applied value (null if unknown)
+    public void applied(List<HDLProcess> servers, int instance, HDLProcess proposer) {
+    }
+
+    // The first server leads every instance, as long as it is up
+    private static final class Fixed extends LeaderPolicy {
+        @Override
+        public HDLProcess getLeader(List<HDLProcess> servers, int instance, int round) {
+            return servers.get(round % servers.size());
+        }
+    }
+
+    // Spreads proposals (bandwidth and signatures) over all servers
+    private static final class RoundRobin extends LeaderPolicy {
+        @Override
+        public HDLProcess getLeader(List<HDLProcess> servers, int instance, int round) {
+            return servers.get((instance + round) % servers.size());
+        }
+    }
+
+    // Round robin over the servers that didn't fail to lead any of the last WINDOW instances. Only decided
+    //  values are used, so correct replicas agree: the first-round leader failed when the decided block was
+    //  proposed by someone else. Instance i looks at the ones before i - lag, which the leader of i already
+    //  applied (it never has more than lag instances undecided).
+    private static final class Reputation extends LeaderPolicy {
+        private static final int WINDOW = 16;
+
+        private final int lag;
+        // Failed first-round leader of each applied instance (null if it succeeded)
+        private final TreeMap<Integer, HDLProcess> failed = new TreeMap<>();
+        private int known = 0;
+
+        private Reputation(int lag) {
+            this.lag = lag;
+        }
+
+        @Override
+        public synchronized HDLProcess getLeader(List<HDLProcess> servers, int instance, int round) {
+            int end = instance - lag;
+            if (end > known)
+                return null;
+
+            Set<HDLProcess> excluded = new HashSet<>();
+            for (HDLProcess leader : failed.subMap(end - WINDOW, end).values()) {
+                if (leader != null) excluded.add(leader);
+            }
+
+            List<HDLProcess> candidates = new ArrayList<>(servers);
+            candidates.removeAll(excluded);
+            if (candidates.isEmpty())
+                candidates = servers;
+            return candidates.get((instance + round) % candidates.size());
+        }
+
+        @Override
+        public synchronized void applied(List<HDLProcess> servers, int instance, HDLProcess proposer) {
+            if (instance != known) return;
+
+            HDLProcess leader = getLeader(servers, instance, 0);
+            failed.put(instance, leader.equals(proposer) ? null : leader);
+            known = instance + 1;
+            failed.headMap(known - lag - WINDOW).clear();
+        }
+    }
+}
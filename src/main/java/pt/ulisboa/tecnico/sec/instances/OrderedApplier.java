@@ -0,0 +1,86 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+
+// Applies decided values strictly in instance order, from a thread of its own. With several instances in
+//  flight decisions may arrive out of order, so they are buffered until every previous instance is applied.
+//  An action that fails leaves the state half applied: the applier stops there and reports the failure.
+public class OrderedApplier<T> {
+
+    @FunctionalInterface
+    public interface Action<T> {
+        void apply(int instance, T value) throws InterruptedException;
+    }
+
+    private final Action<T> action;
+    private final Consumer<RuntimeException> onFailure;
+    private final TreeMap<Integer, T> decided = new TreeMap<>();
+    private int next;
+    private Thread thread;
+
+    public OrderedApplier(int firstInstance, Action<T> action) {
+        this(firstInstance, action, e -> {});
+    }
+
+    public OrderedApplier(int firstInstance, Action<T> action, Consumer<RuntimeException> onFailure) {
+        this.next = firstInstance;
+        this.action = action;
+        this.onFailure = onFailure;
+    }
+
+    public void submit(int instance, T value) {
+        synchronized (decided) {
+            // Already applied or buffered
+            if (instance < next || decided.containsKey(instance)) return;
+
+            if (instance != next) Metrics.increment(Metrics.OUT_OF_ORDER_DECISIONS);
+            decided.put(instance, value);
+            decided.notifyAll();
+        }
+    }
+
+    // Instance the applier is waiting for
+    public int getNextInstance() {
+        synchronized (decided) {
+            return next;
+        }
+    }
+
+    public void start(String name) {
+        thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Map.Entry<Integer, T> entry;
+                    synchronized (decided) {
+                        while (decided.isEmpty() || decided.firstKey() != next)
+                            decided.wait();
+                        entry = decided.pollFirstEntry();
+                    }
+
+                    action.apply(entry.getKey(), entry.getValue());
+
+                    synchronized (decided) {
+                        next++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            } catch (RuntimeException e) {
+                // Later instances would build on a half applied one, so the next instance never moves past it
+                e.printStackTrace(System.out);
+                System.out.flush();
+                onFailure.accept(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null) thread.interrupt();
+    }
+}
@@ -0,0 +1,164 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue.Read;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+
+// Strong reads waiting for a read-consensus instance. The reads that arrive within a window are ordered
+//  together: once it ends, the leader of the next read instance proposes every pending read that isn't in a
+//  proposal yet, so a read costs a share of one instance instead of an instance of its own.
+public class ReadBatcher {
+    public static final int DEFAULT_WINDOW = 5; // ms
+    public static final int DEFAULT_MAX_READS = 1000;
+    // Pending reads not in any proposal, and in one that didn't tell its instance yet
+    private static final int UNPROPOSED = -1;
+    private static final int UNASSIGNED = Integer.MAX_VALUE;
+
+    @FunctionalInterface
+    public interface Action {
+        // Called from the batcher thread once the window ends
+        void tick() throws InterruptedException;
+    }
+
+    public static final class Pending {
+        private final HDLProcess client;
+        private final int timestamp;
+        private final long arrival; // ns
+        private int proposedIn = UNPROPOSED;
+
+        private Pending(HDLProcess client, int timestamp) {
+            this.client = client;
+            this.timestamp = timestamp;
+            this.arrival = System.nanoTime();
+        }
+
+        public HDLProcess getClient() {
+            return client;
+        }
+
+        // The last timestamp when the read arrived, the read can't be answered from an older state
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        public long getArrival() {
+            return arrival;
+        }
+    }
+
+    private final long window; // ms
+    private final int maxReads;
+    private final Action action;
+    private final ScheduledExecutorService executor;
+    // Guarded by this, in arrival order
+    private final Map<Read, Pending> pending = new LinkedHashMap<>();
+    // Nonce of the last decided read of each client, clients wait for a read before sending the next one
+    private final Map<AccountId, Integer> decidedNonces = new HashMap<>();
+    private ScheduledFuture<?> tick;
+
+    public ReadBatcher(String name, long window, int maxReads, Action action) {
+        this.window = Math.max(0, window);
+        this.maxReads = Math.max(1, maxReads);
+        this.action = action;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getMaxReads() {
+        return maxReads;
+    }
+
+    // False if the read is already pending, or arrived after it was decided (answered by other replicas)
+    public synchronized boolean add(Read read, HDLProcess client, int timestamp) {
+        Integer decided = decidedNonces.get(read.getClientId());
+        if (decided != null && read.getNonce() <= decided) return false;
+        if (pending.putIfAbsent(read, new Pending(client, timestamp)) != null) return false;
+        schedule();
+        return true;
+    }
+
+    // Ends the window later, unless it is already running
+    public synchronized void schedule() {
+        if (tick != null || pending.isEmpty()) return;
+        try {
+            tick = executor.schedule(this::tick, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    private void tick() {
+        synchronized (this) {
+            tick = null;
+        }
+        try {
+            action.tick();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.out);
+            System.out.flush();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public synchronized Pending get(Read read) {
+        return pending.get(read);
+    }
+
+    // The oldest pending reads that aren't in any proposal yet, up to the batch limit, now in one
+    public synchronized List<Read> nextBatch() {
+        List<Read> batch = new ArrayList<>();
+        for (Map.Entry<Read, Pending> entry : pending.entrySet()) {
+            if (batch.size() == maxReads) break;
+            if (entry.getValue().proposedIn != UNPROPOSED) continue;
+            entry.getValue().proposedIn = UNASSIGNED;
+            batch.add(entry.getKey());
+        }
+        return batch;
+    }
+
+    // The reads of a proposal of the given instance (negative if it didn't start)
+    public synchronized void proposed(Collection<Read> reads, int instance) {
+        for (Read read : reads) {
+            Pending p = pending.get(read);
+            if (p != null) p.proposedIn = Math.max(instance, UNPROPOSED);
+        }
+    }
+
+    // Removes a decided read, null if it wasn't pending here
+    public synchronized Pending remove(Read read) {
+        decidedNonces.merge(read.getClientId(), read.getNonce(), Math::max);
+        return pending.remove(read);
+    }
+
+    // Once an instance is decided, the reads still pending from its proposals (or older ones) were left out
+    //  of the decision and go in the next batch
+    public synchronized void decided(int instance) {
+        for (Pending p : pending.values())
+            if (p.proposedIn <= instance) p.proposedIn = UNPROPOSED;
+        schedule();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
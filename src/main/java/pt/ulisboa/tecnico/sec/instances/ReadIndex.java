@@ -0,0 +1,128 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue.Read;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+
+// Strong reads answered without ordering them (P strong-reads index). Every server a read reaches tells the
+//  others the highest instance it committed; the highest of a quorum of those covers every instance decided
+//  before the read, as each had a quorum of COMMITs, which intersects this one in a correct server. The read
+//  is answered from the state of that instance, once applied.
+public class ReadIndex {
+
+    public static final class Ready {
+        private final Read read;
+        private final HDLProcess client;
+        private final int index;
+        private final long arrival; // ns
+
+        private Ready(State state) {
+            this.read = state.read;
+            this.client = state.client;
+            this.index = state.index;
+            this.arrival = state.arrival;
+        }
+
+        public Read getRead() {
+            return read;
+        }
+
+        public HDLProcess getClient() {
+            return client;
+        }
+
+        // Instance whose state answers the read
+        public int getIndex() {
+            return index;
+        }
+
+        public long getArrival() {
+            return arrival;
+        }
+    }
+
+    private static final class State {
+        private Read read;
+        private HDLProcess client;
+        private long arrival;
+        private final Set<Integer> reporters = new HashSet<>();
+        private int index = -1;
+    }
+
+    private final int quorum;
+    // Guarded by this, by (client, nonce); the reports may arrive before the read itself
+    private final Map<SimpleImmutableEntry<AccountId, Integer>, State> reads = new HashMap<>();
+    // Nonce of the last answered read of each client, clients wait for a read before sending the next one
+    private final Map<AccountId, Integer> answeredNonces = new HashMap<>();
+    // Guarded by this, by (client, replica): nonce of the last report of a read that hadn't reached this server.
+    //  Servers report a client's reads in order, so only the latest is kept and a faulty server can't make up
+    //  more than one read per client
+    private final Map<SimpleImmutableEntry<AccountId, Integer>, Integer> earlyReports = new HashMap<>();
+
+    public ReadIndex(int quorum) {
+        this.quorum = quorum;
+    }
+
+    private boolean answered(AccountId client, int nonce) {
+        Integer answered = answeredNonces.get(client);
+        return answered != null && nonce <= answered;
+    }
+
+    // False if the read is already waiting, or was answered, and its report must not be sent again
+    public synchronized boolean add(Read read, HDLProcess client) {
+        if (answered(read.getClientId(), read.getNonce())) return false;
+        State state = reads.computeIfAbsent(new SimpleImmutableEntry<>(read.getClientId(), read.getNonce()), k -> new State());
+        if (state.read != null) return false;
+
+        state.read = read;
+        state.client = client;
+        state.arrival = System.nanoTime();
+        return true;
+    }
+
+    // A report of the instance a server committed. Reports at or over the limit (beyond what could have been
+    //  started) aren't counted. Returns the read once it is due, only once.
+    public synchronized Ready report(AccountId client, int nonce, int replica, int committed, int limit) {
+        if (committed >= limit || answered(client, nonce)) return null;
+        SimpleImmutableEntry<AccountId, Integer> key = new SimpleImmutableEntry<>(client, nonce);
+        State state = reads.get(key);
+        if (state == null || state.read == null) {
+            Integer previous = earlyReports.get(new SimpleImmutableEntry<>(client, replica));
+            if (previous != null && previous > nonce) return null;
+            earlyReports.put(new SimpleImmutableEntry<>(client, replica), nonce);
+            if (previous != null && previous < nonce) withdraw(client, previous, replica);
+            if (state == null) {
+                state = new State();
+                reads.put(key, state);
+            }
+        }
+        if (!state.reporters.add(replica)) return null;
+        state.index = Math.max(state.index, committed);
+        if (state.read == null || state.reporters.size() < quorum) return null;
+
+        answeredNonces.merge(client, nonce, Math::max);
+        // The reports of earlier reads of the client that never reached this server aren't needed anymore
+        reads.keySet().removeIf(k -> k.getKey().equals(client) && k.getValue() <= nonce);
+        earlyReports.entrySet().removeIf(e -> e.getKey().getKey().equals(client) && e.getValue() <= nonce);
+        return new Ready(state);
+    }
+
+    // The replica moved on to a later read of the client, its report of a read that never got here is dropped
+    private void withdraw(AccountId client, int nonce, int replica) {
+        SimpleImmutableEntry<AccountId, Integer> key = new SimpleImmutableEntry<>(client, nonce);
+        State state = reads.get(key);
+        if (state == null || state.read != null) return;
+        state.reporters.remove(replica);
+        if (state.reporters.isEmpty()) reads.remove(key);
+    }
+
+    public synchronized int size() {
+        return reads.size();
+    }
+}
@@ -1,43 +1,75 @@
 package pt.ulisboa.tecnico.sec.instances;
 
+import java.lang.management.ManagementFactory;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.security.PublicKey;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.TreeMap;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.blockchain.BlockExecutor;
 import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
 import pt.ulisboa.tecnico.sec.blockchain.BlockchainState;
+import pt.ulisboa.tecnico.sec.blockchain.ExecutedTransactions;
+import pt.ulisboa.tecnico.sec.blockchain.Mempool;
 import pt.ulisboa.tecnico.sec.broadcasts.BestEffortBroadcast;
 import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
 import pt.ulisboa.tecnico.sec.links.AuthenticatedPerfectLink;
 import pt.ulisboa.tecnico.sec.links.Channel;
 import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchAckMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchCertificateMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchRequestMessage;
 import pt.ulisboa.tecnico.sec.messages.CheckBalanceResponseMessage;
 import pt.ulisboa.tecnico.sec.messages.ClientRequestMessage;
 import pt.ulisboa.tecnico.sec.messages.ClientResponseMessage;
 import pt.ulisboa.tecnico.sec.messages.LinkMessage;
 import pt.ulisboa.tecnico.sec.messages.Message;
 import pt.ulisboa.tecnico.sec.messages.PropagateChangesMessage;
+import pt.ulisboa.tecnico.sec.messages.ReadIndexMessage;
+import pt.ulisboa.tecnico.sec.messages.TransactionForwardMessage;
+import pt.ulisboa.tecnico.sec.messages.TransactionRequestMessage;
+import pt.ulisboa.tecnico.sec.messages.TransactionResponseMessage;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.KeyRegistry;
 import pt.ulisboa.tecnico.sec.tes.SignedTESAccount;
 import pt.ulisboa.tecnico.sec.tes.TESAccount;
 import pt.ulisboa.tecnico.sec.tes.TESState;
 import pt.ulisboa.tecnico.sec.tes.transactions.CheckBalanceTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
 
 
 @SuppressWarnings("unchecked")
 public class Server extends ByzantineProcess {
 	private static final Integer SNAPSHOT_BLOCK_SIZE = 3;
+	private static final long FETCH_TIMEOUT = 1000; // ms
+	// Instance of a proposed transaction until the leader gets one for its block
+	private static final int UNASSIGNED = Integer.MAX_VALUE;
 
     // FLAG FOR BYZANTINE BEHAVIOUR
     private boolean isByzantine = false;
@@ -45,26 +77,78 @@ public class Server extends ByzantineProcess {
 	// For replay attack
 	private List<Message> receivedMessages;
 
-	private boolean running = false;
+	private volatile boolean running = false;
 	private boolean kys = true;
 	private Channel channel;
 	private BestEffortBroadcast ibftBroadcast;
-	private List<SimpleImmutableEntry<Transaction, HDLProcess>> pendingRequests;
+	// Client transactions waiting to be decided
+	private Mempool mempool;
 	private BlockchainState blockchainState;
-	private BlockchainNode toPropose;
+	private BlockBuilder blockBuilder;
+	// Cuts the blocks of the client requests this server receives
+	private BlockCutter blockCutter;
+	// Batches disseminated apart from ordering, null unless P batch-dissemination 1
+	private BatchPool batchPool;
+	// Cuts the batches of this server's share of the clients, with a builder of its own
+	private BlockCutter batchCutter;
+	private BlockBuilder batchBuilder;
+	private int batchTimeout;
+	// Expires stored batches, and batches the requests of other servers' clients whose batch didn't come in time
+	private ScheduledExecutorService batchTimers;
+	// Pending fallbacks of those requests, by short id, cancelled once their batch is certified or they are decided
+	private Map<Long, ScheduledFuture<?>> batchFallbacks;
+	// Batches of a proposal this server is fetching, by Base64 digest
+	private Map<String, CompletableFuture<List<Transaction>>> batchFetches;
+	// Followers forward client requests to the leader instead of cutting blocks (P forward-to-leader 1)
+	private boolean forwardToLeader;
 	private Map<Integer, TESState> tesStates;
+	// Valid client transactions by short id, to complete compact PRE_PREPAREs
+	private Map<Long, Transaction> knownTransactions;
+	// Instance each known transaction is kept for (the last committed one when it was learned, or the one that
+	//  decided it); it is dropped once that instance goes below the low watermark, unless still pending
+	private Map<Long, Integer> knownUntil;
+	// Low watermark of the last pruning, only used by the applier
+	private int prunedWatermark = 0;
+	// Transactions asked to the leader, by instance
+	private Map<Integer, SimpleImmutableEntry<HDLProcess, CompletableFuture<List<Transaction>>>> pendingFetches;
+	// Pending transactions already in some proposal, by short id, with the instance they were proposed in
+	private Map<Long, Integer> proposedTransactions;
+	// Executed transactions, a round change may order a transaction twice
+	private ExecutedTransactions executedTransactions;
+	// Executes blocks at their PREPARE quorum and answers clients tentatively (P speculative-execution 1)
+	private boolean speculative;
+	// Guards the speculation state below
+	private Object speculationLock = new Object();
+	// Tentative execution of the instance after the last applied one, if it was prepared
+	private Speculation speculation;
+	// Blocks prepared beyond the next instance, executed once their previous instance is applied
+	private NavigableMap<Integer, BlockchainNode> preparedBlocks;
+	private int appliedInstance = -1;
+	private boolean applying = false;
 
 	// TES related variables
 	private Consensus<BlockchainNode> consensus;
 	private Consensus<StrongReadIBFTValue> readConsensus;
-	private Object toProposeLock = new Object();
-	private Map<PublicKey, Integer> clientsSeqNum;
+	// Strong reads waiting for a read-consensus instance, ordered in batches
+	private ReadBatcher readBatcher;
+	// Answers strong reads from a quorum's read index instead of ordering them (P strong-reads index)
+	private ReadIndex readIndex;
+	// Answers of decided strong reads waiting for their timestamp to be applied (guarded by itself)
+	private NavigableMap<Integer, List<Runnable>> deferredReads;
+	// Decided blocks, applied in instance order
+	private OrderedApplier<BlockchainNode> applier;
+	// Applies the transactions of a block, those on disjoint accounts in parallel
+	private BlockExecutor blockExecutor;
+	// Guards choosing the transactions of a proposal
+	private Object proposalLock = new Object();
+	private Map<AccountId, Integer> clientsSeqNum;
+	private KeyRegistry keyRegistry;
 	private Integer snapshotCounter = 0;
 	private List<Transaction> snapshotTransaction;
 
 	// For each block, keep a collection of signed states for each account.
 	// This collection is a set so that no attacker can send multiple of the same state.
-	private Map<Integer, Map<PublicKey, Set<SignedTESAccount>>> snapshots;
+	private Map<Integer, Map<AccountId, Set<SignedTESAccount>>> snapshots;
 
     public Server(int id, int port, boolean isByzantine) throws UnknownHostException {
         this(id, port);
@@ -74,11 +158,18 @@ public class Server extends ByzantineProcess {
 	public Server(int id, int port) throws UnknownHostException {
 		super(id, port);
 		channel = new AuthenticatedPerfectLink(this);
-		pendingRequests = new ArrayList<>();
 		blockchainState = new BlockchainState();
-		toPropose = new BlockchainNode();
 		tesStates = new ConcurrentHashMap<>();
+		knownTransactions = new ConcurrentHashMap<>();
+		knownUntil = new ConcurrentHashMap<>();
+		pendingFetches = new ConcurrentHashMap<>();
+		batchFetches = new ConcurrentHashMap<>();
+		batchFallbacks = new ConcurrentHashMap<>();
+		proposedTransactions = new ConcurrentHashMap<>();
+		deferredReads = new TreeMap<>();
+		preparedBlocks = new TreeMap<>();
 		clientsSeqNum = new ConcurrentHashMap<>();
+		keyRegistry = new KeyRegistry();
 		snapshots = new ConcurrentHashMap<>();
 		snapshotTransaction = new ArrayList<>();
 		receivedMessages = new ArrayList<>();
@@ -168,8 +259,88 @@ public class Server extends ByzantineProcess {
 
 	public void execute() throws IllegalThreadStateException {
 		ibftBroadcast = new BestEffortBroadcast(channel, InstanceManager.getAllParticipants());
-		consensus = new Consensus<>(this, ibftBroadcast);
-		readConsensus = new Consensus<>(this, ibftBroadcast);
+		blockBuilder = new BlockBuilder(
+			InstanceManager.getIntParameter("block-max-transactions", BlockBuilder.DEFAULT_MAX_TRANSACTIONS),
+			InstanceManager.getIntParameter("block-max-bytes", BlockBuilder.DEFAULT_MAX_BYTES),
+			InstanceManager.getIntParameter("block-latency", BlockBuilder.DEFAULT_LATENCY));
+		mempool = new Mempool(InstanceManager.getIntParameter("mempool-capacity", Mempool.DEFAULT_CAPACITY),
+			InstanceManager.getIntParameter("mempool-max-age", Mempool.DEFAULT_MAX_AGE),
+			t -> proposedTransactions.containsKey(BlockchainNode.shortId(t)),
+			// May be called while building a block, the client is answered from another thread
+			evicted -> new Thread(() -> {
+				try {
+					sendClientResponse(evicted.getClient(), ClientResponseMessage.Status.REJECTED, -1, evicted.getTransaction().getNonce());
+				} catch (IllegalStateException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			}).start());
+		forwardToLeader = InstanceManager.getIntParameter("forward-to-leader", 0) != 0;
+		speculative = InstanceManager.getIntParameter("speculative-execution", 0) != 0;
+		blockCutter = new BlockCutter("block-cutter-" + this._id, blockBuilder, AccountId.of(this.getPublicKey()), (block, byDeadline) -> {
+			System.err.printf("[%d] Cut block %s (deadline: %b)%n", this._id, block, byDeadline);
+			proposePending(byDeadline);
+		});
+		if (InstanceManager.getIntParameter("batch-dissemination", 0) != 0) {
+			// Stored batches are kept as long as their requests may wait in the mempool
+			batchPool = new BatchPool(InstanceManager.getNumberOfByzantines() + 1,
+				InstanceManager.getIntParameter("mempool-max-age", Mempool.DEFAULT_MAX_AGE));
+			batchBuilder = new BlockBuilder(blockBuilder.getMaxTransactions(), blockBuilder.getMaxBytes(), blockBuilder.getLatency());
+			batchTimeout = InstanceManager.getIntParameter("batch-timeout", BatchPool.DEFAULT_TIMEOUT);
+			batchCutter = new BlockCutter("batch-cutter-" + this._id, batchBuilder, AccountId.of(this.getPublicKey()), this::disseminate);
+			batchTimers = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "batch-timers-" + this._id);
+				thread.setDaemon(true);
+				return thread;
+			});
+			batchTimers.scheduleWithFixedDelay(this::expireBatches, batchTimeout, batchTimeout, TimeUnit.MILLISECONDS);
+		}
+		// Certified batches are proposed by a single leader, whichever clients they come from
+		consensus = new Consensus<>(this, ibftBroadcast, BlockchainNode.class, this::fallbackBlock,
+			batchPool != null ? 1 : InstanceManager.getIntParameter("lanes", 1));
+		// Ids are kept for a checkpoint interval, older transactions are told by their nonce
+		executedTransactions = new ExecutedTransactions(consensus.getCheckpointInterval());
+		readConsensus = new Consensus<>(this, ibftBroadcast, StrongReadIBFTValue.class, this::pendingReads);
+		readBatcher = new ReadBatcher("read-batcher-" + this._id,
+			InstanceManager.getIntParameter("read-batch-window", ReadBatcher.DEFAULT_WINDOW),
+			InstanceManager.getIntParameter("read-batch-max", ReadBatcher.DEFAULT_MAX_READS),
+			this::proposeReads);
+		if (InstanceManager.getParameter("strong-reads", "batch").equals("index"))
+			readIndex = new ReadIndex(InstanceManager.getQuorum());
+		blockExecutor = new BlockExecutor(InstanceManager.getIntParameter("execution-threads", BlockExecutor.DEFAULT_THREADS));
+		applier = new OrderedApplier<>(0, (instance, block) -> {
+			long cpu = threadCpuTime();
+			apply(instance, block);
+			HDLProcess proposer = block.getProducer() == null ? null : InstanceManager.getHDLProcess(block.getProducer());
+			consensus.instanceApplied(instance, proposer);
+			answerDeferredReads(instance);
+			// Strong reads of a timestamp are decided long before its instance goes below the low watermark
+			int lowWatermark = consensus.getLowWatermark();
+			tesStates.keySet().removeIf(timestamp -> timestamp < lowWatermark - 1);
+			if (batchPool != null) batchPool.collect(lowWatermark);
+			if (lowWatermark > prunedWatermark) {
+				prunedWatermark = lowWatermark;
+				pruneKnownTransactions(lowWatermark);
+			}
+			Metrics.add(Metrics.CPU_NANOS + ".p" + this._id, threadCpuTime() - cpu);
+
+			// This server may lead the next instance now, but must not wait for a pipeline slot here
+			new Thread(() -> {
+				try {
+					proposePending();
+				} catch (InterruptedException e) {
+					// Closing
+				}
+			}).start();
+		}, e -> {
+			// The state of this replica can't be trusted anymore: crash rather than diverge
+			System.err.printf("Server %d failed applying instance %d, closing%n", this._id, applier.getNextInstance());
+			running = false;
+		});
+		applier.start("applier-" + this._id);
+
+		// Keys known from the configuration; the remaining ones arrive with CREATE_ACCOUNT
+		for (HDLProcess p : InstanceManager.getSystemProcesses())
+			keyRegistry.register(p.getPublicKey());
 
         if (isByzantine) startByzantineBehaviour();
 
@@ -192,6 +363,8 @@ public class Server extends ByzantineProcess {
 					synchronized (activeHandlerThreads) {
 						activeHandlerThreads.add(Thread.currentThread());
 					}
+					long cpu = threadCpuTime();
+					long start = System.nanoTime();
 					try {
 						handleIncomingMessage(requestMessage);
 					} catch (Exception e) {
@@ -204,6 +377,9 @@ public class Server extends ByzantineProcess {
 						//e.printStackTrace();
 						//System.err.printf("Server %d %s catch %s%n", this.getID(), Thread.currentThread().getName(), e.toString());
 					} finally {
+						Metrics.add(Metrics.CPU_NANOS + ".p" + this._id, threadCpuTime() - cpu);
+						Metrics.increment(Metrics.HANDLED_MESSAGES);
+						Metrics.add(Metrics.HANDLER_NANOS, System.nanoTime() - start);
 						synchronized (activeHandlerThreads) {
 							activeHandlerThreads.remove(Thread.currentThread());
 						}
@@ -256,6 +432,18 @@ public class Server extends ByzantineProcess {
 			}
 		}
 
+		blockCutter.stop();
+		Metrics.add(Metrics.CPU_NANOS + ".p" + this._id, blockCutter.getCpuTime());
+		if (batchCutter != null) {
+			batchCutter.stop();
+			batchTimers.shutdownNow();
+			Metrics.add(Metrics.CPU_NANOS + ".p" + this._id, batchCutter.getCpuTime());
+		}
+		applier.stop();
+		blockExecutor.stop();
+		consensus.stop();
+		readBatcher.stop();
+		readConsensus.stop();
 		this.selfTerminate();
 		channel.close();
 
@@ -265,6 +453,11 @@ public class Server extends ByzantineProcess {
 		System.out.printf("Server %d closed%n", this.getID());
 	}
 
+	// CPU time of the current thread, every message is handled in a thread of its own
+	private static long threadCpuTime() {
+		return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+	}
+
 	private boolean checkTransactionNonce(Transaction t) {
 		clientsSeqNum.putIfAbsent(t.getSource(), Integer.MIN_VALUE);
 		int nonce = clientsSeqNum.get(t.getSource());
@@ -275,10 +468,33 @@ public class Server extends ByzantineProcess {
 		return true;
 	}
 
+	private void registerAccountKey(Transaction t) {
+		if (t.getOperation().equals(Transaction.TESOperation.CREATE_ACCOUNT))
+			keyRegistry.register(((CreateAccountTransaction) t).getKey());
+	}
+
+	private void addKnownTransaction(Transaction t) {
+		long id = BlockchainNode.shortId(t);
+		knownTransactions.put(id, t);
+		knownUntil.merge(id, consensus.getCommittedInstance(), Math::max);
+	}
+
+	// Drops the known transactions of instances every server applied, those still pending are kept
+	private void pruneKnownTransactions(int lowWatermark) {
+		knownUntil.entrySet().removeIf(entry -> {
+			if (entry.getValue() >= lowWatermark) return false;
+			Transaction t = knownTransactions.get(entry.getKey());
+			if (t != null && mempool.contains(t)) return false;
+			knownTransactions.remove(entry.getKey());
+			return true;
+		});
+	}
+
 	private boolean verifyBlockChainNode(BlockchainNode node) {
 
-		for (Transaction t : node.getTransactions().stream().sorted((x, y) -> x.getNonce() - y.getNonce()).collect(Collectors.toList())) {
-			if (!t.checkSyntax() || !t.validateTransaction() || !checkTransactionNonce(t)) return false;
+		for (Transaction t : node.getTransactions().stream().sorted(Comparator.comparingInt(Transaction::getNonce)).collect(Collectors.toList())) {
+			if (!t.checkSyntax() || !t.validateTransaction(keyRegistry) || !checkTransactionNonce(t)) return false;
+			registerAccountKey(t);
 		}
 
 		return true;
@@ -294,46 +510,188 @@ public class Server extends ByzantineProcess {
 	}
 
 	private void handleBFTMessageStrongRead(LinkMessage incomingMessage) throws InterruptedException, IllegalStateException {
-		BFTMessage<StrongReadIBFTValue> message = readConsensus.handleCommit(incomingMessage);
-		if (message == null) return;
+		BFTMessage<StrongReadIBFTValue> message = (BFTMessage<StrongReadIBFTValue>) incomingMessage.getMessage();
+		switch (message.getType()) {
+			case PRE_PREPARE:
+				if (!message.hasValue() || !validReads(message.getValue())) break;
+				readBatcher.proposed(message.getValue().getReads(), message.getInstance());
+				BFTMessage<StrongReadIBFTValue> lateDecision = readConsensus.handlePrePrepare(incomingMessage);
+				if (lateDecision != null) {
+					decideReads(lateDecision);
+				}
+				// The next instance may be this server's
+				proposeReads();
+				break;
+			case PREPARE:
+				readConsensus.handlePrepare(incomingMessage);
+				break;
+			case COMMIT:
+				BFTMessage<StrongReadIBFTValue> commitResult = readConsensus.handleCommit(incomingMessage);
+				if (commitResult != null) {
+					decideReads(commitResult);
+				}
+				break;
+			case FAST_COMMIT:
+				BFTMessage<StrongReadIBFTValue> fastResult = readConsensus.handleFastCommit(incomingMessage);
+				if (fastResult != null) {
+					decideReads(fastResult);
+				}
+				break;
+			case ROUND_CHANGE:
+				readConsensus.handleRoundChange(incomingMessage);
+				break;
+		}
+	}
+
+	// A batch must not be answered from a state older than any of its reads that reached this server, nor
+	//  wait for instances far beyond the ones started
+	private boolean validReads(StrongReadIBFTValue value) {
+		if (value.getReads().size() > readBatcher.getMaxReads()
+			|| value.getTimestamp() >= consensus.getInstance() + consensus.getPipeline()) return false;
+		for (StrongReadIBFTValue.Read read : value.getReads()) {
+			ReadBatcher.Pending pending = readBatcher.get(read);
+			if (pending != null && pending.getTimestamp() > value.getTimestamp()) {
+				System.err.printf("Server %d rejecting strong reads at %d, older than %s%n", this._id, value.getTimestamp(), read);
+				return false;
+			}
+		}
+		return true;
+	}
 
-		System.err.println("Server " + this.getID() + " returning strong read to client.");
+	// The pending strong reads that aren't in any proposal yet. They are answered at the last instance
+	//  started, which replicas that applied more than this server when the reads arrived still accept.
+	private StrongReadIBFTValue pendingReads() {
+		int timestamp = Math.max(getLastTimestamp(), consensus.getInstance() - 1);
+		return new StrongReadIBFTValue(timestamp, readBatcher.nextBatch());
+	}
 
-		StrongReadIBFTValue value = message.getValue();
+	// Once the read batching window ends, and whenever this server may lead the next read instance
+	private void proposeReads() throws InterruptedException {
+		if (readBatcher.isEmpty()) return;
+		if (!readConsensus.leadsNextInstance()) {
+			readConsensus.expectInstance(0);
+			return;
+		}
+		// Decisions free the slots and end another window
+		if (!readConsensus.hasFreeSlot()) return;
+
+		StrongReadIBFTValue batch = pendingReads();
+		if (batch.isEmpty()) return;
+
+		int instance = readConsensus.startConsensus(batch);
+		readBatcher.proposed(batch.getReads(), instance);
+	}
 
+	// Reads aren't applied in order, each batch is answered once decided
+	private void decideReads(BFTMessage<StrongReadIBFTValue> message) throws IllegalStateException {
+		int instance = message.getInstance();
+		StrongReadIBFTValue value = message.getValue();
 		Integer timestamp = value.getTimestamp();
-		Integer nonce = value.getNonce();
-		PublicKey clientKey = value.getClientKey();
-		HDLProcess client = InstanceManager.getHDLProcess(clientKey);
+		if (!value.isEmpty()) {
+			Metrics.increment(Metrics.READ_BATCHES);
+			Metrics.add(Metrics.BATCHED_READS, value.getReads().size());
+		}
+		System.err.printf("Server %d decided strong reads %s at consensus %d%n", this._id, value, instance);
+
+		for (StrongReadIBFTValue.Read read : value.getReads()) {
+			// Only the clients whose read reached this server, and only once
+			ReadBatcher.Pending pending = readBatcher.remove(read);
+			if (pending != null)
+				answerWhenApplied(pending.getClient(), read, timestamp, pending.getArrival());
+		}
 
-		if (client == null) return;
+		// Only once the reads are answered, or the next window would expect an instance for them
+		readConsensus.instanceApplied(instance, readConsensus.getLeader(instance, message.getRound()));
+		readBatcher.decided(instance);
+	}
+
+	// The read index of a strong read that reached this server, reported by another server (or this one)
+	private void handleReadIndex(LinkMessage incomingMessage) {
+		ReadIndexMessage message = (ReadIndexMessage) incomingMessage.getMessage();
+		if (readIndex == null || !InstanceManager.isServer(incomingMessage.getSender())) return;
+		// Reads of unknown accounts are rejected, reports of them would never be let go
+		if (!keyRegistry.contains(message.getClient())) return;
 
+		ReadIndex.Ready ready = readIndex.report(message.getClient(), message.getNonce(), incomingMessage.getSender().getID(),
+			message.getCommitted(), consensus.getInstance() + consensus.getPipeline());
+		if (ready == null) return;
+
+		System.err.printf("Server %d answering strong read %s at read index %d%n", this._id, ready.getRead(), ready.getIndex());
+		answerWhenApplied(ready.getClient(), ready.getRead(), ready.getIndex(), ready.getArrival());
+	}
+
+	// Answers a strong read from the state of the timestamp, once this server applied it
+	private void answerWhenApplied(HDLProcess client, StrongReadIBFTValue.Read read, int timestamp, long arrival) {
+		Runnable answer = () -> answerRead(client, read, timestamp, arrival);
+		synchronized (deferredReads) {
+			if (getTESState(timestamp) == null && timestamp > getLastTimestamp()) {
+				deferredReads.computeIfAbsent(timestamp, t -> new ArrayList<>()).add(answer);
+				return;
+			}
+		}
+		answer.run();
+	}
+
+	private void answerRead(HDLProcess client, StrongReadIBFTValue.Read read, int timestamp, long arrival) {
+		// Gone below the low watermark meanwhile
 		TESState state = getTESState(timestamp);
 		if (state == null) return;
+		Metrics.increment(Metrics.ANSWERED_READS);
+		Metrics.add(Metrics.READ_LATENCY_NANOS, System.nanoTime() - arrival);
 
-		TESAccount account = state.getAccount(clientKey);
-		if (account == null) {
-			// Client doesn't have an account yet :(
-			sendClientResponse(client, ClientResponseMessage.Status.NOT_FOUND, timestamp, nonce);
-			return;
-		}
+		TESAccount account = state.getAccount(read.getOwnerId());
+		ClientResponseMessage response = account == null
+			? new ClientResponseMessage(ClientResponseMessage.Status.NOT_FOUND, timestamp, read.getNonce())
+			: new CheckBalanceResponseMessage(ClientResponseMessage.Status.OK, timestamp, read.getNonce(), account.getTucs());
 
-		double tucs = account.getTucs();
+		new Thread(() -> {
+			try {
+				sendClientResponse(client, response);
+			} catch (IllegalStateException | InterruptedException e) {
+				e.printStackTrace();
+			}
+		}).start();
+	}
 
-		CheckBalanceResponseMessage response = new CheckBalanceResponseMessage(ClientResponseMessage.Status.OK, timestamp, nonce, tucs);
-		System.err.printf("Server %d sending strong read response (%s) to client %d%n", this.getID(), response, client.getID());
-		sendClientResponse(client, response);
+	// Called by the applier once the state of the timestamp exists
+	private void answerDeferredReads(int timestamp) {
+		List<Runnable> answers = new ArrayList<>();
+		synchronized (deferredReads) {
+			NavigableMap<Integer, List<Runnable>> due = deferredReads.headMap(timestamp, true);
+			due.values().forEach(answers::addAll);
+			due.clear();
+		}
+		answers.forEach(Runnable::run);
 	}
 
 	private void handleBFTMessageBlockchain(LinkMessage incomingMessage) throws InterruptedException {
 		BFTMessage<BlockchainNode> message = (BFTMessage<BlockchainNode>) incomingMessage.getMessage();
 		switch (message.getType()) {
 			case PRE_PREPARE:
+				// Consensus ignores the instances past its window, they aren't worth completing
+				if (!consensus.inWindow(message.getInstance())) break;
+				if (!message.hasValue() || !completeProposal(incomingMessage) || !blockBuilder.fits(message.getValue())) break;
 				verifyBlockChainNode(message.getValue());
-				this.consensus.handlePrePrepare(incomingMessage);
+				// Each lane only orders the requests of its accounts, so no two lanes propose the same one
+				if (!inLane(message.getValue(), consensus.getLane(message.getInstance()))) break;
+				// Only taken as proposed once the sender leads the round, or any server could hold requests back
+				BFTMessage<BlockchainNode> lateDecision = this.consensus.handlePrePrepare(incomingMessage, accepted -> {
+					for (Transaction t : accepted.getValue().getTransactions())
+						proposedTransactions.put(BlockchainNode.shortId(t), accepted.getInstance());
+					if (batchPool != null && accepted.getValue().getBatches() != null)
+						batchPool.assign(accepted.getValue().getBatches(), accepted.getInstance());
+				});
+				if (lateDecision != null) {
+					decide(lateDecision);
+				}
+				// The next instance may be this server's
+				proposePending();
 				break;
 			case PREPARE:
-				this.consensus.handlePrepare(incomingMessage);
+				BFTMessage<BlockchainNode> prepared = this.consensus.handlePrepare(incomingMessage);
+				if (prepared != null && speculative) {
+					speculate(prepared.getInstance(), prepared.getValue());
+				}
 				break;
 			case COMMIT:
 				BFTMessage<BlockchainNode> commitResult = this.consensus.handleCommit(incomingMessage);
@@ -341,7 +699,272 @@ public class Server extends ByzantineProcess {
 					decide(commitResult);
 				}
 				break;
+			case FAST_COMMIT:
+				BFTMessage<BlockchainNode> fastResult = this.consensus.handleFastCommit(incomingMessage);
+				if (fastResult != null) {
+					decide(fastResult);
+				}
+				break;
+			case ROUND_CHANGE:
+				this.consensus.handleRoundChange(incomingMessage);
+				break;
+		}
+	}
+
+	// Rebuilds a compact PRE_PREPARE from the known transactions, fetching the missing ones from the leader
+	private boolean completeProposal(LinkMessage incomingMessage) throws InterruptedException {
+		BFTMessage<BlockchainNode> message = (BFTMessage<BlockchainNode>) incomingMessage.getMessage();
+		if (!message.isCompact()) return true;
+
+		// Whether the sender leads the round is up to Consensus, it has to know the transactions either way
+		HDLProcess leader = incomingMessage.getSender();
+		if (!InstanceManager.isServer(leader)) return false;
+
+		long start = System.nanoTime();
+		BlockchainNode node = message.getValue();
+		if (node.getBatches() != null) {
+			boolean valid = completeBatches(node) && message.hasValidValueDigest();
+			Metrics.increment(Metrics.PROPOSALS_COMPLETED);
+			Metrics.add(Metrics.PROPOSAL_COMPLETION_NANOS, System.nanoTime() - start);
+			System.err.printf("Server %d completed PRE_PREPARE of %d batches of consensus %d: %s%n", this._id, node.getBatches().size(), message.getInstance(), valid);
+			return valid;
+		}
+
+		List<Long> missing = node.complete(knownTransactions);
+		if (!missing.isEmpty())
+			missing = node.complete(fetchTransactions(leader, message.getInstance(), missing));
+
+		boolean valid = missing.isEmpty() && message.hasValidValueDigest();
+		if (!valid && missing.isEmpty()) {
+			// Some short id matched another transaction, get them all from the leader
+			List<Long> all = LongStream.of(node.getShortIds()).boxed().collect(Collectors.toList());
+			valid = node.complete(fetchTransactions(leader, message.getInstance(), all)).isEmpty()
+				&& message.hasValidValueDigest();
+		}
+
+		Metrics.increment(Metrics.PROPOSALS_COMPLETED);
+		Metrics.add(Metrics.PROPOSAL_COMPLETION_NANOS, System.nanoTime() - start);
+		System.err.printf("Server %d completed compact PRE_PREPARE of consensus %d: %s%n", this._id, message.getInstance(), valid);
+		return valid;
+	}
+
+	private Map<Long, Transaction> fetchTransactions(HDLProcess leader, int instance, List<Long> shortIds) throws InterruptedException {
+		CompletableFuture<List<Transaction>> fetch = new CompletableFuture<>();
+		SimpleImmutableEntry<HDLProcess, CompletableFuture<List<Transaction>>> pendingFetch = new SimpleImmutableEntry<>(leader, fetch);
+		pendingFetches.put(instance, pendingFetch);
+
+		Map<Long, Transaction> fetched = new HashMap<>();
+		try {
+			channel.send(new LinkMessage(new TransactionRequestMessage(instance, shortIds), this, leader));
+			for (Transaction t : fetch.get(FETCH_TIMEOUT, TimeUnit.MILLISECONDS))
+				fetched.put(BlockchainNode.shortId(t), t);
+		} catch (ExecutionException | TimeoutException e) {
+			System.err.printf("Server %d couldn't fetch %d transactions of consensus %d from %d%n", this._id, shortIds.size(), instance, leader.getID());
+		} finally {
+			pendingFetches.remove(instance, pendingFetch);
+		}
+
+		Metrics.add(Metrics.FETCHED_TRANSACTIONS, fetched.size());
+		return fetched;
+	}
+
+	// Fills a proposal of batch digests with the stored batches, the missing ones are fetched from the servers
+	//  that acked them (all of them if this server didn't see the certificate)
+	private boolean completeBatches(BlockchainNode node) throws InterruptedException {
+		if (batchPool == null) return false;
+
+		List<byte[]> missing = node.completeBatches(batchPool::get);
+		if (missing.isEmpty()) return true;
+
+		Map<String, CompletableFuture<List<Transaction>>> fetches = new HashMap<>();
+		for (byte[] digest : missing) {
+			String key = Base64.getEncoder().encodeToString(digest);
+			CompletableFuture<List<Transaction>> fetch = batchFetches.computeIfAbsent(key, k -> new CompletableFuture<>());
+			fetches.put(key, fetch);
+			// It may have arrived meanwhile
+			if (batchPool.get(digest) != null) {
+				fetch.complete(batchPool.get(digest));
+				continue;
+			}
+
+			Set<Integer> holders = batchPool.getHolders(digest);
+			for (HDLProcess server : InstanceManager.getAllParticipants()) {
+				if (server.equals(this) || (!holders.isEmpty() && !holders.contains(server.getID()))) continue;
+				channel.send(new LinkMessage(new BatchRequestMessage(digest), this, server));
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FETCH_TIMEOUT);
+		try {
+			for (CompletableFuture<List<Transaction>> fetch : fetches.values())
+				fetch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			System.err.printf("Server %d couldn't fetch %d batches%n", this._id, missing.size());
+		} finally {
+			for (Map.Entry<String, CompletableFuture<List<Transaction>>> entry : fetches.entrySet())
+				batchFetches.remove(entry.getKey(), entry.getValue());
+		}
+
+		Metrics.add(Metrics.FETCHED_BATCHES, fetches.values().stream().filter(f -> f.isDone()).count());
+		return node.completeBatches(batchPool::get).isEmpty();
+	}
+
+	private void handleTransactionRequest(LinkMessage request) throws InterruptedException {
+		TransactionRequestMessage requestMessage = (TransactionRequestMessage) request.getMessage();
+
+		List<Transaction> found = new ArrayList<>();
+		for (long id : requestMessage.getShortIds()) {
+			Transaction t = knownTransactions.get(id);
+			if (t != null) found.add(t);
+		}
+
+		TransactionResponseMessage response = new TransactionResponseMessage(requestMessage.getInstance(), found);
+		channel.send(new LinkMessage(response, this, request.getSender()));
+	}
+
+	private void handleTransactionResponse(LinkMessage response) {
+		TransactionResponseMessage responseMessage = (TransactionResponseMessage) response.getMessage();
+		int instance = responseMessage.getInstance();
+
+		// Only the sender of the proposal answers for it
+		SimpleImmutableEntry<HDLProcess, CompletableFuture<List<Transaction>>> fetch = pendingFetches.get(instance);
+		if (fetch != null && fetch.getKey().equals(response.getSender()))
+			fetch.getValue().complete(responseMessage.getTransactions());
+	}
+
+	// Followers leave the blocks to the leader of the next instance. They keep the request, to answer the
+	//  client once decided and to propose it if they lead a later round.
+	private boolean forward(Transaction transaction) throws InterruptedException {
+		HDLProcess leader = consensus.getNextLeader(laneOf(transaction));
+		if (leader == null || leader.equals(this)) return false;
+
+		channel.send(new LinkMessage(new TransactionForwardMessage(List.of(transaction)), this, leader));
+		Metrics.increment(Metrics.FORWARDED_TRANSACTIONS);
+		// A leader that doesn't propose it is replaced
+		consensus.expectInstance(laneOf(transaction));
+		return true;
+	}
+
+	private void handleTransactionForward(LinkMessage forward) throws InterruptedException {
+		if (!InstanceManager.isServer(forward.getSender())) return;
+
+		for (Transaction t : ((TransactionForwardMessage) forward.getMessage()).getTransactions()) {
+			// Usually the client's own request got here first
+			if (knownTransactions.containsKey(BlockchainNode.shortId(t))) {
+				Metrics.increment(Metrics.FORWARDED_KNOWN);
+				continue;
+			}
+			if (!t.checkSyntax() || !t.validateTransaction(keyRegistry) || !checkTransactionNonce(t)) continue;
+			registerAccountKey(t);
+			addKnownTransaction(t);
+
+			if (mempool.add(t, InstanceManager.getHDLProcess(t.getSource())) == Mempool.Admission.ADDED)
+				blockCutter.add(t);
+		}
+	}
+
+	// This server's share of the clients, whose requests it batches
+	private boolean isBatcher(Transaction transaction) {
+		List<HDLProcess> servers = InstanceManager.getAllParticipants();
+		return servers.get(Math.floorMod(transaction.getSource().hashCode(), servers.size())).equals(this);
+	}
+
+	// Called from the batch cutter: the batch goes to every server (this one included), which acks it
+	private void disseminate(BlockchainNode batch, boolean byDeadline) throws InterruptedException {
+		// Batches grow while certified ones wait to be ordered
+		batchBuilder.adapt(batch, batchPool.pendingTransactions(), byDeadline);
+		byte[] digest = batchPool.add(batch.getTransactions());
+		batchPool.expectAcks(digest);
+
+		System.err.printf("[%d] Disseminating batch of %d transactions (deadline: %b)%n", this._id, batch.getTransactions().size(), byDeadline);
+		Metrics.increment(Metrics.DISSEMINATED_BATCHES);
+		ibftBroadcast.broadcast(new BatchMessage(batch.getTransactions()));
+	}
+
+	private void handleBatch(LinkMessage incomingMessage) throws InterruptedException {
+		if (batchPool == null || !InstanceManager.isServer(incomingMessage.getSender())) return;
+
+		List<Transaction> batch = ((BatchMessage) incomingMessage.getMessage()).getTransactions();
+		if (batch.isEmpty() || batch.size() > blockBuilder.getMaxTransactions()) return;
+
+		// The whole batch is checked before any of it is taken, in nonce order: a client's account may be created
+		//  earlier in the same batch (keys are self-certifying, registering them takes nothing in)
+		List<Transaction> sorted = batch.stream().sorted(Comparator.comparingInt(Transaction::getNonce)).collect(Collectors.toList());
+		for (Transaction t : sorted) {
+			if (knownTransactions.containsKey(BlockchainNode.shortId(t))) continue;
+			if (t.getOperation().equals(Transaction.TESOperation.CHECK_BALANCE) || !t.checkSyntax() || !t.validateTransaction(keyRegistry)) {
+				System.err.printf("Server %d rejecting batch of %d from %d, %s is invalid%n", this._id, batch.size(),
+					incomingMessage.getSender().getID(), t);
+				// A proposal waiting for it can't be completed with it
+				CompletableFuture<List<Transaction>> fetch = batchFetches.get(Base64.getEncoder().encodeToString(BatchPool.digest(batch)));
+				if (fetch != null) fetch.completeExceptionally(new IllegalStateException("[ERROR] Invalid batch"));
+				return;
+			}
+			registerAccountKey(t);
+		}
+
+		for (Transaction t : sorted) {
+			if (knownTransactions.containsKey(BlockchainNode.shortId(t))) continue;
+			addKnownTransaction(t);
+			// The client's own request may still be on its way, it is answered once decided
+			if (checkTransactionNonce(t))
+				mempool.add(t, InstanceManager.getHDLProcess(t.getSource()));
+		}
+
+		byte[] digest = batchPool.add(batch);
+		// Stored after its certificate
+		cancelBatchFallbacks(digest);
+		// Fetched for a proposal, it was certified already
+		CompletableFuture<List<Transaction>> fetch = batchFetches.get(Base64.getEncoder().encodeToString(digest));
+		if (fetch != null) {
+			fetch.complete(batch);
+			return;
+		}
+
+		BatchAckMessage ack = new BatchAckMessage(digest);
+		ack.signMessage(this.getPrivateKey());
+		channel.send(new LinkMessage(ack, this, incomingMessage.getSender()));
+	}
+
+	private void handleBatchAck(LinkMessage incomingMessage) throws InterruptedException {
+		BatchAckMessage ack = (BatchAckMessage) incomingMessage.getMessage();
+		HDLProcess sender = incomingMessage.getSender();
+		if (batchPool == null || !InstanceManager.isServer(sender) || !ack.hasValidSignature(sender.getPublicKey())) return;
+
+		Map<Integer, BatchAckMessage> acks = batchPool.ack(sender.getID(), ack);
+		if (acks != null)
+			ibftBroadcast.broadcast(new BatchCertificateMessage(ack.getBatchDigest(), acks));
+	}
+
+	private boolean isValidBatchCertificate(BatchCertificateMessage certificate) {
+		if (certificate.getAcks().size() < InstanceManager.getNumberOfByzantines() + 1) return false;
+		for (Map.Entry<Integer, BatchAckMessage> entry : certificate.getAcks().entrySet()) {
+			HDLProcess signer = InstanceManager.getHDLProcess(entry.getKey());
+			BatchAckMessage ack = entry.getValue();
+			if (!InstanceManager.isServer(signer) || !Arrays.equals(ack.getBatchDigest(), certificate.getBatchDigest())
+				|| !ack.hasValidSignature(signer.getPublicKey()))
+				return false;
 		}
+		return true;
+	}
+
+	private void handleBatchCertificate(LinkMessage incomingMessage) throws InterruptedException {
+		BatchCertificateMessage certificate = (BatchCertificateMessage) incomingMessage.getMessage();
+		if (batchPool == null || !InstanceManager.isServer(incomingMessage.getSender()) || !isValidBatchCertificate(certificate)) return;
+
+		if (!batchPool.certify(certificate.getBatchDigest(), new HashSet<>(certificate.getAcks().keySet()))) return;
+		Metrics.increment(Metrics.CERTIFIED_BATCHES);
+		cancelBatchFallbacks(certificate.getBatchDigest());
+		// The next instance may be this server's
+		proposePending();
+	}
+
+	private void handleBatchRequest(LinkMessage request) throws InterruptedException {
+		if (batchPool == null || !InstanceManager.isServer(request.getSender())) return;
+
+		List<Transaction> batch = batchPool.get(((BatchRequestMessage) request.getMessage()).getBatchDigest());
+		if (batch != null)
+			channel.send(new LinkMessage(new BatchMessage(batch), this, request.getSender()));
 	}
 
 	private void handleIncomingMessage(LinkMessage incomingMessage) throws InterruptedException {
@@ -357,6 +980,38 @@ public class Server extends ByzantineProcess {
 			case PROPAGATE_CHANGES:
 				handleChangesPropagation(incomingMessage);
 
+				break;
+			case TRANSACTION_REQUEST:
+				handleTransactionRequest(incomingMessage);
+
+				break;
+			case TRANSACTION_RESPONSE:
+				handleTransactionResponse(incomingMessage);
+
+				break;
+			case TRANSACTION_FORWARD:
+				handleTransactionForward(incomingMessage);
+
+				break;
+			case READ_INDEX:
+				handleReadIndex(incomingMessage);
+
+				break;
+			case BATCH:
+				handleBatch(incomingMessage);
+
+				break;
+			case BATCH_ACK:
+				handleBatchAck(incomingMessage);
+
+				break;
+			case BATCH_CERTIFICATE:
+				handleBatchCertificate(incomingMessage);
+
+				break;
+			case BATCH_REQUEST:
+				handleBatchRequest(incomingMessage);
+
 				break;
 			default:
 				break;
@@ -365,15 +1020,15 @@ public class Server extends ByzantineProcess {
 
 	public void handleChangesPropagation(LinkMessage message) {
 		PropagateChangesMessage propagateMessage = (PropagateChangesMessage) message.getMessage();
-		PublicKey senderKey = message.getSender().getPublicKey();
+		AccountId sender = AccountId.of(message.getSender().getPublicKey());
 
 		System.err.printf("Server %d received account updates: %s%n", this.getID(), propagateMessage.toString());
 
 		snapshots.putIfAbsent(propagateMessage.getTimestamp(), new HashMap<>());
-		Map<PublicKey, Set<SignedTESAccount>> timestampMap = snapshots.get(propagateMessage.getTimestamp());
+		Map<AccountId, Set<SignedTESAccount>> timestampMap = snapshots.get(propagateMessage.getTimestamp());
 
 		for (SignedTESAccount state : propagateMessage.getChanges()) {
-			if (state.validateState(senderKey)) {
+			if (state.getSigner().equals(sender) && state.validateState(message.getSender().getPublicKey())) {
 				timestampMap.putIfAbsent(state.getOwner(), new HashSet<>());
 				Set<SignedTESAccount> signedStates = timestampMap.get(state.getOwner());
 				signedStates.add(state);
@@ -381,28 +1036,28 @@ public class Server extends ByzantineProcess {
 		}
 	}
 
-	public Set<SignedTESAccount> weaklyConsistentRead(PublicKey accountKey) {
+	public Set<SignedTESAccount> weaklyConsistentRead(AccountId accountId) {
 		// snapshots ordered from most recent timestamp to older timestamp
-		List<Map<PublicKey, Set<SignedTESAccount>>> sortedList = snapshots.entrySet()
+		List<Map<AccountId, Set<SignedTESAccount>>> sortedList = snapshots.entrySet()
 			.stream()
-			.sorted(Map.Entry.<Integer, Map<PublicKey, Set<SignedTESAccount>>>comparingByKey().reversed())
+			.sorted(Map.Entry.<Integer, Map<AccountId, Set<SignedTESAccount>>>comparingByKey().reversed())
 			.map(Map.Entry::getValue)
 			.collect(Collectors.toList());
 
-		for (Map<PublicKey, Set<SignedTESAccount>> timestampMap : sortedList) {
+		for (Map<AccountId, Set<SignedTESAccount>> timestampMap : sortedList) {
 			// if account wasn't updated in this timestamp or there aren't enough tokens, skip to older timestamp
-			if (timestampMap.get(accountKey) == null || timestampMap.get(accountKey).size() < InstanceManager.getNumberOfByzantines() + 1) continue;
+			if (timestampMap.get(accountId) == null || timestampMap.get(accountId).size() < InstanceManager.getNumberOfByzantines() + 1) continue;
 
 			// verify that there are f+1 equal states
 			Map<Double, Integer> tucsAmountCounter = new HashMap<>();
 
-			for (SignedTESAccount state : timestampMap.get(accountKey)) {
+			for (SignedTESAccount state : timestampMap.get(accountId)) {
 				tucsAmountCounter.putIfAbsent(state.getBalance(), 0);
 				int count = tucsAmountCounter.get(state.getBalance()) + 1;
 				tucsAmountCounter.replace(state.getBalance(), count);
 
 				if (count == InstanceManager.getNumberOfByzantines() + 1) {
-					return timestampMap.get(accountKey);
+					return timestampMap.get(accountId);
 				}
 			}
 		}
@@ -410,26 +1065,6 @@ public class Server extends ByzantineProcess {
 		return new HashSet<>();
 	}
 
-	private void addTransactionToBlockchain(Transaction transaction) throws InterruptedException {
-		BlockchainNode toProposeCopy = null;
-
-		synchronized (toProposeLock) {
-			System.err.printf("[%d] Hi im adding %s to %s%n", this._id, transaction, toPropose);
-			toPropose.addTransaction(transaction, this.getPublicKey());
-			System.err.printf("[%d] Hi i just added %s to %s%n", this._id, transaction, toPropose);
-			if (toPropose.isFull()) {
-				toProposeCopy = BlockchainNode.copy(toPropose);
-				toPropose = new BlockchainNode();
-			}
-		}
-
-		System.err.printf("[%d] toProposeCopy in addTransaction: %s %s%n", this._id, toProposeCopy, toProposeCopy != null);
-		if (toProposeCopy != null) {
-			System.err.printf("[%d] Should be starting consensus (addTransaction) with %s!!!%n", this._id, toProposeCopy);
-			this.consensus.startConsensus(toProposeCopy);
-		}
-	}
-
 	private void sendClientResponse(HDLProcess client, ClientResponseMessage message) throws IllegalStateException, InterruptedException {
 		LinkMessage toSend = new LinkMessage(message, this, client);
 
@@ -465,48 +1100,52 @@ public class Server extends ByzantineProcess {
 			}
 			else {
 				System.err.printf("Server %d handling strong reads for client %s%n", this._id, request.getSender());
-				int instance = readConsensus.incrementInstance();
-				StrongReadIBFTValue value = new StrongReadIBFTValue(getLastTimestamp(), transaction.getSource(), transaction.getNonce());
-				BFTMessage<StrongReadIBFTValue> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, instance, readConsensus.getRound(), value);
-				
-				System.err.printf("Server %d broadcasting BFT message with strong read value %s%n", this._id, commit.getValue());
-				ibftBroadcast.broadcast(commit);
+				if (!transaction.checkSyntax() || !transaction.validateTransaction(keyRegistry)) {
+					sendClientResponse(request.getSender(), ClientResponseMessage.Status.REJECTED, -1, transaction.getNonce());
+					return;
+				}
+
+				Metrics.increment(Metrics.STRONG_READS);
+				StrongReadIBFTValue.Read read = new StrongReadIBFTValue.Read(transaction.getSource(), transaction.getNonce(), readTransaction.getOwner());
+				if (readIndex == null) {
+					// Ordered with the other reads of the window
+					readBatcher.add(read, request.getSender(), getLastTimestamp());
+				} else if (readIndex.add(read, request.getSender())) {
+					ibftBroadcast.broadcast(new ReadIndexMessage(transaction.getSource(), transaction.getNonce(), consensus.getCommittedInstance()));
+				}
 			}
 
 			return;
 		}
 
 		try {
+			// Forwarded by a follower before the client's own request got here, the client is answered once decided
+			if (mempool.contains(transaction)) return;
+
 			System.err.printf("Server %d validating request from client %d.%n", this._id, request.getSender().getID()); // FIXME: epic amogus fail tava no err ;-;
 
-			if (!transaction.validateTransaction() || !transaction.checkSyntax() || !checkTransactionNonce(transaction)) {
+			if (!transaction.checkSyntax() || !transaction.validateTransaction(keyRegistry) || !checkTransactionNonce(transaction)) {
 				sendClientResponse(request.getSender(), ClientResponseMessage.Status.REJECTED, -1, transaction.getNonce());
 				System.out.printf("Server %d rejecting transaction %s, as it is invalid.%n", this._id, transaction);
 				return;
 			}
+			// Other servers may still propose it
+			registerAccountKey(transaction);
+			addKnownTransaction(transaction);
 
-			pendingRequests.add(new SimpleImmutableEntry<>(transaction, request.getSender()));
-
-			addTransactionToBlockchain(transaction);
-			BlockchainNode toProposeCopy = BlockchainNode.copy(toPropose);
-
-			Thread.sleep(BlockchainNode.FILL_TIMEOUT);
-
-			// After waiting for the timeout, check if block is still the same
-			//  and if it is, add that block to the blockchain.
-			boolean start = false;
-			synchronized (toProposeLock) {
-				System.err.printf("[%d] Block timeout reached, toPropose = %s and copy = %s.%n", this._id, toPropose, toProposeCopy);
-				if (toPropose.equals(toProposeCopy) && !toProposeCopy.isEmpty()) {
-					System.err.printf("[%d] Block timeout reached AND toPropose didn't change.%n", this._id);
-					start = true;
-					toPropose = new BlockchainNode();
-				}
+			if (mempool.add(transaction, request.getSender()) != Mempool.Admission.ADDED) {
+				sendClientResponse(request.getSender(), ClientResponseMessage.Status.REJECTED, -1, transaction.getNonce());
+				System.out.printf("Server %d rejecting transaction %s, it is already pending or the mempool is full.%n", this._id, transaction);
+				return;
 			}
-			if (start) {
-				System.out.printf("[%d] Should be starting consensus (timeout) with %s!!!%n", this._id, toProposeCopy);
-				this.consensus.startConsensus(toProposeCopy);
+
+			if (batchPool != null) {
+				batchRequest(transaction);
+				return;
 			}
+			if (forwardToLeader && forward(transaction)) return;
+			// The block cutter proposes it, the handler returns right away
+			blockCutter.add(transaction);
 		} catch (Exception e) {
 			if (!isByzantine) {
 				System.out.printf("[%d] Exception '%s'%n", this._id, e);
@@ -517,64 +1156,288 @@ public class Server extends ByzantineProcess {
 		}
 	}
 
-	private void decide(BFTMessage<BlockchainNode> message) throws InterruptedException {
-		BlockchainNode block = message.getValue();
-		int timestamp = message.getInstance();
-		tesStates.putIfAbsent(timestamp, tesStates.get(timestamp-1).copy());
+	// Requests are ordered once their batch is certified. The requests of other servers' clients are batched
+	//  here too if their batch doesn't arrive in time (their server may be faulty), at worst twice.
+	private void batchRequest(Transaction transaction) {
+		if (isBatcher(transaction)) {
+			batchCutter.add(transaction);
+			return;
+		}
+
+		long id = BlockchainNode.shortId(transaction);
+		if (batchTimers.isShutdown() || batchPool.isBatched(transaction)) return;
+		batchFallbacks.computeIfAbsent(id, k -> batchTimers.schedule(() -> {
+			batchFallbacks.remove(id);
+			if (mempool.contains(transaction) && !batchPool.isBatched(transaction)) {
+				Metrics.increment(Metrics.REBATCHED_TRANSACTIONS);
+				batchCutter.add(transaction);
+			}
+		}, batchTimeout, TimeUnit.MILLISECONDS));
+	}
+
+	// Drops the stored batches that were never certified, and the fallbacks that ran before they were kept
+	private void expireBatches() {
+		Metrics.add(Metrics.EXPIRED_BATCHES, batchPool.expire());
+		batchFallbacks.values().removeIf(ScheduledFuture::isDone);
+	}
+
+	private void cancelBatchFallback(long id) {
+		if (batchFallbacks.isEmpty()) return;
+		ScheduledFuture<?> fallback = batchFallbacks.remove(id);
+		if (fallback != null) fallback.cancel(false);
+	}
+
+	// The batch is certified or ordered, its requests need no other batch
+	private void cancelBatchFallbacks(byte[] digest) {
+		List<Transaction> batch = batchPool.get(digest);
+		if (batch == null || batchFallbacks.isEmpty()) return;
+		for (Transaction t : batch) {
+			if (batchPool.isBatched(t)) cancelBatchFallback(BlockchainNode.shortId(t));
+		}
+	}
+
+	// Lane of the consensus that orders the transaction, by its source account (P lanes [k])
+	private int laneOf(Transaction transaction) {
+		return Math.floorMod(transaction.getSource().hashCode(), consensus.getLanes());
+	}
+
+	private boolean inLane(BlockchainNode block, int lane) {
+		for (Transaction t : block.getTransactions()) {
+			if (laneOf(t) != lane) return false;
+		}
+		return true;
+	}
+
+	// Proposed by this server as the leader of a later round of the instance
+	private BlockchainNode fallbackBlock(int instance) {
+		return pendingBlock(consensus.getLane(instance), false);
+	}
+
+	// The oldest pending requests of the lane that aren't in any proposal yet. Blocks are cut by every server
+	//  (see BlockCutter), but with leaders changing by instance or round the leader proposes from here.
+	private BlockchainNode pendingBlock(int lane, boolean byDeadline) {
+		AccountId producer = AccountId.of(this.getPublicKey());
+		int leftOver;
+		BlockchainNode block;
+		synchronized (proposalLock) {
+			if (batchPool != null) {
+				// Whole certified batches, proposed by digest
+				block = batchPool.propose(blockBuilder, producer);
+				leftOver = batchPool.pendingTransactions();
+			} else {
+				List<Transaction> candidates = mempool.candidates(t -> {
+					return !executedTransactions.contains(t) && !proposedTransactions.containsKey(BlockchainNode.shortId(t))
+						&& laneOf(t) == lane;
+				});
+				block = blockBuilder.build(candidates, producer);
+				leftOver = candidates.size() - block.getTransactions().size();
+			}
+			// Until the PRE_PREPARE tells the actual instance
+			for (Transaction t : block.getTransactions())
+				proposedTransactions.put(BlockchainNode.shortId(t), UNASSIGNED);
+		}
+
+		if (!block.isEmpty())
+			blockBuilder.cut(block, leftOver, byDeadline);
+		return block;
+	}
+
+	private void proposePending() throws InterruptedException {
+		proposePending(false);
+	}
+
+	// byDeadline when the block is cut because its oldest request waited for the latency budget
+	private void proposePending(boolean byDeadline) throws InterruptedException {
+		boolean behind = consensus.isBehind();
+		if (mempool.isEmpty() && !behind) return;
+		expectPending();
+		if (!consensus.leadsNextInstance()) return;
+		// The block cutter doesn't wait for a slot, the requests are proposed once the applier frees one
+		if (!consensus.hasFreeSlot()) return;
+
+		BlockchainNode block = pendingBlock(consensus.getOwnLane(), byDeadline);
+		if (block.isEmpty() && !behind) return;
+		if (block.isEmpty()) Metrics.increment(Metrics.FILLED_INSTANCES);
+
+		// The block may wait for a pipeline slot, and other blocks may be applied meanwhile
+		int instance = this.consensus.startConsensus(block);
+		for (Transaction t : block.getTransactions()) {
+			long id = BlockchainNode.shortId(t);
+			if (instance < 0) proposedTransactions.remove(id, UNASSIGNED);
+			else proposedTransactions.replace(id, UNASSIGNED, instance);
+		}
+		if (block.getBatches() != null) {
+			if (instance < 0) batchPool.release(block.getBatches(), BatchPool.UNASSIGNED);
+			else batchPool.assign(block.getBatches(), instance);
+		}
+	}
+
+	// Pending requests wait for the leaders of their lanes, which are replaced if they don't propose them
+	private void expectPending() {
+		if (consensus.getLanes() == 1) {
+			if (!consensus.leadsNextInstance()) consensus.expectInstance(0);
+			return;
+		}
+
+		Set<Integer> lanes = new HashSet<>();
+		for (Transaction t : mempool.candidates(t -> !proposedTransactions.containsKey(BlockchainNode.shortId(t))))
+			lanes.add(laneOf(t));
+		lanes.remove(consensus.getOwnLane());
+		for (int lane : lanes)
+			consensus.expectInstance(lane);
+	}
+
+	private void decide(BFTMessage<BlockchainNode> message) {
+		Metrics.increment(Metrics.DECIDED_INSTANCES);
+		applier.submit(message.getInstance(), message.getValue());
+	}
+
+	// A quorum prepared the block: once the previous instance is applied, it is executed on a copy of that state
+	//  and its clients get the tentative result, which they accept from a quorum. Prepared again with another
+	//  value after a round change, the last execution is discarded (rolled back).
+	private void speculate(int instance, BlockchainNode block) {
+		List<LinkMessage> responses = new ArrayList<>();
+		synchronized (speculationLock) {
+			if (instance <= appliedInstance) return;
+			if (applying || instance > appliedInstance + 1) {
+				preparedBlocks.put(instance, block);
+				return;
+			}
+			if (speculation != null) {
+				if (speculation.matches(instance, block)) return;
+				Metrics.increment(Metrics.SPECULATION_ROLLBACKS);
+			}
+
+			speculation = new Speculation(instance, block, tesStates.get(instance - 1), blockExecutor, executedTransactions::contains);
+			Metrics.increment(Metrics.SPECULATIONS);
+			for (int j = 0; j < block.getTransactions().size(); j++) {
+				Transaction transaction = block.getTransactions().get(j);
+				Mempool.Entry pending = mempool.get(transaction);
+				if (!speculation.getResult().isExecuted(j) || pending == null) continue;
+
+				speculation.markAnswered(j);
+				ClientResponseMessage.Status status = speculation.getResult().isSuccessful(j) ? ClientResponseMessage.Status.OK : ClientResponseMessage.Status.REJECTED;
+				responses.add(new LinkMessage(new ClientResponseMessage(ClientResponseMessage.ResponseType.TENTATIVE, status, instance,
+					transaction.getNonce()), this, pending.getClient()));
+			}
+		}
+
+		// Sending waits for the ACK
+		for (LinkMessage response : responses) {
+			new Thread(() -> {
+				try {
+					channel.send(response);
+				} catch (IllegalStateException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			}).start();
+		}
+	}
+
+	// The tentative execution of the instance if the decided block is the one executed, null otherwise
+	private Speculation takeSpeculation(int instance, BlockchainNode block) {
+		synchronized (speculationLock) {
+			applying = true;
+			Speculation speculated = speculation;
+			speculation = null;
+			if (speculated == null || speculated.getInstance() != instance) return null;
+			if (!speculated.matches(instance, block)) {
+				Metrics.increment(Metrics.SPECULATION_ROLLBACKS);
+				return null;
+			}
+			Metrics.increment(Metrics.SPECULATION_HITS);
+			return speculated;
+		}
+	}
+
+	// The next instance may have been prepared before this one was applied
+	private void speculateNext(int instance) {
+		BlockchainNode next;
+		synchronized (speculationLock) {
+			applying = false;
+			appliedInstance = instance;
+			preparedBlocks.headMap(instance, true).clear();
+			next = preparedBlocks.remove(instance + 1);
+		}
+		if (next != null) speculate(instance + 1, next);
+	}
+
+	// Called by the applier, in instance order
+	private void apply(int instance, BlockchainNode block) throws InterruptedException {
+		int timestamp = instance;
+		Speculation speculated = takeSpeculation(instance, block);
+		tesStates.putIfAbsent(timestamp, speculated != null ? speculated.getState() : tesStates.get(timestamp-1).copy());
 		TESState currentState = tesStates.get(timestamp);
-		// we assume that decides are in order (if not: kabooom)
+		// Perform the transactions (each in a whole), unless they were executed at the PREPARE quorum
+		BlockExecutor.Result result = speculated != null ? speculated.getResult()
+			: blockExecutor.execute(block, currentState, executedTransactions::contains);
 
 		for (int j = 0; j < block.getTransactions().size(); j++) {
 			Transaction transaction = block.getTransactions().get(j);
-			// Perform transaction (in a whole)
-			boolean successfulTransaction = transaction.updateTESState(currentState);
+			long id = BlockchainNode.shortId(transaction);
+			// Ordered, whichever instance it was proposed in
+			proposedTransactions.remove(id);
+			cancelBatchFallback(id);
+			knownUntil.computeIfPresent(id, (known, until) -> Math.max(until, instance));
+			if (!result.isExecuted(j)) {
+				Metrics.increment(Metrics.DUPLICATE_TRANSACTIONS);
+				continue;
+			}
+			executedTransactions.add(instance, transaction);
+			boolean successfulTransaction = result.isSuccessful(j);
 
 			if (successfulTransaction) snapshotTransaction.add(transaction);
 
 			// Lookup for the source of the transaction
-			int idx = -1;
-			for (int i = pendingRequests.size() - 1; i >= 0; i--) {
-				if (pendingRequests.get(i).getKey().equals(transaction)) {
-					idx = i;
-					break;
-				}
-			}
-			if (idx == -1) {
+			Mempool.Entry pending = mempool.remove(transaction);
+			HDLProcess client = pending == null ? null : pending.getClient();
+			if (client == null) {
 				System.err.printf("Server %d request %s was lost %n", this.getID(), transaction);
 				continue;
 			}
+			// Already answered with this result
+			if (speculated != null && speculated.isAnswered(j)) continue;
 
 			// Sending response to the client
-			HDLProcess client = pendingRequests.remove(idx).getValue();
-			System.err.printf("Server %d deciding for client %s with proposed value %s at instance %d%n", this.getID(), client, block, message.getInstance());
+			System.err.printf("Server %d deciding for client %s with proposed value %s at instance %d%n", this.getID(), client, block, instance);
 
 			ClientResponseMessage.Status status = successfulTransaction ? ClientResponseMessage.Status.OK : ClientResponseMessage.Status.REJECTED;
 
+			HDLProcess source = client;
 			new Thread(() -> {
 				try {
-					sendClientResponse(client, status, message.getInstance(), transaction.getNonce());
+					sendClientResponse(source, status, instance, transaction.getNonce());
 				} catch (IllegalStateException | InterruptedException e) {
 					e.printStackTrace();
 				}
 			}).start();
 		}
 
-		for (Transaction t : block.getRewards()) {
-			if (t.updateTESState(currentState))
+		for (int j = 0; j < block.getRewards().size(); j++) {
+			Transaction t = block.getRewards().get(j);
+			if (result.isRewarded(j))
 			snapshotTransaction.add(t);
 		}
 
-		blockchainState.append(message.getInstance(), block);
+		blockchainState.append(instance, block);
 
 		if (snapshotCounter++ % SNAPSHOT_BLOCK_SIZE == 0) {
-			propagateSignedChanges(message.getInstance(), snapshotTransaction);
+			propagateSignedChanges(instance, snapshotTransaction);
 			snapshotTransaction.clear();
 		}
 		snapshotCounter %= SNAPSHOT_BLOCK_SIZE;
+
+		executedTransactions.applied(instance);
+		// Transactions proposed in this instance but not decided in it are free to be proposed again
+		proposedTransactions.values().removeIf(proposedIn -> proposedIn == instance);
+		if (batchPool != null)
+			batchPool.ordered(block.getBatches() == null ? List.of() : block.getBatches(), instance);
+
+		speculateNext(instance);
 	}
 
 	private void propagateSignedChanges(int timestamp, List<Transaction> transactions) throws IllegalStateException, InterruptedException {
-		Set<PublicKey> updatedAccounts = new HashSet<>();
+		Set<AccountId> updatedAccounts = new HashSet<>();
 
 		for (Transaction t : transactions) {
 			updatedAccounts.add(t.getSource());
@@ -585,10 +1448,11 @@ public class Server extends ByzantineProcess {
 
 		PropagateChangesMessage message = new PropagateChangesMessage(timestamp);
 
-		for (PublicKey key : updatedAccounts) {
-			TESAccount account = tesStates.get(timestamp).getAccount(key);
+		AccountId signer = AccountId.of(this.getPublicKey());
+		for (AccountId id : updatedAccounts) {
+			TESAccount account = tesStates.get(timestamp).getAccount(id);
 			SignedTESAccount accountState = new SignedTESAccount(account);
-			accountState.authenticateState(this.getPublicKey(), this.getPrivateKey());
+			accountState.authenticateState(signer, this.getPrivateKey());
 			message.addAccount(accountState);
 		}
 
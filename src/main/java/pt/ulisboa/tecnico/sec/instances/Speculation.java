@@ -0,0 +1,59 @@
+package pt.ulisboa.tecnico.sec.instances;
+
+import java.util.function.Predicate;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockExecutor;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.tes.TESState;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+// A block executed on a copy of the state of the previous instance once a quorum prepared it, before it is
+//  decided (P speculative-execution 1). A later round can only propose a value a quorum prepared, but this
+//  server seeing the quorum doesn't mean the others did: the result is only kept if the same block is decided.
+public class Speculation {
+    private final int instance;
+    private final BlockchainNode block;
+    private final TESState state;
+    private final BlockExecutor.Result result;
+    // Transactions whose client was sent the tentative result
+    private final boolean[] answered;
+
+    // executedBefore tells the transactions applied up to the previous instance
+    public Speculation(int instance, BlockchainNode block, TESState previous, BlockExecutor executor, Predicate<Transaction> executedBefore) {
+        this.instance = instance;
+        this.block = block;
+        this.state = previous.copy();
+        this.result = executor.execute(block, state, executedBefore);
+        this.answered = new boolean[block.getTransactions().size()];
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public BlockchainNode getBlock() {
+        return block;
+    }
+
+    // State after the block, becomes the state of the instance if the block is decided
+    public TESState getState() {
+        return state;
+    }
+
+    public BlockExecutor.Result getResult() {
+        return result;
+    }
+
+    // Whether the decided block is the one executed
+    public boolean matches(int instance, BlockchainNode block) {
+        return this.instance == instance && this.block.equals(block) && this.block.getRewards().equals(block.getRewards());
+    }
+
+    public void markAnswered(int transaction) {
+        answered[transaction] = true;
+    }
+
+    public boolean isAnswered(int transaction) {
+        return answered[transaction];
+    }
+}
@@ -1,83 +1,128 @@
 package pt.ulisboa.tecnico.sec.instances;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.PublicKey;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
 import pt.ulisboa.tecnico.sec.ibft.IBFTValueIT;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
 
+// A batch of strong reads, all answered from the state at the same timestamp
 public class StrongReadIBFTValue implements IBFTValueIT {
 
+    // A strong read of the owner's balance, by the client that sent it
+    public static final class Read {
+        private final AccountId clientId;
+        private final int clientNonce;
+        private final AccountId ownerId;
+
+        public Read(AccountId clientId, int clientNonce, AccountId ownerId) {
+            this.clientId = clientId;
+            this.clientNonce = clientNonce;
+            this.ownerId = ownerId;
+        }
+
+        public AccountId getClientId() {
+            return clientId;
+        }
+
+        public int getNonce() {
+            return clientNonce;
+        }
+
+        public AccountId getOwnerId() {
+            return ownerId;
+        }
+
+        private void writeTo(ByteBuffer buffer) {
+            clientId.writeTo(buffer);
+            buffer.putInt(clientNonce);
+            ownerId.writeTo(buffer);
+        }
+
+        private static Read fromByteBuffer(ByteBuffer buffer) {
+            AccountId clientId = AccountId.fromByteBuffer(buffer);
+            int clientNonce = buffer.getInt();
+            return new Read(clientId, clientNonce, AccountId.fromByteBuffer(buffer));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(client = %s, nonce = %d, owner = %s)", clientId, clientNonce, ownerId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Read)) return false;
+            Read read = (Read) obj;
+
+            return read.clientNonce == this.clientNonce &&
+                    read.clientId.equals(this.clientId) &&
+                    read.ownerId.equals(this.ownerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientId, clientNonce, ownerId);
+        }
+    }
+
     private Integer timestamp;
-    private PublicKey clientKey;
-    private Integer clientNonce;
-    
+    private List<Read> reads;
+
     public StrongReadIBFTValue() {
         this.timestamp = -1;
-        this.clientKey = null;
-        this.clientNonce = -1;
+        this.reads = new ArrayList<>();
     }
 
-    public StrongReadIBFTValue(Integer timestamp, PublicKey clientKey, Integer clientNonce) {
+    public StrongReadIBFTValue(Integer timestamp, List<Read> reads) {
         this.timestamp = timestamp;
-        this.clientKey = clientKey;
-        this.clientNonce = clientNonce;
+        this.reads = reads;
     }
 
     public Integer getTimestamp() {
         return this.timestamp;
     }
-    
-    public PublicKey getClientKey() {
-        return this.clientKey;
+
+    public List<Read> getReads() {
+        return this.reads;
     }
 
-    public Integer getNonce() {
-        return this.clientNonce;
+    public boolean isEmpty() {
+        return this.reads.isEmpty();
     }
 
     @Override
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        dos.writeInt(timestamp);
-        
-        byte[] clientKeyBytes = clientKey.getEncoded();
-        dos.writeInt(clientKeyBytes.length);
-        dos.write(clientKeyBytes);
-
-        dos.writeInt(clientNonce);
-
-        return baos.toByteArray();
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(timestamp);
+
+        buffer.putInt(reads.size());
+        for (Read read : reads)
+            read.writeTo(buffer);
     }
-    
+
     @SuppressWarnings("unchecked")
     @Override
-    public StrongReadIBFTValue fromDataInputStream(DataInputStream dis) throws IOException {
+    public StrongReadIBFTValue readFrom(ByteBuffer buffer) throws IOException {
 
-        this.timestamp = dis.readInt();
-        
-        byte[] clientKeyBytes = new byte[dis.readInt()];
-        dis.readFully(clientKeyBytes);
+        this.timestamp = buffer.getInt();
 
-        try {
-            this.clientKey = KeyHandler.deserializePublicKey(clientKeyBytes);
-        } catch (IllegalStateException ile) {
-            throw new IllegalStateException("[ERROR] Deserializing transaction destination key");
-        }
+        int size = buffer.getInt();
+        if (size < 0 || size > buffer.remaining())
+            throw new IOException("[ERROR] Invalid number of strong reads " + size);
 
-        this.clientNonce = dis.readInt();
+        this.reads = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            this.reads.add(Read.fromByteBuffer(buffer));
 
         return this;
     }
-    
+
     @Override
     public String toString() {
-        return String.format("(StrongReadIBFTValue: timestamp = %d, key = %s, nonce = %d)", timestamp, KeyHandler.KeyBase64Readable(clientKey), clientNonce);
+        return String.format("(StrongReadIBFTValue: timestamp = %d, %d reads)", timestamp, reads.size());
     }
 
     @Override
@@ -85,9 +130,8 @@ public class StrongReadIBFTValue implements IBFTValueIT {
         if (!(obj instanceof StrongReadIBFTValue)) return false;
         StrongReadIBFTValue sriv = (StrongReadIBFTValue) obj;
 
-        return sriv.getTimestamp() == this.getTimestamp() &&
-                sriv.getNonce() == this.getNonce() &&
-                sriv.getClientKey().equals(this.getClientKey());
+        return sriv.getTimestamp().equals(this.getTimestamp()) &&
+                sriv.getReads().equals(this.getReads());
     }
 
     @Override
@@ -95,8 +139,7 @@ public class StrongReadIBFTValue implements IBFTValueIT {
         int result = 17;
 
         result = 31 * result + timestamp.hashCode();
-        result = 31 * result + clientKey.hashCode();
-        result = 31 * result + clientNonce.hashCode();
+        result = 31 * result + reads.hashCode();
 
         return result;
     }
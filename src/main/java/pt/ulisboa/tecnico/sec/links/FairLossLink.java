@@ -8,6 +8,7 @@ import java.net.SocketTimeoutException;
 
 import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
 import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
 
 
 // Fair loss point to point link as UDP Datagram sockets
@@ -26,6 +27,7 @@ public class FairLossLink extends Channel {
     private static final int SOCKET_TIMEOUT_MS = 10000;
 
     private DatagramSocket _socket;
+    private final ThreadLocal<byte[]> _receiveBuffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
 
     public FairLossLink(HDLProcess p) {
         super(p);
@@ -46,21 +48,28 @@ public class FairLossLink extends Channel {
 
         // Try send the message
         try {
-            // Creates a UDP packet from message 
-            DatagramPacket packet = message.toDatagramPacket();
-
-            // Sending message
-            System.err.printf("[%s] FLL: Sending packet to %s:%d with %d bytes%n", this.owner,
-                    packet.getAddress().getHostAddress(), packet.getPort(), packet.getLength());
-            _socket.send(packet);
+            message.send(payload -> {
+                // Creates a UDP packet over the encoded message
+                DatagramPacket packet = message.toDatagramPacket(payload);
+
+                // Sending message
+                System.err.printf("[%s] FLL: Sending packet to %s:%d with %d bytes%n", this.owner,
+                        packet.getAddress().getHostAddress(), packet.getPort(), packet.getLength());
+                _socket.send(packet);
+                Metrics.increment(Metrics.PACKETS_SENT);
+                Metrics.add(Metrics.BYTES_SENT, packet.getLength());
+                Metrics.add(Metrics.BYTES_SENT + "." + message.getMessage().getMessageType(), packet.getLength());
+                Metrics.add(Metrics.BYTES_SENT + ".p" + message.getSender().getID(), packet.getLength());
+                return null;
+            });
         } catch (IOException ioe) {
             throw new IllegalStateException(String.format("[ERROR] [%s] FLL: Could not send on this socket", this.owner));
         }
     }
 
     public LinkMessage deliver() throws IllegalStateException, InterruptedException, SocketTimeoutException {
-        // Prepares receive buffer
-        byte[] buffer = new byte[BUFFER_SIZE];
+        // Prepares receive buffer (messages are fully decoded before the next receive)
+        byte[] buffer = _receiveBuffers.get();
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
         // Try receive a message
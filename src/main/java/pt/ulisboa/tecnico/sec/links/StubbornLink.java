@@ -97,9 +97,10 @@ public class StubbornLink extends Channel {
         }
     }
 
-    private boolean timeout(long ms) throws IllegalStateException {
+    // Waits up to ms for the ACK (retrieved by ackThread) instead of always sleeping the whole timeout
+    private boolean timeout(Thread ackThread, long ms) throws IllegalStateException {
         try {
-            Thread.sleep(ms, 1);
+            ackThread.join(ms, 1);
         } catch (InterruptedException e) {
             return false;
         }
@@ -141,7 +142,7 @@ public class StubbornLink extends Channel {
                 return;
             }
 
-            if (!timeout(timeout_ms)) {
+            if (!timeout(thread, timeout_ms)) {
                 thread.interrupt();
                 throw new IllegalStateException(String.format("[ERROR] [%s] SL: Timeout interrupted!", this.owner));
             }
@@ -1,9 +1,6 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ACKMessage extends Message {
 
@@ -23,32 +20,16 @@ public class ACKMessage extends Message {
     }
 
     @Override
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(Message.MessageType.ACK.ordinal());
-
-        dos.writeInt(referId);
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
-
-        return baos.toByteArray();
-    }
-
-    public ACKMessage fromDataInputStream(DataInputStream dis) throws IOException {
-        this.referId = dis.readInt();
+    protected ACKMessage readFrom(ByteBuffer buffer) {
+        this.referId = buffer.getInt();
 
         return this;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(Message.MessageType.ACK.ordinal());
-        dos.writeInt(referId);
-        return baos.toByteArray();
+    @Override
+    public void writeDataTo(ByteBuffer buffer) {
+        buffer.putInt(Message.MessageType.ACK.ordinal());
+        buffer.putInt(referId);
     }
 
     @Override
@@ -1,12 +1,16 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
 import pt.ulisboa.tecnico.sec.ibft.IBFTValueIT;
+import pt.ulisboa.tecnico.sec.ibft.IBFTValueRegistry;
 
 public class BFTMessage<T extends IBFTValueIT> extends Message {
 
@@ -15,13 +19,34 @@ public class BFTMessage<T extends IBFTValueIT> extends Message {
     public enum Type {
         PRE_PREPARE,
         PREPARE,
-        COMMIT
+        COMMIT,
+        ROUND_CHANGE,
+        // Commit certificate of the leader on the PREPAREs of all the servers (fast path)
+        FAST_COMMIT
     }
 
+    // PREPARE and COMMIT messages only carry the digest of the value proposed in the PRE_PREPARE,
+    //  which may itself carry the value in compact form along with the digest of the full value
+    private static final byte FULL_VALUE = 0;
+    private static final byte VALUE_DIGEST = 1;
+    private static final byte COMPACT_VALUE = 2;
+    // ROUND_CHANGEs of processes that didn't prepare any value
+    private static final byte NO_VALUE = 3;
+
     private Type type;
     private int instance;
     private int round;
     private T value;
+    private volatile byte[] valueDigest;
+    private boolean compact;
+    // ROUND_CHANGE: round in which the value was prepared (-1 if none)
+    private int preparedRound = -1;
+    // ROUND_CHANGE: the sender's signed PREPARE of the last round it accepted a PRE_PREPARE in, when after
+    //  the prepared round (null if none, only sent with the fast path)
+    private BFTMessage<T> acceptedPrepare;
+    // Signed messages (by sender id) justifying a ROUND_CHANGE (PREPARE quorum of the prepared value),
+    //  the PRE_PREPARE of a round after the first (ROUND_CHANGE quorum) or a FAST_COMMIT (all the PREPAREs)
+    private Map<Integer, BFTMessage<T>> justification = Collections.emptyMap();
 
     protected BFTMessage(Class<T> clazz) {
         super(MessageType.BFT);
@@ -37,6 +62,14 @@ public class BFTMessage<T extends IBFTValueIT> extends Message {
         this.value = value;
     }
 
+    public BFTMessage(Type type, int instance, int round, Class<T> clazz, byte[] valueDigest) {
+        this(clazz);
+        this.type = type;
+        this.instance = instance;
+        this.round = round;
+        this.valueDigest = valueDigest;
+    }
+
     public Class<T> getClazz() {
         return clazz;
     }
@@ -53,71 +86,186 @@ public class BFTMessage<T extends IBFTValueIT> extends Message {
         return this.round;
     }
 
+    public int getPreparedRound() {
+        return this.preparedRound;
+    }
+
+    public void setPreparedRound(int preparedRound) throws IllegalStateException {
+        checkMutable();
+        this.preparedRound = preparedRound;
+    }
+
+    public BFTMessage<T> getAcceptedPrepare() {
+        return this.acceptedPrepare;
+    }
+
+    public void setAcceptedPrepare(BFTMessage<T> acceptedPrepare) throws IllegalStateException {
+        checkMutable();
+        this.acceptedPrepare = acceptedPrepare;
+    }
+
+    public Map<Integer, BFTMessage<T>> getJustification() {
+        return this.justification;
+    }
+
+    public void setJustification(Map<Integer, BFTMessage<T>> justification) throws IllegalStateException {
+        checkMutable();
+        this.justification = new TreeMap<>(justification);
+    }
+
+    private boolean isJustified() {
+        return type == Type.ROUND_CHANGE || type == Type.FAST_COMMIT || (type == Type.PRE_PREPARE && round > 0);
+    }
+
+    // Null for digest-only messages
     public T getValue() {
         return this.value;
     }
 
-    protected T getEmptyT() {
-        T res = null;
-        try {
-            res = clazz.getDeclaredConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
-                | NoSuchMethodException | SecurityException e) {
-            e.printStackTrace();
-        }
-        
-        return res;
+    public boolean hasValue() {
+        return this.value != null;
     }
 
-    @Override
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        byte[] node = value.toByteArray();
+    public byte[] getValueDigest() throws IllegalStateException {
+        byte[] digest = valueDigest;
+        if (digest == null && hasValue()) {
+            try {
+                valueDigest = digest = value.computeDigest();
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("[ERROR] Computing digest of value %s", value));
+            }
+        }
+        return digest;
+    }
 
-        dos.writeInt(Message.MessageType.BFT.ordinal());
+    // Sends the value in compact form, if it has one
+    public void useCompactForm() throws IllegalStateException {
+        checkMutable();
+        this.compact = value.hasCompactForm();
+    }
 
-        dos.writeUTF(clazz.getName());
+    // Compact values are completed by the receiver
+    public boolean isCompact() {
+        return compact;
+    }
 
-        dos.writeInt(type.ordinal());
-        dos.writeInt(instance);
-        dos.writeInt(round);
-        dos.write(node);
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
+    // Whether the (completed) value matches the digest the sender wrote
+    public boolean hasValidValueDigest() throws IllegalStateException {
+        if (!hasValue()) return false;
+        try {
+            return Arrays.equals(value.computeDigest(), getValueDigest());
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[ERROR] Computing digest of value %s", value));
+        }
+    }
 
-        return baos.toByteArray();
+    protected T getEmptyT() {
+        return IBFTValueRegistry.newValue(clazz);
     }
 
-    public BFTMessage<T> fromDataInputStream(DataInputStream dis) throws IOException {
-        this.type = Type.values()[dis.readInt()];
-        this.instance = dis.readInt();
-        this.round = dis.readInt();
-        this.value = getEmptyT().fromDataInputStream(dis);
+    @Override
+    protected BFTMessage<T> readFrom(ByteBuffer buffer) throws IOException {
+        this.type = Type.values()[buffer.getInt()];
+        this.instance = buffer.getInt();
+        this.round = buffer.getInt();
+
+        byte form = buffer.get();
+        if (form == FULL_VALUE) {
+            this.value = getEmptyT().readFrom(buffer);
+        } else if (form == VALUE_DIGEST || form == COMPACT_VALUE) {
+            this.valueDigest = new byte[AuthenticationHandler.DIGEST_LENGTH];
+            buffer.get(this.valueDigest);
+            if (form == COMPACT_VALUE) {
+                this.compact = true;
+                this.value = getEmptyT().readCompactFrom(buffer);
+            }
+        } else if (form != NO_VALUE) {
+            throw new IOException("[ERROR] Unknown BFT value form " + form);
+        }
+
+        if (type == Type.ROUND_CHANGE) {
+            this.preparedRound = buffer.getInt();
+            if (buffer.get() != 0)
+                this.acceptedPrepare = readBFTMessage(buffer, Type.PREPARE);
+        }
+        if (isJustified())
+            readJustification(buffer);
 
         return this;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+    private void readJustification(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining())
+            throw new IOException("[ERROR] Invalid BFT justification size " + count);
 
-        dos.writeInt(Message.MessageType.BFT.ordinal());
+        this.justification = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            int sender = buffer.getInt();
+            // A PRE_PREPARE is justified by ROUND_CHANGEs, the others by PREPAREs
+            this.justification.put(sender, readBFTMessage(buffer, type == Type.PRE_PREPARE ? Type.ROUND_CHANGE : Type.PREPARE));
+        }
+    }
 
-        dos.writeUTF(clazz.getName());
+    // Nested messages are decoded before any signature is checked, so their type is checked before they are read:
+    //  a PRE_PREPARE's ROUND_CHANGEs only nest PREPAREs, and a datagram can't nest messages any deeper
+    @SuppressWarnings("unchecked")
+    private BFTMessage<T> readBFTMessage(ByteBuffer buffer, Type expected) throws IOException {
+        int start = buffer.position();
+        if (buffer.getInt(start) != MessageType.BFT.ordinal()
+                || buffer.get(start + Integer.BYTES) != IBFTValueRegistry.tagOf(clazz)
+                || buffer.getInt(start + Integer.BYTES + 1) != expected.ordinal())
+            throw new IOException("[ERROR] Invalid BFT justification message, expected " + expected);
+
+        Message message = Message.fromByteBuffer(buffer);
+        if (!(message instanceof BFTMessage) || ((BFTMessage<?>) message).getClazz() != clazz)
+            throw new IOException("[ERROR] Invalid BFT justification message " + message);
+        return (BFTMessage<T>) message;
+    }
 
-        dos.writeInt(type.ordinal());
-        dos.writeInt(instance);
-        dos.writeInt(round);
-        dos.write(value.toByteArray());
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.BFT.ordinal());
+
+        buffer.put(IBFTValueRegistry.tagOf(clazz));
+
+        buffer.putInt(type.ordinal());
+        buffer.putInt(instance);
+        buffer.putInt(round);
+
+        if (compact) {
+            buffer.put(COMPACT_VALUE);
+            buffer.put(getValueDigest());
+            value.writeCompactTo(buffer);
+        } else if (hasValue()) {
+            buffer.put(FULL_VALUE);
+            value.writeTo(buffer);
+        } else if (valueDigest != null) {
+            buffer.put(VALUE_DIGEST);
+            buffer.put(valueDigest);
+        } else {
+            buffer.put(NO_VALUE);
+        }
 
-        return baos.toByteArray();
+        if (type == Type.ROUND_CHANGE) {
+            buffer.putInt(preparedRound);
+            buffer.put((byte) (acceptedPrepare == null ? 0 : 1));
+            if (acceptedPrepare != null)
+                acceptedPrepare.writeTo(buffer);
+        }
+        if (isJustified()) {
+            buffer.putInt(justification.size());
+            for (Map.Entry<Integer, BFTMessage<T>> entry : justification.entrySet()) {
+                buffer.putInt(entry.getKey());
+                entry.getValue().writeTo(buffer);
+            }
+        }
     }
 
     @Override
     public String toString() {
-        return String.format("BFT/%s(%d, %d):%s", type.toString(), instance, round, value);
+        return String.format("BFT/%s(%d, %d):%s", type.toString(), instance, round,
+            hasValue() ? value : valueDigest == null ? "-" : "#" + Base64.getEncoder().encodeToString(valueDigest).substring(0, 16));
     }
 
     @SuppressWarnings("unchecked")
@@ -126,14 +274,16 @@ public class BFTMessage<T extends IBFTValueIT> extends Message {
         if (!(obj instanceof BFTMessage)) return false;
         BFTMessage<T> message = (BFTMessage<T>) obj;
         return message.getInstance() == this.instance && message.getRound() == this.round
-                && message.getType().equals(this.getType()) && message.getValue().equals(this.getValue());
+                && message.getType().equals(this.getType())
+                && (message.hasValue() && this.hasValue() ? message.getValue().equals(this.getValue())
+                    : Arrays.equals(message.getValueDigest(), this.getValueDigest()));
     }
 
     @Override
     public int hashCode() {
         int result = 17;
 
-        result = 31 * result + value.hashCode();
+        result = 31 * result + type.hashCode();
         result = 31 * result + instance;
         result = 31 * result + round;
 
@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
+
+// Signed by a server that stored a batch, sent back to the server that disseminated it
+public class BatchAckMessage extends Message {
+    private byte[] digest;
+
+    protected BatchAckMessage() {
+        super(MessageType.BATCH_ACK);
+    }
+
+    public BatchAckMessage(byte[] digest) {
+        super(MessageType.BATCH_ACK);
+        this.digest = digest;
+    }
+
+    public byte[] getBatchDigest() {
+        return digest;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) {
+        buffer.putInt(Message.MessageType.BATCH_ACK.ordinal());
+        buffer.put(digest);
+    }
+
+    @Override
+    protected BatchAckMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.digest = readBatchDigest(buffer);
+
+        return this;
+    }
+
+    static byte[] readBatchDigest(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < AuthenticationHandler.DIGEST_LENGTH)
+            throw new IOException("[ERROR] Truncated batch digest");
+        byte[] digest = new byte[AuthenticationHandler.DIGEST_LENGTH];
+        buffer.get(digest);
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { batch:%s }", Message.MessageType.BATCH_ACK.toString(), Base64.getEncoder().encodeToString(digest));
+    }
+}
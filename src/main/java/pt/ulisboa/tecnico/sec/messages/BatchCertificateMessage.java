@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The signed acks of f+1 servers for a batch: at least one correct server holds it, so a leader may
+//  propose its digest alone
+public class BatchCertificateMessage extends Message {
+    private byte[] digest;
+    private Map<Integer, BatchAckMessage> acks;
+
+    protected BatchCertificateMessage() {
+        super(MessageType.BATCH_CERTIFICATE);
+        acks = new TreeMap<>();
+    }
+
+    public BatchCertificateMessage(byte[] digest, Map<Integer, BatchAckMessage> acks) {
+        super(MessageType.BATCH_CERTIFICATE);
+        this.digest = digest;
+        this.acks = new TreeMap<>(acks);
+    }
+
+    public byte[] getBatchDigest() {
+        return digest;
+    }
+
+    // By the id of the server that signed each one
+    public Map<Integer, BatchAckMessage> getAcks() {
+        return acks;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.BATCH_CERTIFICATE.ordinal());
+        buffer.put(digest);
+
+        buffer.putInt(acks.size());
+        for (Map.Entry<Integer, BatchAckMessage> entry : acks.entrySet()) {
+            buffer.putInt(entry.getKey());
+            entry.getValue().writeTo(buffer);
+        }
+    }
+
+    @Override
+    protected BatchCertificateMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.digest = BatchAckMessage.readBatchDigest(buffer);
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining())
+            throw new IOException("[ERROR] Invalid batch certificate size " + count);
+
+        for (int i = 0; i < count; i++) {
+            int sender = buffer.getInt();
+            Message ack = Message.fromByteBuffer(buffer);
+            if (!(ack instanceof BatchAckMessage))
+                throw new IOException("[ERROR] Invalid batch certificate message " + ack);
+            acks.put(sender, (BatchAckMessage) ack);
+        }
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { batch:%s | %d acks }", Message.MessageType.BATCH_CERTIFICATE.toString(),
+            Base64.getEncoder().encodeToString(digest), acks.size());
+    }
+}
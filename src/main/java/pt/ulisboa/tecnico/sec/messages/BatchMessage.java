@@ -0,0 +1,59 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
+
+// Client requests cut into a batch by the server that disseminates them, sent to every server before any
+//  proposal refers to them (and to whoever asks for a batch it misses)
+public class BatchMessage extends Message {
+    private List<Transaction> transactions;
+
+    protected BatchMessage() {
+        super(MessageType.BATCH);
+        transactions = new ArrayList<>();
+    }
+
+    public BatchMessage(List<Transaction> transactions) {
+        super(MessageType.BATCH);
+        this.transactions = transactions;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.BATCH.ordinal());
+
+        for (Transaction t : transactions) {
+            int section = WireCodec.beginSection(buffer);
+            t.writeTo(buffer);
+            WireCodec.endSection(buffer, section);
+        }
+
+        buffer.putInt(0);
+    }
+
+    @Override
+    protected BatchMessage readFrom(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        while (length != 0) {
+            ByteBuffer transactionBytes = WireCodec.section(buffer, length);
+            transactions.add(WireCodec.read(transactionBytes, Transaction::fromByteBuffer));
+            length = buffer.getInt();
+        }
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { %d transactions }", Message.MessageType.BATCH.toString(), transactions.size());
+    }
+}
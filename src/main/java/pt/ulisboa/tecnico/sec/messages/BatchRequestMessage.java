@@ -0,0 +1,41 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+// Asks a server that acknowledged a batch for its transactions, answered with the BatchMessage
+public class BatchRequestMessage extends Message {
+    private byte[] digest;
+
+    protected BatchRequestMessage() {
+        super(MessageType.BATCH_REQUEST);
+    }
+
+    public BatchRequestMessage(byte[] digest) {
+        super(MessageType.BATCH_REQUEST);
+        this.digest = digest;
+    }
+
+    public byte[] getBatchDigest() {
+        return digest;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) {
+        buffer.putInt(Message.MessageType.BATCH_REQUEST.ordinal());
+        buffer.put(digest);
+    }
+
+    @Override
+    protected BatchRequestMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.digest = BatchAckMessage.readBatchDigest(buffer);
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { batch:%s }", Message.MessageType.BATCH_REQUEST.toString(), Base64.getEncoder().encodeToString(digest));
+    }
+}
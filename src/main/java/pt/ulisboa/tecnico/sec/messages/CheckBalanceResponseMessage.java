@@ -1,9 +1,7 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -42,46 +40,29 @@ public class CheckBalanceResponseMessage extends ClientResponseMessage {
         return this.signedTESAccount;
     }
 
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(this.getDataBytes());
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
-
-        return baos.toByteArray();
-    }
-
     @Override
-    public CheckBalanceResponseMessage fromDataInputStream(DataInputStream dis) throws IOException {
-        int accountNumber = dis.readInt();
+    protected CheckBalanceResponseMessage readFrom(ByteBuffer buffer) throws IOException {
+        int accountNumber = buffer.getInt();
 
         for (int i = 0; i < accountNumber; i++) {
-            SignedTESAccount account = new SignedTESAccount().fromDataInputStream(dis);
+            SignedTESAccount account = new SignedTESAccount().readFrom(buffer);
             this.signedTESAccount.add(account);
         }
-        this.tucs = dis.readDouble();
+        this.tucs = buffer.getDouble();
 
         return this;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(super.getDataBytes());
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        super.writeDataTo(buffer);
 
-        dos.writeInt(signedTESAccount.size());
+        buffer.putInt(signedTESAccount.size());
         for (SignedTESAccount account : signedTESAccount) {
-            byte[] accountBytes = account.toByteArray();
-            //dos.writeInt(accountBytes.length);
-            dos.write(accountBytes);
+            account.writeTo(buffer);
         }
 
-        dos.writeDouble(tucs);
-        
-        return baos.toByteArray();
+        buffer.putDouble(tucs);
     }
 
     @Override
@@ -1,11 +1,10 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public class ClientRequestMessage extends Message {
 
@@ -25,41 +24,20 @@ public class ClientRequestMessage extends Message {
     }
 
     @Override
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        byte[] transactionBytes = transaction.toByteArray();
-
-        dos.writeInt(Message.MessageType.CLIENT_REQUEST.ordinal());
-        dos.writeInt(transactionBytes.length);
-        dos.write(transactionBytes);
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
-
-        return baos.toByteArray();
-    }
-
-    @Override
-    public ClientRequestMessage fromDataInputStream(DataInputStream dis) throws IOException {
-        byte[] transactionBytes = new byte[dis.readInt()];
-        dis.readFully(transactionBytes);
-        this.transaction = Transaction.fromByteArray(transactionBytes);
+    protected ClientRequestMessage readFrom(ByteBuffer buffer) throws IOException {
+        ByteBuffer transactionBytes = WireCodec.section(buffer, buffer.getInt());
+        this.transaction = WireCodec.read(transactionBytes, Transaction::fromByteBuffer);
 
         return this;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        byte[] transactionBytes = transaction.toByteArray();
-
-        dos.writeInt(Message.MessageType.CLIENT_REQUEST.ordinal());
-        dos.writeInt(transactionBytes.length);
-        dos.write(transactionBytes);
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.CLIENT_REQUEST.ordinal());
 
-        return baos.toByteArray();
+        int section = WireCodec.beginSection(buffer);
+        transaction.writeTo(buffer);
+        WireCodec.endSection(buffer, section);
     }
 
     @Override
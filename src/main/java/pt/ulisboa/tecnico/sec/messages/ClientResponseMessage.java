@@ -1,15 +1,15 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ClientResponseMessage extends Message {
 
     public enum ResponseType {
         CHECK_BALANCE,
-        DEFAULT
+        DEFAULT,
+        // Result of a transaction executed before it was decided, at the PREPARE quorum of its block
+        TENTATIVE
     }
 
     public enum Status {
@@ -50,6 +50,10 @@ public class ClientResponseMessage extends Message {
     public ResponseType getResponseType() {
         return this.responseType;
     }
+
+    public boolean isTentative() {
+        return this.responseType == ResponseType.TENTATIVE;
+    }
     
     public Status getStatus() {
         return this.status;
@@ -63,44 +67,30 @@ public class ClientResponseMessage extends Message {
         return this.nonce;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(Message.MessageType.CLIENT_RESPONSE.ordinal());
-        dos.writeInt(responseType.ordinal());
-        dos.writeInt(status.ordinal());
-        dos.writeInt(timestamp);
-        dos.writeInt(nonce);
-
-        return baos.toByteArray();
-    }
-
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(this.getDataBytes());
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
-
-        return baos.toByteArray();
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.CLIENT_RESPONSE.ordinal());
+        buffer.putInt(responseType.ordinal());
+        buffer.putInt(status.ordinal());
+        buffer.putInt(timestamp);
+        buffer.putInt(nonce);
     }
 
     @Override
-    public ClientResponseMessage fromDataInputStream(DataInputStream dis) throws IOException {
-        this.responseType = ResponseType.values()[dis.readInt()];
+    protected ClientResponseMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.responseType = ResponseType.values()[buffer.getInt()];
         
-        Status status = Status.values()[dis.readInt()];
-        int timestamp = dis.readInt();
-        int nonce = dis.readInt();
+        Status status = Status.values()[buffer.getInt()];
+        int timestamp = buffer.getInt();
+        int nonce = buffer.getInt();
 
         ClientResponseMessage message = this;
         switch (responseType) {
             case CHECK_BALANCE:
-                message = new CheckBalanceResponseMessage().fromDataInputStream(dis);
+                message = new CheckBalanceResponseMessage().readFrom(buffer);
                 break;
             case DEFAULT:
+            case TENTATIVE:
             default:
                 break;
         }
@@ -114,6 +104,6 @@ public class ClientResponseMessage extends Message {
 
     @Override
     public String toString() {
-        return String.format("%s/%s/%d", Message.MessageType.CLIENT_RESPONSE.toString(), status, timestamp);
+        return String.format("%s/%s/%d%s", Message.MessageType.CLIENT_RESPONSE.toString(), status, timestamp, isTentative() ? "/tentative" : "");
     }
 }
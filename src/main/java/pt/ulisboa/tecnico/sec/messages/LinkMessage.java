@@ -1,17 +1,20 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
 import pt.ulisboa.tecnico.sec.instances.InstanceManager;
+import pt.ulisboa.tecnico.sec.utils.Compression;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public class LinkMessage {
 
+    // Header flags
+    private static final byte TERMINATE = 1;
+    private static final byte COMPRESSED = 2;
+
     private static int UNIQUE_ID;
     private final int _id;
     private Message _message;
@@ -55,33 +58,42 @@ public class LinkMessage {
         return _terminate;
     }
  
-    public DatagramPacket toDatagramPacket() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(_id);
-        dos.writeInt(_sender.getID());
-        dos.writeBoolean(_terminate);
-        byte[] messageBytes = _message.toByteArray();
-        dos.write(messageBytes);
-
-        byte[] payload = baos.toByteArray();
-        return new DatagramPacket(payload, payload.length, _receiver.getAddress(), _receiver.getPort());
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(_id);
+        buffer.putInt(_sender.getID());
+        int flags = buffer.position();
+        buffer.put(_terminate ? TERMINATE : 0);
+
+        int start = buffer.position();
+        _message.writeTo(buffer);
+        if (Compression.compress(buffer, start))
+            buffer.put(flags, (byte) (buffer.get(flags) | COMPRESSED));
     }
 
+    // Encodes the message in the thread buffer and hands the packet to the sender without copying it
+    public void send(WireCodec.Reader<Void> sender) throws IOException {
+        WireCodec.encode(this::writeTo, sender);
+    }
 
-    public static LinkMessage fromDatagramPacket(DatagramPacket packet, HDLProcess receiver) throws IOException {
-        byte[] payload = packet.getData();
-        ByteArrayInputStream bais = new ByteArrayInputStream(payload);
-        DataInputStream dis = new DataInputStream(bais);
-
-        int payloadId = dis.readInt();
-        int senderId = dis.readInt();
-        Boolean terminate = dis.readBoolean();
-        Message message = Message.fromByteArray(dis.readAllBytes());
-        HDLProcess sender = InstanceManager.getHDLProcess(senderId);
+    public DatagramPacket toDatagramPacket(ByteBuffer payload) {
+        return new DatagramPacket(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+            _receiver.getAddress(), _receiver.getPort());
+    }
 
-        return new LinkMessage(payloadId, message, sender, receiver, terminate);
+    // Decodes in place from the packet buffer
+    public static LinkMessage fromDatagramPacket(DatagramPacket packet, HDLProcess receiver) throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+
+        return WireCodec.read(payload, buffer -> {
+            int payloadId = buffer.getInt();
+            int senderId = buffer.getInt();
+            byte flags = buffer.get();
+            Boolean terminate = (flags & TERMINATE) != 0;
+            Message message = Message.fromByteBuffer((flags & COMPRESSED) != 0 ? Compression.decompress(buffer) : buffer);
+            HDLProcess sender = InstanceManager.getHDLProcess(senderId);
+
+            return new LinkMessage(payloadId, message, sender, receiver, terminate);
+        });
     }
 
 
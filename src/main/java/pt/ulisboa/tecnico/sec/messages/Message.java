@@ -1,8 +1,7 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
@@ -10,6 +9,9 @@ import javax.crypto.SecretKey;
 
 import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
 import pt.ulisboa.tecnico.sec.ibft.IBFTValueIT;
+import pt.ulisboa.tecnico.sec.ibft.IBFTValueRegistry;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public abstract class Message {
     
@@ -20,7 +22,15 @@ public abstract class Message {
         PROPAGATE_CHANGES,
         CLIENT_REQUEST,
         CLIENT_RESPONSE,
-        ACK
+        ACK,
+        TRANSACTION_REQUEST,
+        TRANSACTION_RESPONSE,
+        TRANSACTION_FORWARD,
+        READ_INDEX,
+        BATCH,
+        BATCH_ACK,
+        BATCH_CERTIFICATE,
+        BATCH_REQUEST
     }
 
     protected MessageType msgType;
@@ -29,6 +39,11 @@ public abstract class Message {
     protected String mac = HASH_NONE;
     protected String signature = HASH_NONE;
 
+    // Canonical encoding of the authenticated part and its digest, computed once. A message is immutable
+    //  after its first encoding (or decoding), so MACs, signatures and every send reuse the same bytes.
+    private volatile byte[] dataBytes;
+    private volatile byte[] digest;
+
     protected Message(MessageType msgType) {
         this.msgType = msgType;
     }
@@ -53,52 +68,116 @@ public abstract class Message {
         this.signature = signature;
     }
 
-    public abstract byte[] toByteArray() throws IOException;
-    public abstract Message fromDataInputStream(DataInputStream dis) throws IOException; 
+    // Authenticated part of the message (what MACs and signatures cover)
+    public abstract void writeDataTo(ByteBuffer buffer) throws IOException;
+
+    // Reads the message-specific part, after the message type
+    protected abstract Message readFrom(ByteBuffer buffer) throws IOException;
+
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        buffer.put(getDataBytes());
+        WireCodec.putUTF(buffer, mac);
+        WireCodec.putUTF(buffer, signature);
+    }
 
+    public byte[] toByteArray() throws IOException {
+        return WireCodec.toByteArray(this::writeTo);
+    }
+
+    // The returned array is shared and must not be modified
+    public byte[] getDataBytes() throws IOException {
+        byte[] bytes = dataBytes;
+        if (bytes == null) {
+            Metrics.increment(Metrics.MESSAGE_ENCODINGS);
+            dataBytes = bytes = WireCodec.toByteArray(this::writeDataTo);
+        }
+        return bytes;
+    }
+
+    public byte[] getDigest() throws IOException {
+        byte[] hash = digest;
+        if (hash == null) {
+            Metrics.increment(Metrics.DIGESTS);
+            digest = hash = AuthenticationHandler.digest(getDataBytes());
+        }
+        return hash;
+    }
+
+    protected void checkMutable() throws IllegalStateException {
+        if (dataBytes != null)
+            throw new IllegalStateException(String.format("[ERROR] Message %s can't change after being encoded", this));
+    }
 
     public static Message fromByteArray(byte[] bytes) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        DataInputStream dis = new DataInputStream(bais);
+        return WireCodec.decode(bytes, Message::fromByteBuffer);
+    }
+
+    public static Message fromByteBuffer(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int ordinal = buffer.getInt();
+        if (ordinal < 0 || ordinal >= MessageType.values().length)
+            throw new IOException("[ERROR] Unknown message type: " + ordinal);
 
         // spaghetti code because java doesn't allow abstract static methods lol
-        MessageType messageType = MessageType.values()[dis.readInt()];
+        MessageType messageType = MessageType.values()[ordinal];
         Message message = null;
         switch (messageType) {
             case BFT:
-                String className = dis.readUTF();
-                try {
-                    Class<? extends IBFTValueIT> valueSubclass = Class.forName(className).asSubclass(IBFTValueIT.class);
-                    
-                    message = new BFTMessage<>(valueSubclass).fromDataInputStream(dis);
-                } catch (Exception e) {
-                    e.printStackTrace(System.out);
-                    System.out.println("REBENTOU A OBTER CLASSE/CHAMAR METODO :(");
-                    
-                }
+                byte tag = buffer.get();
+                Class<? extends IBFTValueIT> valueSubclass = IBFTValueRegistry.classOf(tag);
+                if (valueSubclass == null)
+                    throw new IOException("[ERROR] Decoding BFT message with unknown value tag " + tag);
 
+                message = new BFTMessage<>(valueSubclass).readFrom(buffer);
                 break;
             case CLIENT_REQUEST:
-                message = new ClientRequestMessage().fromDataInputStream(dis);
+                message = new ClientRequestMessage().readFrom(buffer);
                 break;
             case CLIENT_RESPONSE:
-                message = new ClientResponseMessage().fromDataInputStream(dis);
+                message = new ClientResponseMessage().readFrom(buffer);
                 break;
             case ACK:
-                message = new ACKMessage().fromDataInputStream(dis);
+                message = new ACKMessage().readFrom(buffer);
                 break;
             case PROPAGATE_CHANGES:
-                message = new PropagateChangesMessage().fromDataInputStream(dis);
+                message = new PropagateChangesMessage().readFrom(buffer);
+                break;
+            case TRANSACTION_REQUEST:
+                message = new TransactionRequestMessage().readFrom(buffer);
+                break;
+            case TRANSACTION_RESPONSE:
+                message = new TransactionResponseMessage().readFrom(buffer);
+                break;
+            case TRANSACTION_FORWARD:
+                message = new TransactionForwardMessage().readFrom(buffer);
+                break;
+            case READ_INDEX:
+                message = new ReadIndexMessage().readFrom(buffer);
+                break;
+            case BATCH:
+                message = new BatchMessage().readFrom(buffer);
+                break;
+            case BATCH_ACK:
+                message = new BatchAckMessage().readFrom(buffer);
+                break;
+            case BATCH_CERTIFICATE:
+                message = new BatchCertificateMessage().readFrom(buffer);
+                break;
+            case BATCH_REQUEST:
+                message = new BatchRequestMessage().readFrom(buffer);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown message type: " + messageType);
         }
         
+        // The received bytes are what the sender authenticated
+        message.dataBytes = WireCodec.copy(buffer, start, buffer.position());
+
         // Setting mac
-        message.mac = dis.readUTF();
+        message.mac = WireCodec.getUTF(buffer);
 
         // Setting signature
-        message.signature = dis.readUTF();
+        message.signature = WireCodec.getUTF(buffer);
 
         return message;
     }
@@ -141,8 +220,6 @@ public abstract class Message {
         return valid;
     }
 
-    public abstract byte[] getDataBytes() throws IOException;
-
     @Override
     public abstract String toString();
 }
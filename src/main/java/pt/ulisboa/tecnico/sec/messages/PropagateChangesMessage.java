@@ -1,14 +1,13 @@
 package pt.ulisboa.tecnico.sec.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
 
 import pt.ulisboa.tecnico.sec.tes.SignedTESAccount;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public class PropagateChangesMessage extends Message {
     private List<SignedTESAccount> signedStates;
@@ -33,7 +32,8 @@ public class PropagateChangesMessage extends Message {
         return this.timestamp;
     }
 
-    public void addAccount(SignedTESAccount account) {
+    public void addAccount(SignedTESAccount account) throws IllegalStateException {
+        checkMutable();
         this.signedStates.add(account);
     }
 
@@ -46,44 +46,30 @@ public class PropagateChangesMessage extends Message {
         return true;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(Message.MessageType.PROPAGATE_CHANGES.ordinal());
-        dos.writeInt(timestamp);
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.PROPAGATE_CHANGES.ordinal());
+        buffer.putInt(timestamp);
         
         for (SignedTESAccount account : signedStates) {
-            byte[] accountBytes = account.toByteArray();
-            dos.writeInt(accountBytes.length);
-            dos.write(accountBytes);
+            int section = WireCodec.beginSection(buffer);
+            account.writeTo(buffer);
+            WireCodec.endSection(buffer, section);
         }
 
-        dos.writeInt(0);
-
-        return baos.toByteArray();
-    }
-
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(this.getDataBytes());
-        dos.writeUTF(super.mac);
-        dos.writeUTF(super.signature);
-
-        return baos.toByteArray();
+        buffer.putInt(0);
     }
     
     @Override
-    public Message fromDataInputStream(DataInputStream dis) throws IOException {
-        this.timestamp = dis.readInt();
+    protected PropagateChangesMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.timestamp = buffer.getInt();
 
-        int length = dis.readInt();
+        int length = buffer.getInt();
 
         while (length != 0) {
-            this.signedStates.add(new SignedTESAccount().fromDataInputStream(dis));
-            length = dis.readInt();
+            ByteBuffer accountBytes = WireCodec.section(buffer, length);
+            this.signedStates.add(new SignedTESAccount().readFrom(accountBytes));
+            length = buffer.getInt();
         }
 
         return this;
@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+
+// Sent to every server once a strong read reaches this one, with the highest instance it committed then
+public class ReadIndexMessage extends Message {
+    private AccountId client;
+    private int nonce;
+    private int committed;
+
+    protected ReadIndexMessage() {
+        super(MessageType.READ_INDEX);
+    }
+
+    public ReadIndexMessage(AccountId client, int nonce, int committed) {
+        super(MessageType.READ_INDEX);
+        this.client = client;
+        this.nonce = nonce;
+        this.committed = committed;
+    }
+
+    public AccountId getClient() {
+        return client;
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    public int getCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) {
+        buffer.putInt(Message.MessageType.READ_INDEX.ordinal());
+        client.writeTo(buffer);
+        buffer.putInt(nonce);
+        buffer.putInt(committed);
+    }
+
+    @Override
+    protected ReadIndexMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.client = AccountId.fromByteBuffer(buffer);
+        this.nonce = buffer.getInt();
+        this.committed = buffer.getInt();
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { client:%s | nonce:%d | committed:%d }", Message.MessageType.READ_INDEX.toString(), client, nonce, committed);
+    }
+}
@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
+
+// Client transactions a follower validated, sent to the leader it expects to propose them
+public class TransactionForwardMessage extends Message {
+    private List<Transaction> transactions;
+
+    protected TransactionForwardMessage() {
+        super(MessageType.TRANSACTION_FORWARD);
+        transactions = new ArrayList<>();
+    }
+
+    public TransactionForwardMessage(List<Transaction> transactions) {
+        super(MessageType.TRANSACTION_FORWARD);
+        this.transactions = transactions;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.TRANSACTION_FORWARD.ordinal());
+
+        for (Transaction t : transactions) {
+            int section = WireCodec.beginSection(buffer);
+            t.writeTo(buffer);
+            WireCodec.endSection(buffer, section);
+        }
+
+        buffer.putInt(0);
+    }
+
+    @Override
+    protected TransactionForwardMessage readFrom(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        while (length != 0) {
+            ByteBuffer transactionBytes = WireCodec.section(buffer, length);
+            transactions.add(WireCodec.read(transactionBytes, Transaction::fromByteBuffer));
+            length = buffer.getInt();
+        }
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { %d transactions }", Message.MessageType.TRANSACTION_FORWARD.toString(), transactions.size());
+    }
+}
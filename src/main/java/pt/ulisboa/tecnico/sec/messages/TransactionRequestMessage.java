@@ -0,0 +1,60 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Asks the leader for the transactions of a compact PRE_PREPARE this server doesn't know
+public class TransactionRequestMessage extends Message {
+    private int instance;
+    private List<Long> shortIds;
+
+    protected TransactionRequestMessage() {
+        super(MessageType.TRANSACTION_REQUEST);
+        shortIds = new ArrayList<>();
+    }
+
+    public TransactionRequestMessage(int instance, List<Long> shortIds) {
+        super(MessageType.TRANSACTION_REQUEST);
+        this.instance = instance;
+        this.shortIds = shortIds;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public List<Long> getShortIds() {
+        return shortIds;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) {
+        buffer.putInt(Message.MessageType.TRANSACTION_REQUEST.ordinal());
+        buffer.putInt(instance);
+
+        buffer.putInt(shortIds.size());
+        for (long id : shortIds)
+            buffer.putLong(id);
+    }
+
+    @Override
+    protected TransactionRequestMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.instance = buffer.getInt();
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / Long.BYTES)
+            throw new IOException("[ERROR] Invalid number of short transaction ids " + count);
+
+        for (int i = 0; i < count; i++)
+            shortIds.add(buffer.getLong());
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { instance:%d | %d ids }", Message.MessageType.TRANSACTION_REQUEST.toString(), instance, shortIds.size());
+    }
+}
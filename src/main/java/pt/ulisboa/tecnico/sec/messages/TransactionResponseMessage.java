@@ -0,0 +1,67 @@
+package pt.ulisboa.tecnico.sec.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
+
+// Transactions of a compact PRE_PREPARE, sent by the leader to whoever asked for them
+public class TransactionResponseMessage extends Message {
+    private int instance;
+    private List<Transaction> transactions;
+
+    protected TransactionResponseMessage() {
+        super(MessageType.TRANSACTION_RESPONSE);
+        transactions = new ArrayList<>();
+    }
+
+    public TransactionResponseMessage(int instance, List<Transaction> transactions) {
+        super(MessageType.TRANSACTION_RESPONSE);
+        this.instance = instance;
+        this.transactions = transactions;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    @Override
+    public void writeDataTo(ByteBuffer buffer) throws IOException {
+        buffer.putInt(Message.MessageType.TRANSACTION_RESPONSE.ordinal());
+        buffer.putInt(instance);
+
+        for (Transaction t : transactions) {
+            int section = WireCodec.beginSection(buffer);
+            t.writeTo(buffer);
+            WireCodec.endSection(buffer, section);
+        }
+
+        buffer.putInt(0);
+    }
+
+    @Override
+    protected TransactionResponseMessage readFrom(ByteBuffer buffer) throws IOException {
+        this.instance = buffer.getInt();
+
+        int length = buffer.getInt();
+        while (length != 0) {
+            ByteBuffer transactionBytes = WireCodec.section(buffer, length);
+            transactions.add(WireCodec.read(transactionBytes, Transaction::fromByteBuffer));
+            length = buffer.getInt();
+        }
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { instance:%d | %d transactions }", Message.MessageType.TRANSACTION_RESPONSE.toString(), instance, transactions.size());
+    }
+}
@@ -0,0 +1,75 @@
+package pt.ulisboa.tecnico.sec.tes;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+
+// Account identifier of the TES: the SHA-256 fingerprint of the account public key
+public final class AccountId {
+
+    public static final int LENGTH = 32;
+
+    // Used for printing ids in a readable way
+    private static final int B64_READABLE_LENGTH = 16;
+
+    private final byte[] _fingerprint;
+    private final int _hash;
+
+    private AccountId(byte[] fingerprint) {
+        _fingerprint = fingerprint;
+        _hash = Arrays.hashCode(fingerprint);
+    }
+
+    public static AccountId of(PublicKey key) throws IllegalStateException {
+        return new AccountId(KeyHandler.fingerprint(key));
+    }
+
+    public static AccountId fromBytes(byte[] bytes) throws IllegalStateException {
+        if (bytes.length != LENGTH)
+            throw new IllegalStateException("[ERROR] Invalid account id length " + bytes.length);
+        return new AccountId(bytes.clone());
+    }
+
+    public boolean isOwnedBy(PublicKey key) {
+        return key != null && Arrays.equals(_fingerprint, KeyHandler.fingerprint(key));
+    }
+
+    public byte[] getBytes() {
+        return _fingerprint.clone();
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(_fingerprint);
+    }
+
+    public static AccountId fromByteBuffer(ByteBuffer buffer) {
+        byte[] fingerprint = new byte[LENGTH];
+        buffer.get(fingerprint);
+        return new AccountId(fingerprint);
+    }
+
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(_fingerprint);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof AccountId)) return false;
+        AccountId id = (AccountId) obj;
+        return id._hash == this._hash && Arrays.equals(id._fingerprint, this._fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return _hash;
+    }
+
+    @Override
+    public String toString() {
+        return toBase64().substring(0, B64_READABLE_LENGTH);
+    }
+}
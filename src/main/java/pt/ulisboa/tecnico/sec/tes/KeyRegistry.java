@@ -0,0 +1,36 @@
+package pt.ulisboa.tecnico.sec.tes;
+
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+
+// Replica view of the public keys behind the account ids, populated by the CREATE_ACCOUNT transactions.
+// Bindings are self-certifying (the id is the key fingerprint), so any valid key can be registered.
+public class KeyRegistry {
+
+    private Map<AccountId, PublicKey> _keys;
+
+    public KeyRegistry() {
+        _keys = new ConcurrentHashMap<>();
+    }
+
+    public AccountId register(PublicKey key) {
+        AccountId id = AccountId.of(key);
+        _keys.putIfAbsent(id, KeyHandler.intern(key));
+        return id;
+    }
+
+    public PublicKey lookup(AccountId id) {
+        return _keys.get(id);
+    }
+
+    public boolean contains(AccountId id) {
+        return _keys.containsKey(id);
+    }
+
+    public int size() {
+        return _keys.size();
+    }
+}
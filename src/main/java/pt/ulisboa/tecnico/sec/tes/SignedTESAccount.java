@@ -1,20 +1,18 @@
 package pt.ulisboa.tecnico.sec.tes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
 import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 public class SignedTESAccount {
-    private PublicKey owner;
+    private AccountId owner;
     private double tucs;
     private String signature;
-    private PublicKey signer;
+    private AccountId signer;
 
     public SignedTESAccount() {}
 
@@ -23,78 +21,50 @@ public class SignedTESAccount {
         this.tucs = account.getTucs();
     }
 
-    public PublicKey getOwner() { return owner; }
-    public PublicKey getSigner() { return signer; }
+    public AccountId getOwner() { return owner; }
+    public AccountId getSigner() { return signer; }
     public double getBalance() { return tucs; }
 
-    public void authenticateState(PublicKey signer, PrivateKey key) throws IllegalStateException {
+    public void authenticateState(AccountId signer, PrivateKey key) throws IllegalStateException {
         try {
             this.signer = signer;
-            this.signature = AuthenticationHandler.signBytes(key, this.getDataBytes());
+            this.signature = WireCodec.encode(this::writeDataTo, data -> AuthenticationHandler.signBytes(key, data));
         } catch (IllegalStateException | IOException e) {
             throw new IllegalStateException(String.format("[ERROR] Authenticating Account State %s with %s", this, key));
         }
     }
 
-    public boolean validateState() {
-        return validateState(this.signer);
-    }
-
     public boolean validateState(PublicKey key) throws IllegalStateException {
         boolean valid = false;
+        if (!signer.isOwnedBy(key)) return false;
         try {
-            valid = AuthenticationHandler.checkSignature(key, signature, this.getDataBytes());
+            valid = WireCodec.encode(this::writeDataTo, data -> AuthenticationHandler.checkSignature(key, signature, data));
         } catch (IllegalStateException | IOException e) {
             throw new IllegalStateException(String.format("[ERROR] Validating Account State %s", this));
         }
         return valid;
     }
 
-    private byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeDouble(tucs);
-        
-        byte[] ownerKey = owner.getEncoded();
-        dos.writeInt(ownerKey.length);
-        dos.write(ownerKey);
-
-        byte[] signerKey = signer.getEncoded();
-        dos.writeInt(signerKey.length);
-        dos.write(signerKey);
+    private void writeDataTo(ByteBuffer buffer) {
+        buffer.putDouble(tucs);
+        owner.writeTo(buffer);
+        signer.writeTo(buffer);
+    }
 
-        return baos.toByteArray();
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        writeDataTo(buffer);
+        WireCodec.putUTF(buffer, signature);
     }
 
     public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(this.getDataBytes());
-        dos.writeUTF(signature);
-
-        return baos.toByteArray();
+        return WireCodec.toByteArray(this::writeTo);
     }
 
-    public SignedTESAccount fromDataInputStream(DataInputStream dis) throws IOException, IllegalStateException {
-        this.tucs = dis.readDouble();
-
-        int count = dis.readInt();
-        byte[] ownerKey = dis.readNBytes(count);
-
-        count = dis.readInt();
-        byte[] signerKey = dis.readNBytes(count);
-
-        try {
-            this.owner = KeyHandler.deserializePublicKey(ownerKey);
-            this.signer = KeyHandler.deserializePublicKey(signerKey);
-
-        } catch (IllegalStateException ile) {
-            throw new IllegalStateException("[ERROR] Deserializing transaction source key");
-        }
-
-        this.signature = dis.readUTF();
+    public SignedTESAccount readFrom(ByteBuffer buffer) throws IOException, IllegalStateException {
+        this.tucs = buffer.getDouble();
+        this.owner = AccountId.fromByteBuffer(buffer);
+        this.signer = AccountId.fromByteBuffer(buffer);
+        this.signature = WireCodec.getUTF(buffer);
 
         return this;
     }
@@ -118,6 +88,6 @@ public class SignedTESAccount {
     }
 
     public String toString() {
-        return String.format("%s : %.04f", KeyHandler.KeyBase64Readable(owner), tucs);
+        return String.format("%s : %.04f", owner, tucs);
     }
 }
@@ -1,32 +1,28 @@
 package pt.ulisboa.tecnico.sec.tes;
 
-import java.security.PublicKey;
-
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
-
 // Account of the TES
 public class TESAccount {
 
     private static final double INIT_BALANCE = 100f;
 
-    private PublicKey _id;
+    private AccountId _id;
     private double _tucs;   // balance
 
-    public TESAccount(PublicKey id) {
+    public TESAccount(AccountId id) {
         _id = id;
         _tucs = INIT_BALANCE;
     }
 
-    public PublicKey getID() {
+    public AccountId getID() {
         return _id;
     }
 
     public String getIDBase64() {
-        return KeyHandler.KeyBase64(_id);
+        return _id.toBase64();
     }
 
     public String getIDB64Readable() {
-        return KeyHandler.KeyBase64Readable(_id);
+        return _id.toString();
     }
 
     public double getTucs() {
@@ -58,4 +54,4 @@ public class TESAccount {
         return String.format("Account<" + this.getIDB64Readable() + ", %f>", this.getTucs());
     }
 
-}
\ No newline at end of file
+}
@@ -24,6 +24,7 @@ import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
 import pt.ulisboa.tecnico.sec.tes.transactions.CheckBalanceTransaction.ReadType;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
 
 public class TESClientAPI extends HDLProcess {
 
@@ -44,7 +45,7 @@ public class TESClientAPI extends HDLProcess {
     }
 
     public ClientResponseMessage transfer(PublicKey source, PublicKey destination, double amount, PrivateKey sourceAuthKey) throws IllegalStateException, InterruptedException {
-        Transaction t = new TransferTransaction(source, destination, amount);
+        Transaction t = new TransferTransaction(AccountId.of(source), AccountId.of(destination), amount);
         t.authenticateTransaction(nonce++, sourceAuthKey);
 
         return this.appendTransaction(t);
@@ -52,7 +53,7 @@ public class TESClientAPI extends HDLProcess {
 
     // TODO: Gotta implement reads!
     public ClientResponseMessage checkBalance(PublicKey source, PublicKey owner, PrivateKey sourceAuthKey, ReadType read) throws IllegalStateException, InterruptedException {
-        Transaction t = new CheckBalanceTransaction(source, owner, read);
+        Transaction t = new CheckBalanceTransaction(AccountId.of(source), AccountId.of(owner), read);
         t.authenticateTransaction(nonce++, sourceAuthKey);
 
         if (read == ReadType.STRONGLY_CONSISTENT)
@@ -61,7 +62,8 @@ public class TESClientAPI extends HDLProcess {
         // Weakly consistent read
         CheckBalanceResponseMessage balanceResponse = (CheckBalanceResponseMessage) waitForNServerResponses(t, 1);
         for (SignedTESAccount acc : balanceResponse.signedTESAccount()) {
-            if (!acc.validateState(acc.getSigner())) {
+            HDLProcess signer = InstanceManager.getHDLProcess(acc.getSigner());
+            if (signer == null || !acc.validateState(signer.getPublicKey())) {
                 return new ClientResponseMessage(ClientResponseMessage.Status.REJECTED, balanceResponse.getTimestamp(), balanceResponse.getNonce());
             }
         }
@@ -73,12 +75,18 @@ public class TESClientAPI extends HDLProcess {
         return waitForNServerResponses(transaction, InstanceManager.getNumberOfByzantines() + 1);
     }
 
+    // Returns once nResponses servers decided the same result, or once a quorum executed it the same way,
+    //  counting tentative responses too: a block a quorum prepared is the one decided
     private ClientResponseMessage waitForNServerResponses(Transaction transaction, int nResponses) throws IllegalStateException, InterruptedException {
         // Protecting against client multithread
         synchronized (this) {
             List<Integer> sendersId = new ArrayList<>();
             Map<SimpleImmutableEntry<ClientResponseMessage.Status, Integer>, Integer> responsesCount = new HashMap<>();
+            // Tentative responses by sender, replaced by the decided response of the same sender
+            Map<Integer, SimpleImmutableEntry<ClientResponseMessage.Status, Integer>> tentativeSenders = new HashMap<>();
+            Map<SimpleImmutableEntry<ClientResponseMessage.Status, Integer>, Integer> executedCount = new HashMap<>();
 
+            long start = System.nanoTime();
             ClientRequestMessage request = new ClientRequestMessage(transaction);
             BestEffortBroadcast broadcastChannel = new BestEffortBroadcast(channel, InstanceManager.getAllParticipants());
             broadcastChannel.broadcast(request);
@@ -93,8 +101,9 @@ public class TESClientAPI extends HDLProcess {
                 }
                 
                 System.out.printf("API CLIENT %d processing message %s for transaction %s%n", this._id, response, transaction.toString());
+                int senderId = response.getSender().getID();
                 if (!response.getMessage().getMessageType().equals(Message.MessageType.CLIENT_RESPONSE) ||
-                    sendersId.contains(response.getSender().getID()))
+                    sendersId.contains(senderId))
                     continue; // Ignoring response
 
                 ClientResponseMessage message = (ClientResponseMessage) response.getMessage();
@@ -102,23 +111,37 @@ public class TESClientAPI extends HDLProcess {
                 // Ignore if it's not response for our transaction
                 if (message.getNonce() != transaction.getNonce()) continue;
 
-                sendersId.add(response.getSender().getID());
-
                 SimpleImmutableEntry<ClientResponseMessage.Status, Integer> entry = new SimpleImmutableEntry<>(message.getStatus(), message.getTimestamp());
-                responsesCount.putIfAbsent(entry, 0);
 
-                int count = responsesCount.get(entry) + 1;
+                if (message.isTentative()) {
+                    if (tentativeSenders.putIfAbsent(senderId, entry) != null) continue;
+                } else {
+                    sendersId.add(senderId);
+                    SimpleImmutableEntry<ClientResponseMessage.Status, Integer> tentative = tentativeSenders.remove(senderId);
+                    if (tentative != null) executedCount.merge(tentative, -1, Integer::sum);
+
+                    int count = responsesCount.merge(entry, 1, Integer::sum);
 
-                responsesCount.put(entry, count);
+                    System.out.printf("API CLIENT %d received %s for transaction %s (responses number %d / %d)%n", this._id, response, transaction.toString(), count, nResponses);
 
-                System.out.printf("API CLIENT %d received %s for transaction %s (responses number %d / %d)%n", this._id, response, transaction.toString(), count, nResponses);
+                    if (count == nResponses)
+                        return accepted(message, start);
+                }
 
-                if (count == nResponses)
-                    return message;
+                if (executedCount.merge(entry, 1, Integer::sum) == InstanceManager.getQuorum()) {
+                    Metrics.increment(Metrics.TENTATIVE_ACCEPTS);
+                    return accepted(message, start);
+                }
             }
         }
     }
 
+    private ClientResponseMessage accepted(ClientResponseMessage message, long start) {
+        Metrics.increment(Metrics.CLIENT_REQUESTS);
+        Metrics.add(Metrics.CLIENT_LATENCY_NANOS, System.nanoTime() - start);
+        return message;
+    }
+
     public void shutdown() {
         this.selfTerminate();
         channel.close();
@@ -1,17 +1,15 @@
 package pt.ulisboa.tecnico.sec.tes;
 
-import java.util.List;
-
-import java.security.PublicKey;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // Token Exchange System supported by a State Machine Replication System
 public class TESState {
 
-    List<TESAccount> _accounts;
+    Map<AccountId, TESAccount> _accounts;
 
     public TESState() {
-        _accounts = new ArrayList<>();
+        _accounts = new LinkedHashMap<>();
     }
 
     public boolean isEmpty() {
@@ -19,17 +17,17 @@ public class TESState {
     }
 
     public void addAccount(TESAccount account) {
-        _accounts.add(account);
+        _accounts.putIfAbsent(account.getID(), account);
     }
 
-    public TESAccount getAccount(PublicKey key) {
-        return _accounts.stream().filter(a -> a.getID().equals(key)).findFirst().orElse(null);
+    public TESAccount getAccount(AccountId id) {
+        return _accounts.get(id);
     }
 
     public TESState copy() {
         TESState newState = new TESState();
 
-        this._accounts.forEach(
+        this._accounts.values().forEach(
             (account) -> newState.addAccount(account.copy())
         );
 
@@ -38,6 +36,6 @@ public class TESState {
 
     @Override
     public String toString() {
-        return "TES\n\t-> " + String.join("\n\t-> ", _accounts.stream().map((acc) -> acc.toString()).toArray(CharSequence[]::new));
+        return "TES\n\t-> " + String.join("\n\t-> ", _accounts.values().stream().map((acc) -> acc.toString()).toArray(CharSequence[]::new));
     }
-}
\ No newline at end of file
+}
@@ -1,13 +1,9 @@
 package pt.ulisboa.tecnico.sec.tes.transactions;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.security.PublicKey;
+import java.nio.ByteBuffer;
 
+import pt.ulisboa.tecnico.sec.tes.AccountId;
 import pt.ulisboa.tecnico.sec.tes.TESState;
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
 import pt.ulisboa.tecnico.sec.tes.TESAccount;
 
 public class CheckBalanceTransaction extends Transaction {
@@ -16,10 +12,10 @@ public class CheckBalanceTransaction extends Transaction {
         WEAKLY_CONSISTENT
     }
 
-    private PublicKey owner;
+    private AccountId owner;
     private ReadType readType;
 
-    public CheckBalanceTransaction(PublicKey creator, PublicKey owner, ReadType readType) {
+    public CheckBalanceTransaction(AccountId creator, AccountId owner, ReadType readType) {
         super(TESOperation.CHECK_BALANCE, creator);
         this.owner = owner;
         this.readType = readType;
@@ -30,71 +26,39 @@ public class CheckBalanceTransaction extends Transaction {
         super(TESOperation.CHECK_BALANCE);
     }
     
-    private void setOwner(PublicKey key) { this.owner = key; }
+    private void setOwner(AccountId id) { this.owner = id; }
     private void setReadType(ReadType type) { this.readType = type; }
-    public PublicKey getOwner() { return this.owner; }
-    public String getOwnerBase64() { return KeyHandler.KeyBase64(owner); }
-    public String getOwnerBase64Readable() { return KeyHandler.KeyBase64Readable(owner); }
+    public AccountId getOwner() { return this.owner; }
+    public String getOwnerBase64() { return owner.toBase64(); }
+    public String getOwnerBase64Readable() { return owner.toString(); }
     public ReadType getReadType() { return this.readType; }
 
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.write(getDataBytes());
-
-        String challenge = super.getChallenge();
-        dos.writeUTF(challenge);
-
-        return baos.toByteArray();
-    }
-
-    public static CheckBalanceTransaction fromDataInputStream(DataInputStream dis) throws IOException {
+    public static CheckBalanceTransaction fromByteBuffer(ByteBuffer buffer) {
         
         CheckBalanceTransaction transaction = new CheckBalanceTransaction();
 
-        transaction.setReadType(ReadType.values()[dis.readInt()]);
-
-        byte[] ownerBytes = new byte[dis.readInt()];
-        dis.readFully(ownerBytes);
+        transaction.setReadType(ReadType.values()[buffer.getInt()]);
 
-        PublicKey owner = null;
-
-        try {
-            owner = KeyHandler.deserializePublicKey(ownerBytes);
-        } catch (IllegalStateException ile) {
-            throw new IllegalStateException("[ERROR] Deserializing transaction destination key");
-        }
-
-        transaction.setOwner(owner);
+        transaction.setOwner(AccountId.fromByteBuffer(buffer));
 
         return transaction;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
+    public void writeDataTo(ByteBuffer buffer) {
         // serialize operation
-        dos.writeInt(super.getOperation().ordinal());
+        buffer.putInt(super.getOperation().ordinal());
 
         // serialize read type
-        dos.writeInt(this.getReadType().ordinal());
+        buffer.putInt(this.getReadType().ordinal());
 
-        // serialize owner key
-        byte[] ownerBytes = this.getOwner().getEncoded();
-        dos.writeInt(ownerBytes.length);
-        dos.write(ownerBytes);
+        // serialize owner id
+        this.getOwner().writeTo(buffer);
 
-        // serialize source key
-        byte[] sourceBytes = super.getSource().getEncoded();
-        dos.writeInt(sourceBytes.length);
-        dos.write(sourceBytes);
+        // serialize source id
+        super.getSource().writeTo(buffer);
 
         // serialize nonce
-        dos.writeInt(super.getNonce());
-
-        return baos.toByteArray();
+        buffer.putInt(super.getNonce());
     }
 
     @Override
@@ -1,18 +1,24 @@
 package pt.ulisboa.tecnico.sec.tes.transactions;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.KeyRegistry;
 import pt.ulisboa.tecnico.sec.tes.TESState;
 import pt.ulisboa.tecnico.sec.tes.TESAccount;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
+// The only transaction carrying a full public key: it binds the new account id to its key
 public class CreateAccountTransaction extends Transaction {
 
+    private PublicKey key;
+
     public CreateAccountTransaction(PublicKey creator) {
-        super(TESOperation.CREATE_ACCOUNT, creator);
+        super(TESOperation.CREATE_ACCOUNT, AccountId.of(creator));
+        this.key = creator;
     }
 
     // In-progress transaction
@@ -20,54 +26,46 @@ public class CreateAccountTransaction extends Transaction {
         super(TESOperation.CREATE_ACCOUNT);
     }
 
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // serialize operation
-        dos.writeInt(super.getOperation().ordinal());
+    private void setKey(PublicKey key) { this.key = key; }
+    public PublicKey getKey() { return this.key; }
 
-        // serialize source key
-        byte[] sourceBytes = super.getSource().getEncoded();
-        dos.writeInt(sourceBytes.length);
-        dos.write(sourceBytes);
+    public static CreateAccountTransaction fromByteBuffer(ByteBuffer buffer) throws IOException {
         
-        // serialize nonce and challenge
-        dos.writeInt(super.getNonce());
-        String challenge = super.getChallenge();
-        dos.writeUTF(challenge);
+        CreateAccountTransaction transaction = new CreateAccountTransaction();
 
-        return baos.toByteArray();
-    }
+        ByteBuffer keyBytes = WireCodec.section(buffer, buffer.getInt());
 
-    public static CreateAccountTransaction fromDataInputStream(DataInputStream dis) throws IOException {
-        
-        // ... Nothing for now
+        try {
+            transaction.setKey(KeyHandler.deserializePublicKey(keyBytes));
+        } catch (IllegalStateException ile) {
+            throw new IllegalStateException("[ERROR] Deserializing transaction account key");
+        }
 
-        return new CreateAccountTransaction();
+        return transaction;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
+    public void writeDataTo(ByteBuffer buffer) {
         // serialize operation
-        dos.writeInt(super.getOperation().ordinal());
+        buffer.putInt(super.getOperation().ordinal());
+
+        // serialize account key
+        WireCodec.putBytes(buffer, this.getKey().getEncoded());
 
-        // serialize source key
-        byte[] sourceBytes = super.getSource().getEncoded();
-        dos.writeInt(sourceBytes.length);
-        dos.write(sourceBytes);
+        // serialize source id
+        super.getSource().writeTo(buffer);
 
         // serialize nonce
-        dos.writeInt(super.getNonce());
+        buffer.putInt(super.getNonce());
+    }
 
-        return baos.toByteArray();
+    @Override
+    protected PublicKey getSourceKey(KeyRegistry registry) {
+        return getSource().isOwnedBy(key) ? key : null;
     }
 
     @Override
     public boolean checkSyntax() {
-        return true;
+        return getSource().isOwnedBy(key);
     }
 
     @Override
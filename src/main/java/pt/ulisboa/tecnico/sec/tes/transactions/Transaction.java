@@ -1,14 +1,17 @@
 package pt.ulisboa.tecnico.sec.tes.transactions;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Set;
 
 import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.KeyRegistry;
 import pt.ulisboa.tecnico.sec.tes.TESState;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
 
 // TES Transactions
 public abstract class Transaction {
@@ -22,26 +25,31 @@ public abstract class Transaction {
 
     private TESOperation _operation;
 
-    private PublicKey _source;
+    private AccountId _source;
 
     private Integer _nonce;
     private String _challenge;  // POW hash
 
-    private void setSource(PublicKey key) { _source = key; }
+    // Canonical encoding of the signed part and its digest, computed once (the nonce is the only field
+    //  that changes after construction, when the transaction is authenticated)
+    private volatile byte[] _dataBytes;
+    private volatile byte[] _digest;
+
+    private void setSource(AccountId id) { _source = id; }
     private void setOperation(TESOperation op) { _operation = op; }
-    private void setNonce(Integer nonce) { _nonce = nonce; }
+    private void setNonce(Integer nonce) { _nonce = nonce; _dataBytes = null; _digest = null; }
     private void setChallenge(String challenge) { _challenge = challenge; }
 
-    public PublicKey getSource() { return _source; }
-    public String getSourceBase64() { return KeyHandler.KeyBase64(_source); }
-    public String getSourceBase64Readable() { return KeyHandler.KeyBase64Readable(_source); }
+    public AccountId getSource() { return _source; }
+    public String getSourceBase64() { return _source.toBase64(); }
+    public String getSourceBase64Readable() { return _source.toString(); }
     public TESOperation getOperation() { return _operation; }
     public Integer getNonce() { return _nonce; }
     protected String getChallenge() { return _challenge; }
 
 
     // Only Transaction types can call this
-    protected Transaction(TESOperation operation, PublicKey owner) {
+    protected Transaction(TESOperation operation, AccountId owner) {
         setOperation(operation);
         setSource(owner);
         setNonce(AuthenticationHandler.UNDEFINED);
@@ -55,43 +63,67 @@ public abstract class Transaction {
         setChallenge(AuthenticationHandler.UNDEFINED_HASH);
     }
 
-    public abstract byte[] toByteArray() throws IOException;
+    // Signed part of the transaction
+    public abstract void writeDataTo(ByteBuffer buffer) throws IOException;
+
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        buffer.put(getDataBytes());
+
+        // serialize challenge
+        WireCodec.putUTF(buffer, _challenge);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        return WireCodec.toByteArray(this::writeTo);
+    }
+
+    // The returned array is shared and must not be modified
+    public byte[] getDataBytes() throws IOException {
+        byte[] bytes = _dataBytes;
+        if (bytes == null) {
+            Metrics.increment(Metrics.TRANSACTION_ENCODINGS);
+            _dataBytes = bytes = WireCodec.toByteArray(this::writeDataTo);
+        }
+        return bytes;
+    }
+
+    public byte[] getDigest() throws IOException {
+        byte[] hash = _digest;
+        if (hash == null) {
+            Metrics.increment(Metrics.DIGESTS);
+            _digest = hash = AuthenticationHandler.digest(getDataBytes());
+        }
+        return hash;
+    }
 
     public static Transaction fromByteArray(byte[] bytes) throws IOException, IllegalStateException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        DataInputStream dis = new DataInputStream(bais);
+        return WireCodec.decode(bytes, Transaction::fromByteBuffer);
+    }
 
+    public static Transaction fromByteBuffer(ByteBuffer buffer) throws IOException, IllegalStateException {
         Transaction transaction;
+        int start = buffer.position();
 
-        TESOperation operation = TESOperation.values()[dis.readInt()];
+        int ordinal = buffer.getInt();
+        if (ordinal < 0 || ordinal >= TESOperation.values().length)
+            throw new IllegalStateException("Unknown transaction operation: " + ordinal);
+        TESOperation operation = TESOperation.values()[ordinal];
 
         switch (operation) {
             case CREATE_ACCOUNT:
-                transaction = CreateAccountTransaction.fromDataInputStream(dis); break;
+                transaction = CreateAccountTransaction.fromByteBuffer(buffer); break;
             case TRANSFER:
-                transaction = TransferTransaction.fromDataInputStream(dis); break;
+                transaction = TransferTransaction.fromByteBuffer(buffer); break;
             case CHECK_BALANCE:
-                transaction = CheckBalanceTransaction.fromDataInputStream(dis); break;
+                transaction = CheckBalanceTransaction.fromByteBuffer(buffer); break;
             default:
                 throw new IllegalStateException("Unknown transaction operation: " + operation);
         }
 
-        byte[] sourceBytes = new byte[dis.readInt()];
-        dis.readFully(sourceBytes);
-
-        PublicKey source = null;
-
-        try {
-            source = KeyHandler.deserializePublicKey(sourceBytes);
-
-        } catch (IllegalStateException ile) {
-            throw new IllegalStateException("[ERROR] Deserializing transaction source key");
-        }
-
-        transaction.setSource(source);
-        
-        transaction.setNonce(dis.readInt());
-        transaction.setChallenge(dis.readUTF());
+        transaction.setSource(AccountId.fromByteBuffer(buffer));
+        transaction.setNonce(buffer.getInt());
+        transaction._dataBytes = WireCodec.copy(buffer, start, buffer.position());    // what the source signed
+        transaction.setChallenge(WireCodec.getUTF(buffer));
 
         return transaction;
     }
@@ -105,22 +137,37 @@ public abstract class Transaction {
         }
     }
 
-    public boolean validateTransaction() {
+    // Key of the source account, as known by the given registry
+    protected PublicKey getSourceKey(KeyRegistry registry) {
+        return registry.lookup(_source);
+    }
+
+    public boolean validateTransaction(KeyRegistry registry) {
         boolean valid = false;
+        PublicKey sourceKey = getSourceKey(registry);
+        if (sourceKey == null) return false;   // unknown account
         try {
-            valid = AuthenticationHandler.checkSignature(_source, _challenge, this.getDataBytes()); // challenge as a signature
+            valid = AuthenticationHandler.checkSignature(sourceKey, _challenge, this.getDataBytes()); // challenge as a signature
         } catch (IllegalStateException | IOException e) {
             throw new IllegalStateException(String.format("[ERROR] Validating transaction %s", this));
         }
         return valid;
     }
 
-    public abstract byte[] getDataBytes() throws IOException;
-
     public abstract boolean checkSyntax();
 
     public abstract boolean updateTESState(TESState state);
 
+    // Accounts the transaction reads or writes, transactions on disjoint accounts commute
+    public Set<AccountId> getAccounts() {
+        return Set.of(_source);
+    }
+
+    // Whether applying it may add accounts to the state, which can't happen while others are applied
+    public boolean addsAccounts() {
+        return true;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof Transaction)) return false;
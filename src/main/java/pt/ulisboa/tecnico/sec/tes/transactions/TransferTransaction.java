@@ -1,21 +1,18 @@
 package pt.ulisboa.tecnico.sec.tes.transactions;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.security.PublicKey;
+import java.nio.ByteBuffer;
+import java.util.Set;
 
-import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
 import pt.ulisboa.tecnico.sec.tes.TESAccount;
 import pt.ulisboa.tecnico.sec.tes.TESState;
 
 public class TransferTransaction extends Transaction {
 
-    private PublicKey destination;
+    private AccountId destination;
     private double amount;
 
-    public TransferTransaction(PublicKey source, PublicKey destination, double amount) {
+    public TransferTransaction(AccountId source, AccountId destination, double amount) {
         super(TESOperation.TRANSFER, source);
         this.destination = destination;
         this.amount = amount;
@@ -26,89 +23,41 @@ public class TransferTransaction extends Transaction {
         super(TESOperation.TRANSFER);
     }
 
-    private void setDestination(PublicKey key) { this.destination = key; }
+    private void setDestination(AccountId id) { this.destination = id; }
     private void setAmount(double amount) { this.amount = amount; }
 
-    public PublicKey getDestination() { return destination; }
-    public String getDestinationBase64() { return KeyHandler.KeyBase64(destination); }
-    public String getDestinationBase64Readable() { return KeyHandler.KeyBase64Readable(destination); }
+    public AccountId getDestination() { return destination; }
+    public String getDestinationBase64() { return destination.toBase64(); }
+    public String getDestinationBase64Readable() { return destination.toString(); }
     public double getAmount() { return amount; }
 
 
-    public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // serialize operation
-        dos.writeInt(super.getOperation().ordinal());
-
-        // serialize destination key
-        byte[] destinationBytes = this.getDestination().getEncoded();
-        dos.writeInt(destinationBytes.length);
-        dos.write(destinationBytes);
-
-        // serialize amount
-        dos.writeDouble(amount);
-
-        // serialize source key
-        byte[] sourceBytes = super.getSource().getEncoded();
-        dos.writeInt(sourceBytes.length);
-        dos.write(sourceBytes);
-        
-        // serialize nonce and challenge
-        dos.writeInt(super.getNonce());
-        String challenge = super.getChallenge();
-        dos.writeUTF(challenge);
-
-        return baos.toByteArray();
-    }
-
-    public static TransferTransaction fromDataInputStream(DataInputStream dis) throws IOException {
+    public static TransferTransaction fromByteBuffer(ByteBuffer buffer) {
         
         TransferTransaction transaction = new TransferTransaction();
 
-        byte[] destinationBytes = new byte[dis.readInt()];
-        dis.readFully(destinationBytes);
-
-        PublicKey destination = null;
+        transaction.setDestination(AccountId.fromByteBuffer(buffer));
 
-        try {
-            destination = KeyHandler.deserializePublicKey(destinationBytes);
-        } catch (IllegalStateException ile) {
-            throw new IllegalStateException("[ERROR] Deserializing transaction destination key");
-        }
-
-        transaction.setDestination(destination);
-        
-        transaction.setAmount(dis.readDouble());        
+        transaction.setAmount(buffer.getDouble());        
 
         return transaction;
     }
 
-    public byte[] getDataBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
+    public void writeDataTo(ByteBuffer buffer) {
         // serialize operation
-        dos.writeInt(super.getOperation().ordinal());
+        buffer.putInt(super.getOperation().ordinal());
 
-        // serialize destination key
-        byte[] destinationBytes = this.getDestination().getEncoded();
-        dos.writeInt(destinationBytes.length);
-        dos.write(destinationBytes);
+        // serialize destination id
+        this.getDestination().writeTo(buffer);
 
         // serialize amount
-        dos.writeDouble(amount);
+        buffer.putDouble(amount);
 
-        // serialize source key
-        byte[] sourceBytes = super.getSource().getEncoded();
-        dos.writeInt(sourceBytes.length);
-        dos.write(sourceBytes);
+        // serialize source id
+        super.getSource().writeTo(buffer);
 
         // serialize nonce
-        dos.writeInt(super.getNonce());
-
-        return baos.toByteArray();
+        buffer.putInt(super.getNonce());
     }
 
     @Override
@@ -134,6 +83,16 @@ public class TransferTransaction extends Transaction {
         return true;
     }
 
+    @Override
+    public Set<AccountId> getAccounts() {
+        return getSource().equals(destination) ? Set.of(destination) : Set.of(getSource(), destination);
+    }
+
+    @Override
+    public boolean addsAccounts() {
+        return false;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof TransferTransaction)) return false;
@@ -0,0 +1,101 @@
+package pt.ulisboa.tecnico.sec.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional raw Deflate stage for large link payloads (flagged in the LinkMessage header). Payloads are mostly
+//  base64 signatures and account ids, so small ones barely shrink: below THRESHOLD the CPU isn't worth it.
+public final class Compression {
+
+    // Measured on the nofaults runs: payloads under 1 KB saved ~4%, larger ones ~19%
+    public static final int THRESHOLD = 1024;
+
+    // Bytes every sender and receiver knows: the start of most messages (small ints), the "\0" of unsigned
+    //  transactions and the X.509 header and exponent of RSA-2048 public keys (account creations)
+    private static final byte[] DICTIONARY = {
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3,
+        0, 2, (byte) 0xC0, (byte) 0x80,
+        0x02, 0x03, 0x01, 0x00, 0x01,
+        0x30, (byte) 0x82, 0x01, 0x22, 0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7,
+        0x0D, 0x01, 0x01, 0x01, 0x05, 0x00, 0x03, (byte) 0x82, 0x01, 0x0F, 0x00, 0x30, (byte) 0x82, 0x01, 0x0A,
+        0x02, (byte) 0x82, 0x01, 0x01, 0x00
+    };
+
+    // Shared like the WireCodec buffers, as messages go through short-lived threads. Deflaters and inflaters hold
+    //  native memory until end(), so the ones beyond the pool are ended right away.
+    static final int POOLED_STREAMS = 8;
+    private static final BlockingQueue<Compressor> _compressors = new ArrayBlockingQueue<>(POOLED_STREAMS);
+    private static final BlockingQueue<Inflater> _inflaters = new ArrayBlockingQueue<>(POOLED_STREAMS);
+
+    private static final class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] output = new byte[WireCodec.MAX_MESSAGE_SIZE];
+    }
+
+    private Compression() throws IllegalStateException {
+        throw new IllegalStateException("Utility class");
+    }
+
+    // Replaces the bytes from start up to the buffer position by their original length and compressed form.
+    //  Returns false, leaving the buffer untouched, for small payloads or when it doesn't pay off.
+    public static boolean compress(ByteBuffer buffer, int start) {
+        int length = buffer.position() - start;
+        if (length < THRESHOLD || !buffer.hasArray())
+            return false;
+
+        Compressor compressor = _compressors.poll();
+        if (compressor == null) compressor = new Compressor();
+        int compressed;
+        try {
+            Deflater deflater = compressor.deflater;
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(buffer.array(), buffer.arrayOffset() + start, length);
+            deflater.finish();
+            compressed = deflater.deflate(compressor.output);
+
+            if (!deflater.finished() || compressed + Integer.BYTES >= length)
+                return false;
+
+            buffer.position(start);
+            buffer.putInt(length);
+            buffer.put(compressor.output, 0, compressed);
+        } finally {
+            if (!_compressors.offer(compressor)) compressor.deflater.end();
+        }
+
+        Metrics.increment(Metrics.COMPRESSED_MESSAGES);
+        Metrics.add(Metrics.COMPRESSION_SAVED_BYTES, length - compressed - Integer.BYTES);
+        return true;
+    }
+
+    // Inflates the rest of the buffer
+    public static ByteBuffer decompress(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length <= 0 || length > WireCodec.MAX_MESSAGE_SIZE || !buffer.hasArray())
+            throw new IOException("[ERROR] Invalid compressed message length " + length);
+
+        byte[] output = new byte[length];
+        Inflater inflater = _inflaters.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (inflater.inflate(output) != length || !inflater.finished())
+                throw new IOException("[ERROR] Corrupted compressed message");
+        } catch (DataFormatException e) {
+            throw new IOException("[ERROR] Corrupted compressed message");
+        } finally {
+            if (!_inflaters.offer(inflater)) inflater.end();
+        }
+
+        buffer.position(buffer.limit());
+        return ByteBuffer.wrap(output);
+    }
+}
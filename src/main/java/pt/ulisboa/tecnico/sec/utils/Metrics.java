@@ -0,0 +1,137 @@
+package pt.ulisboa.tecnico.sec.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide counters (every process of a run shares the JVM), dumped at the end of InstanceManager runs
+public final class Metrics {
+
+    // Full encodings of a message/transaction from its fields
+    public static final String MESSAGE_ENCODINGS = "message.encodings";
+    public static final String TRANSACTION_ENCODINGS = "transaction.encodings";
+    public static final String DIGESTS = "digests";
+    // Encode buffers allocated because the pool was empty
+    public static final String ENCODE_BUFFERS = "message.encode.buffers";
+    public static final String DECIDED_INSTANCES = "consensus.decided";
+    public static final String OUT_OF_ORDER_DECISIONS = "consensus.decided.out-of-order";
+    // Local round timeouts, and instances decided after a round change with the time since their first timeout
+    public static final String ROUND_CHANGES = "consensus.round-changes";
+    public static final String RECOVERED_INSTANCES = "consensus.recovered";
+    public static final String RECOVERY_NANOS = "consensus.recovery.nanos";
+    // Commit certificates sent by leaders on the PREPAREs of all the servers, instances decided on one (the
+    //  fast path hit rate is their share of the decided ones), and COMMITs sent once the fast timer expired
+    public static final String FAST_CERTIFICATES = "consensus.fast.certificates";
+    public static final String FAST_DECISIONS = "consensus.fast.decided";
+    public static final String FAST_FALLBACKS = "consensus.fast.fallbacks";
+    public static final String DUPLICATE_TRANSACTIONS = "consensus.duplicates";
+    // Empty blocks proposed by lane leaders behind the other lanes
+    public static final String FILLED_INSTANCES = "consensus.lanes.filled";
+    // Instances discarded below the low watermark, messages ignored for being about them, and those ignored for
+    //  instances too far past it
+    public static final String COLLECTED_INSTANCES = "consensus.collected";
+    public static final String STALE_MESSAGES = "consensus.stale";
+    public static final String FUTURE_MESSAGES = "consensus.future";
+    // Blocks proposed, those cut by the latency budget, their size, and their fill (% of the limits) summed
+    public static final String BLOCKS_CUT = "block.cut";
+    public static final String BLOCKS_CUT_BY_DEADLINE = "block.cut.deadline";
+    public static final String BLOCK_TRANSACTIONS = "block.transactions";
+    public static final String BLOCK_BYTES = "block.bytes";
+    public static final String BLOCK_FILL_PERCENT = "block.fill.percent";
+    // Waves of concurrent transactions the blocks applied in parallel were split in
+    public static final String EXECUTION_WAVES = "block.execution.waves";
+    // Also by message type (.BFT, ...) and by sender (.p[id])
+    public static final String PACKETS_SENT = "link.packets.sent";
+    public static final String BYTES_SENT = "link.bytes.sent";
+    // CPU time of the threads handling messages, cutting and applying blocks, by server (.p[id])
+    public static final String CPU_NANOS = "server.cpu.nanos";
+    // Messages handled by servers and how long their handler threads lived
+    public static final String HANDLED_MESSAGES = "server.handled";
+    public static final String HANDLER_NANOS = "server.handler.nanos";
+    // Most threads alive at once during the run
+    public static final String PEAK_THREADS = "jvm.threads.peak";
+    public static final String COMPRESSED_MESSAGES = "link.compressed";
+    public static final String COMPRESSION_SAVED_BYTES = "link.compression.saved";
+    // PRE_PREPARE bytes sent by leaders and time spent completing compact proposals
+    public static final String PROPOSAL_BYTES = "consensus.proposal.bytes";
+    public static final String PROPOSALS_COMPLETED = "consensus.proposal.completed";
+    public static final String PROPOSAL_COMPLETION_NANOS = "consensus.proposal.completion.nanos";
+    public static final String FETCHED_TRANSACTIONS = "consensus.proposal.fetched";
+    // Client transactions followers forwarded to the leader, and those the leader already had
+    public static final String FORWARDED_TRANSACTIONS = "forward.sent";
+    public static final String FORWARDED_KNOWN = "forward.known";
+    // Batches this server disseminated, batches certified here, those fetched to complete a proposal, stored
+    //  ones dropped without a certificate and requests batched here for another server
+    public static final String DISSEMINATED_BATCHES = "dissemination.batches";
+    public static final String CERTIFIED_BATCHES = "dissemination.certified";
+    public static final String FETCHED_BATCHES = "dissemination.fetched";
+    public static final String EXPIRED_BATCHES = "dissemination.expired";
+    public static final String REBATCHED_TRANSACTIONS = "dissemination.rebatched";
+    // Pending client transactions, the time they waited until decided and the largest pool (maxima)
+    public static final String MEMPOOL_ADDED = "mempool.added";
+    public static final String MEMPOOL_DUPLICATES = "mempool.duplicates";
+    public static final String MEMPOOL_FULL = "mempool.full";
+    public static final String MEMPOOL_EVICTED = "mempool.evicted";
+    public static final String MEMPOOL_REMOVED = "mempool.removed";
+    public static final String MEMPOOL_WAIT_NANOS = "mempool.wait.nanos";
+    public static final String MEMPOOL_MAX_WAIT_NANOS = "mempool.wait.max.nanos";
+    public static final String MEMPOOL_MAX_SIZE = "mempool.size.max";
+
+    // Strong reads received, and the read-consensus batches decided with the reads they ordered
+    public static final String STRONG_READS = "reads.strong";
+    public static final String READ_BATCHES = "reads.batches";
+    public static final String BATCHED_READS = "reads.batched";
+    // Strong reads answered by servers, and the time from their arrival to the answer summed
+    public static final String ANSWERED_READS = "reads.answered";
+    public static final String READ_LATENCY_NANOS = "reads.latency.nanos";
+    // Blocks executed tentatively at their PREPARE quorum, those the decision confirmed and those rolled back,
+    //  and the client transactions that returned on a quorum of tentative responses
+    public static final String SPECULATIONS = "speculation.executed";
+    public static final String SPECULATION_HITS = "speculation.confirmed";
+    public static final String SPECULATION_ROLLBACKS = "speculation.rolled-back";
+    public static final String TENTATIVE_ACCEPTS = "speculation.client.accepted";
+    // Requests clients waited on, and the time from sending each to its accepted response summed
+    public static final String CLIENT_REQUESTS = "client.requests";
+    public static final String CLIENT_LATENCY_NANOS = "client.latency.nanos";
+
+    private static final Map<String, LongAdder> _counters = new ConcurrentHashMap<>();
+    private static final Map<String, LongAccumulator> _maxima = new ConcurrentHashMap<>();
+
+    private Metrics() throws IllegalStateException {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        _counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    // Keeps the largest value seen instead of a sum
+    public static void max(String name, long value) {
+        _maxima.computeIfAbsent(name, n -> new LongAccumulator(Math::max, Long.MIN_VALUE)).accumulate(value);
+    }
+
+    public static long get(String name) {
+        LongAccumulator maximum = _maxima.get(name);
+        if (maximum != null) return maximum.get();
+        LongAdder counter = _counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public static void reset() {
+        _counters.clear();
+        _maxima.clear();
+    }
+
+    public static String dump() {
+        Map<String, Long> sorted = new TreeMap<>();
+        _counters.forEach((name, counter) -> sorted.put(name, counter.sum()));
+        _maxima.forEach((name, maximum) -> sorted.put(name, maximum.get()));
+        return sorted.toString();
+    }
+}
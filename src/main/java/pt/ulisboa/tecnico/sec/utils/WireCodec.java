@@ -0,0 +1,205 @@
+package pt.ulisboa.tecnico.sec.utils;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Wire encoding helpers: every message is written straight into a reusable, pre-sized buffer taken from a
+//  small shared pool and read back from views over the received bytes. The layout is the same as DataOutputStream's
+//  (big-endian ints/doubles, modified UTF-8 strings), so the wire format is unchanged.
+public final class WireCodec {
+
+    // Largest UDP payload (see FairLossLink), no message can be bigger than this
+    public static final int MAX_MESSAGE_SIZE = (64 * 1024 - 1) - 8 - 20;
+
+    // Messages are handled and sent from short-lived threads, so buffers are shared rather than per thread.
+    //  Encodings beyond the pool (many concurrent, or nested) get a buffer of their own.
+    static final int POOLED_BUFFERS = 16;
+    private static final BlockingQueue<ByteBuffer> _buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    @FunctionalInterface
+    public interface Writer {
+        void writeTo(ByteBuffer buffer) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Reader<R> {
+        R read(ByteBuffer buffer) throws IOException;
+    }
+
+    private WireCodec() throws IllegalStateException {
+        throw new IllegalStateException("Utility class");
+    }
+
+    // Encodes into a pooled buffer and gives the reader a view over the written bytes.
+    // The view is only valid inside the reader (nested calls get a buffer of their own).
+    public static <R> R encode(Writer writer, Reader<R> reader) throws IOException {
+        ByteBuffer buffer = _buffers.poll();
+        if (buffer == null) {
+            Metrics.increment(Metrics.ENCODE_BUFFERS);
+            buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        }
+
+        try {
+            buffer.clear();
+            writer.writeTo(buffer);
+            buffer.flip();
+            return reader.read(buffer);
+        } catch (BufferOverflowException boe) {
+            throw new IOException("[ERROR] Message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+        } finally {
+            _buffers.offer(buffer);
+        }
+    }
+
+    // The only copy made when an owned array is really needed
+    public static byte[] toByteArray(Writer writer) throws IOException {
+        return encode(writer, buffer -> {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        });
+    }
+
+    public static <R> R decode(byte[] bytes, Reader<R> reader) throws IOException {
+        return read(ByteBuffer.wrap(bytes), reader);
+    }
+
+    public static <R> R read(ByteBuffer buffer, Reader<R> reader) throws IOException {
+        try {
+            return reader.read(buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("[ERROR] Truncated message");
+        }
+    }
+
+    // Length prefixed sections: reserve the int, write the content, then backpatch its length
+    public static int beginSection(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        return start;
+    }
+
+    public static void endSection(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+    }
+
+    // View over the next length bytes, the source buffer moves past them
+    public static ByteBuffer section(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("[ERROR] Invalid section length " + length);
+
+        ByteBuffer view = buffer.slice();
+        view.limit(length);
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+
+    // Copy of the bytes between two absolute positions (e.g. what was just decoded)
+    public static byte[] copy(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.duplicate().position(from).get(bytes);
+        return bytes;
+    }
+
+    public static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("[ERROR] Invalid byte array length " + length);
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // Same encoding as DataOutputStream.writeUTF (modified UTF-8, '\0' as two bytes)
+    public static void putUTF(ByteBuffer buffer, String s) throws IOException {
+        int length = s.length();
+        int start = buffer.position();
+
+        // Signatures and MACs are base64, so plain ASCII is the common case: copy it straight into the array
+        if (buffer.hasArray() && length <= buffer.remaining() - Short.BYTES) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + start + Short.BYTES;
+            int i = 0;
+            for (char c; i < length && (c = s.charAt(i)) >= 0x0001 && c <= 0x007F; i++)
+                array[offset + i] = (byte) c;
+
+            if (i == length) {
+                buffer.putShort((short) length);
+                buffer.position(start + Short.BYTES + length);
+                return;
+            }
+        }
+
+        buffer.putShort((short) 0);
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        int encoded = buffer.position() - start - Short.BYTES;
+        if (encoded > 0xFFFF)
+            throw new UTFDataFormatException("[ERROR] Encoded string too long: " + encoded + " bytes");
+        buffer.putShort(start, (short) encoded);
+    }
+
+    public static String getUTF(ByteBuffer buffer) throws IOException {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining())
+            throw new IOException("[ERROR] Invalid string length " + length);
+
+        // ASCII strings are built straight from the received bytes
+        int start = buffer.position();
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + start;
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++)
+                ascii = array[offset + i] > 0;
+
+            if (ascii) {
+                buffer.position(start + length);
+                return new String(array, offset, length, StandardCharsets.US_ASCII);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        int end = start + length;
+        while (buffer.position() < end) {
+            int a = buffer.get() & 0xFF;
+            if (a < 0x80) {
+                sb.append((char) a);
+            } else if ((a & 0xE0) == 0xC0 && buffer.position() < end) {
+                int b = buffer.get() & 0xFF;
+                sb.append((char) (((a & 0x1F) << 6) | (b & 0x3F)));
+            } else if ((a & 0xF0) == 0xE0 && buffer.position() + 1 < end) {
+                int b = buffer.get() & 0xFF, c = buffer.get() & 0xFF;
+                sb.append((char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F)));
+            } else {
+                throw new UTFDataFormatException("[ERROR] Malformed string input");
+            }
+        }
+        return sb.toString();
+    }
+}
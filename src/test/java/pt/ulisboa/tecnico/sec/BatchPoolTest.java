@@ -0,0 +1,149 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.BatchPool;
+import pt.ulisboa.tecnico.sec.messages.BatchAckMessage;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+/**
+ * Unit test for the certification and proposal of disseminated batches.
+ */
+public class BatchPoolTest {
+    private static final int CERTIFICATE_SIZE = 2;
+    private static final long MAX_AGE = 30000; // ms
+
+    private BatchPool pool;
+    private AccountId producer;
+
+    @Before
+    public void setup() {
+        pool = new BatchPool(CERTIFICATE_SIZE, MAX_AGE);
+        producer = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private List<Transaction> batch(int size) {
+        List<Transaction> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            KeyPair source = KeyHandler.generateAccountKeyPair();
+            Transaction create = new CreateAccountTransaction(source.getPublic());
+            create.authenticateTransaction(0, source.getPrivate());
+            batch.add(create);
+        }
+        return batch;
+    }
+
+    @Test
+    public void checkCertificate() {
+        byte[] digest = pool.add(batch(2));
+        assertTrue("Acks of batches of other servers must be ignored", pool.ack(1, new BatchAckMessage(digest)) == null);
+
+        pool.expectAcks(digest);
+        assertTrue("A single ack doesn't certify the batch", pool.ack(1, new BatchAckMessage(digest)) == null);
+        assertTrue("Repeated acks must not count", pool.ack(1, new BatchAckMessage(digest)) == null);
+        Map<Integer, BatchAckMessage> acks = pool.ack(2, new BatchAckMessage(digest));
+        assertTrue("f+1 acks must certify the batch", acks != null && acks.keySet().equals(Set.of(1, 2)));
+        assertTrue("Later acks must not certify it again", pool.ack(3, new BatchAckMessage(digest)) == null);
+
+        assertTrue("The first certificate must be new", pool.certify(digest, acks.keySet()));
+        assertTrue("Repeated certificates must not be new", !pool.certify(digest, acks.keySet()));
+        assertTrue("Holders must be the acking servers", pool.getHolders(digest).equals(Set.of(1, 2)));
+    }
+
+    @Test
+    public void checkProposal() {
+        BlockBuilder builder = new BlockBuilder(4, BlockBuilder.DEFAULT_MAX_BYTES, BlockBuilder.DEFAULT_LATENCY);
+        byte[] first = pool.add(batch(2));
+        byte[] second = pool.add(batch(2));
+        byte[] third = pool.add(batch(2));
+        byte[] uncertified = pool.add(batch(1));
+        for (byte[] digest : List.of(first, second, third))
+            pool.certify(digest, Set.of(1, 2));
+
+        BlockchainNode block = pool.propose(builder, producer);
+        assertTrue("Whole certified batches must fill the block in order", block.getBatches().size() == 2
+            && Arrays.equals(block.getBatches().get(0), first) && Arrays.equals(block.getBatches().get(1), second)
+            && block.getTransactions().size() == 4);
+        assertTrue("Proposed batches must not be proposed again",
+            Arrays.equals(pool.propose(builder, producer).getBatches().get(0), third));
+        assertTrue("Uncertified batches must not be proposed", pool.propose(builder, producer).isEmpty()
+            && pool.get(uncertified) != null);
+
+        // The block was decided in instance 0, the other one was proposed in instance 1 and lost it
+        pool.assign(block.getBatches(), 0);
+        pool.assign(List.of(third), 1);
+        pool.ordered(block.getBatches(), 0);
+        assertTrue("Ordered batches must not be certified again", !pool.certify(first, Set.of(1, 2)));
+        pool.ordered(List.of(), 1);
+        assertTrue("Batches of a lost proposal must be free again",
+            Arrays.equals(pool.propose(builder, producer).getBatches().get(0), third));
+
+        pool.collect(1);
+        assertTrue("Batches applied everywhere must be dropped", pool.get(first) == null && pool.get(third) != null);
+    }
+
+    @Test
+    public void checkOnlyCertifiedAreBatched() {
+        List<Transaction> stored = batch(2);
+        byte[] digest = pool.add(stored);
+        assertTrue("Stored but never certified batches must leave their requests to the fallback",
+            !pool.isBatched(stored.get(0)) && !pool.isBatched(stored.get(1)));
+
+        pool.certify(digest, Set.of(1, 2));
+        assertTrue("Certified batches must hold their requests", pool.isBatched(stored.get(0)) && pool.isBatched(stored.get(1)));
+
+        // The certificate may come before the batch itself
+        List<Transaction> late = batch(1);
+        pool.certify(BatchPool.digest(late), Set.of(1, 2));
+        assertTrue("Batches that aren't stored must not hold their requests", !pool.isBatched(late.get(0)));
+        pool.add(late);
+        assertTrue("Batches stored after their certificate must hold their requests", pool.isBatched(late.get(0)));
+
+        pool.ordered(List.of(digest), 0);
+        assertTrue("Ordered batches must still hold their requests", pool.isBatched(stored.get(0)));
+        pool.collect(1);
+        assertTrue("Dropped batches must no longer hold their requests", !pool.isBatched(stored.get(0)));
+    }
+
+    @Test
+    public void checkExpiry() {
+        BatchPool expiring = new BatchPool(CERTIFICATE_SIZE, 0);
+        List<Transaction> stored = batch(1);
+        byte[] uncertified = expiring.add(stored);
+        expiring.expectAcks(uncertified);
+        byte[] certified = expiring.add(batch(1));
+        expiring.certify(certified, Set.of(1, 2));
+        byte[] proposed = expiring.add(batch(1));
+        expiring.assign(List.of(proposed), 1);
+        byte[] ordered = expiring.add(batch(1));
+        expiring.ordered(List.of(ordered), 0);
+
+        assertTrue("Only the stored batch that was never certified must expire", expiring.expire() == 1
+            && expiring.get(uncertified) == null && expiring.size() == 3);
+        assertTrue("Expired batches must not collect acks", expiring.ack(1, new BatchAckMessage(uncertified)) == null);
+        assertTrue("An expired batch may still be stored again", expiring.get(expiring.add(stored)) != null);
+
+        assertTrue("Batches must not expire before their max age", pool.add(batch(1)) != null && pool.expire() == 0);
+    }
+}
@@ -0,0 +1,82 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+/**
+ * Unit test for the adaptive block sizes.
+ */
+public class BlockBuilderTest {
+    private List<Transaction> transactions;
+    private AccountId producer;
+
+    @Before
+    public void setup() {
+        transactions = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            transactions.add(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()));
+        producer = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    @Test
+    public void checkGrowsWithBacklog() {
+        BlockBuilder builder = new BlockBuilder(8, 1024 * 1024, 100);
+        int target = builder.getTarget();
+
+        BlockchainNode block = builder.build(transactions, producer);
+        assertTrue("Blocks must have the target size", block.getTransactions().size() == target);
+        assertTrue("A block of the target size is due", builder.isFull(block));
+
+        builder.cut(block, transactions.size() - target, false);
+        assertTrue("The target must grow while requests are left over", builder.getTarget() == 2 * target);
+
+        for (int i = 0; i < 8; i++)
+            builder.cut(builder.build(transactions, producer), transactions.size(), false);
+        assertTrue("The target must not go over the limit", builder.getTarget() == 8);
+    }
+
+    @Test
+    public void checkShrinksOnDeadline() {
+        BlockBuilder builder = new BlockBuilder(8, 1024 * 1024, 100);
+        builder.cut(builder.build(transactions, producer), transactions.size(), false);
+        int target = builder.getTarget();
+
+        BlockchainNode block = builder.build(transactions.subList(0, 1), producer);
+        assertTrue("A block short of the target isn't due", !builder.isFull(block));
+
+        builder.cut(block, 0, true);
+        assertTrue("Blocks cut short by the deadline must shrink the target", builder.getTarget() < target);
+        builder.cut(builder.build(transactions.subList(0, 1), producer), 0, true);
+        assertTrue("The target must not go below one transaction", builder.getTarget() == 1);
+    }
+
+    @Test
+    public void checkByteLimit() {
+        int size = BlockBuilder.size(transactions.get(0));
+        BlockBuilder builder = new BlockBuilder(8, 3 * size, 100);
+        for (int i = 0; i < 4; i++)
+            builder.cut(builder.build(transactions, producer), transactions.size(), false);
+
+        BlockchainNode block = builder.build(transactions, producer);
+        assertTrue("Blocks must stay within the byte limit", BlockBuilder.size(block) <= 3 * size && builder.fits(block));
+        assertTrue("Blocks over the limits must not be accepted", !new BlockBuilder(2, 3 * size, 100).fits(block));
+    }
+}
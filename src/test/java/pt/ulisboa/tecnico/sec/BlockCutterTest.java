@@ -0,0 +1,79 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockBuilder;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.BlockCutter;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+/**
+ * Unit test for the block cutter of a server.
+ */
+public class BlockCutterTest {
+    private static final long LATENCY = 200; // ms
+
+    private List<Transaction> transactions;
+    // Size of each block cut, negative when cut by the deadline
+    private BlockingQueue<Integer> cuts;
+    private BlockCutter cutter;
+
+    @Before
+    public void setup() {
+        transactions = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            transactions.add(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()));
+        AccountId producer = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+
+        cuts = new LinkedBlockingQueue<>();
+        // Targets blocks of 2 transactions
+        BlockBuilder builder = new BlockBuilder(8, 1024 * 1024, LATENCY);
+        cutter = new BlockCutter("block-cutter-test", builder, producer, (block, byDeadline) ->
+            cuts.add(byDeadline ? -block.getTransactions().size() : block.getTransactions().size()));
+    }
+
+    @After
+    public void cleanup() {
+        cutter.stop();
+        KeyHandler.cleanKeys();
+    }
+
+    @Test
+    public void checkCutsFullBlocks() throws InterruptedException {
+        long start = System.nanoTime();
+        cutter.add(transactions.get(0));
+        cutter.add(transactions.get(1));
+
+        Integer cut = cuts.poll(LATENCY / 2, TimeUnit.MILLISECONDS);
+        assertTrue("A full block must be cut without waiting for the deadline", cut != null && cut == 2);
+        assertTrue("Cutting a full block must not wait for the deadline", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(LATENCY));
+        assertTrue("The deadline of a cut block must not cut another one", cuts.poll(2 * LATENCY, TimeUnit.MILLISECONDS) == null);
+    }
+
+    @Test
+    public void checkCutsOnDeadline() throws InterruptedException {
+        long start = System.nanoTime();
+        cutter.add(transactions.get(0));
+
+        Integer cut = cuts.poll(4 * LATENCY, TimeUnit.MILLISECONDS);
+        assertTrue("A short block must be cut by the deadline", cut != null && cut == -1);
+        assertTrue("A short block must wait for the deadline", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(LATENCY));
+
+        cutter.add(transactions.get(2));
+        cut = cuts.poll(4 * LATENCY, TimeUnit.MILLISECONDS);
+        assertTrue("The next block must have a deadline of its own", cut != null && cut == -1);
+        assertTrue("Only one block must be cut per deadline", cuts.isEmpty());
+    }
+}
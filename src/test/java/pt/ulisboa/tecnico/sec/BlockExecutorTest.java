@@ -0,0 +1,186 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockExecutor;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.TESAccount;
+import pt.ulisboa.tecnico.sec.tes.TESState;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+
+/**
+ * Unit test for the parallel execution of blocks, which must match applying them serially.
+ */
+public class BlockExecutorTest {
+    private static final int THREADS = 4;
+    private static final int CREATED_ACCOUNTS = 4;
+
+    private Random random;
+    private AccountId producer;
+    private List<AccountId> accounts;
+    private List<Transaction> creates;
+    private BlockExecutor serial;
+    private BlockExecutor parallel;
+
+    @Before
+    public void setup() {
+        random = new Random(47);
+        producer = account();
+        accounts = new ArrayList<>();
+        creates = new ArrayList<>();
+        for (int i = 0; i < CREATED_ACCOUNTS; i++)
+            creates.add(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()));
+        serial = new BlockExecutor(1);
+        parallel = new BlockExecutor(THREADS);
+    }
+
+    @After
+    public void cleanup() {
+        parallel.stop();
+        KeyHandler.cleanKeys();
+    }
+
+    private AccountId account() {
+        byte[] bytes = new byte[AccountId.LENGTH];
+        random.nextBytes(bytes);
+        return AccountId.fromBytes(bytes);
+    }
+
+    // Accounts that exist before the block, the created ones don't
+    private TESState state(int size) {
+        TESState state = new TESState();
+        state.addAccount(new TESAccount(producer));
+        for (int i = 0; i < size; i++) {
+            accounts.add(account());
+            state.addAccount(new TESAccount(accounts.get(i)));
+        }
+        return state;
+    }
+
+    // Transfers between a few hot accounts (most conflict, and many fail for lack of balance) or any of them,
+    //  to and from accounts created in the block, and repeated transactions
+    private BlockchainNode block(int size, int hotAccounts) {
+        List<AccountId> all = new ArrayList<>(accounts);
+        for (Transaction create : creates)
+            all.add(create.getSource());
+
+        BlockchainNode block = new BlockchainNode();
+        for (int j = 0; j < size; j++) {
+            Transaction t;
+            int kind = random.nextInt(100);
+            if (kind < CREATED_ACCOUNTS) {
+                t = creates.get(kind);
+            } else if (kind < 10 && j > 0) {
+                t = block.getTransactions().get(random.nextInt(j));
+            } else {
+                List<AccountId> from = kind < 50 ? all.subList(0, hotAccounts) : all;
+                AccountId source = from.get(random.nextInt(from.size()));
+                AccountId destination = all.get(random.nextInt(all.size()));
+                t = new TransferTransaction(source, destination, 1 + random.nextInt(60) + j * 1e-6);
+            }
+            block.addTransaction(t, producer);
+        }
+        return block;
+    }
+
+    private void assertSameExecution(BlockchainNode block, BlockExecutor.Result expected, TESState expectedState,
+            BlockExecutor.Result result, TESState state) {
+        for (int j = 0; j < block.getTransactions().size(); j++) {
+            assertTrue("Transactions must run as serially", expected.isExecuted(j) == result.isExecuted(j)
+                && expected.isSuccessful(j) == result.isSuccessful(j));
+            assertTrue("Rewards must be paid as serially", expected.isRewarded(j) == result.isRewarded(j));
+        }
+
+        List<AccountId> all = new ArrayList<>(accounts);
+        all.add(producer);
+        for (Transaction create : creates)
+            all.add(create.getSource());
+        for (AccountId id : all) {
+            TESAccount account = state.getAccount(id);
+            TESAccount expectedAccount = expectedState.getAccount(id);
+            assertTrue("Accounts must exist as serially", (account == null) == (expectedAccount == null));
+            assertTrue("Balances must be the serial ones",
+                account == null || Double.compare(account.getTucs(), expectedAccount.getTucs()) == 0);
+        }
+        assertTrue("Accounts must be added in block order", state.toString().equals(expectedState.toString()));
+    }
+
+    @Test
+    public void checkExecutedTransactions() {
+        TESState state = state(2);
+        Transaction transfer = new TransferTransaction(accounts.get(0), accounts.get(1), 2);
+        Set<Long> executed = Set.of(BlockchainNode.shortId(creates.get(0)));
+
+        BlockchainNode block = new BlockchainNode();
+        block.addTransaction(creates.get(0), producer);
+        block.addTransaction(transfer, producer);
+        block.addTransaction(transfer, producer);
+        BlockExecutor.Result result = serial.execute(block, state, t -> executed.contains(BlockchainNode.shortId(t)));
+        assertTrue("Transactions applied before must not run again", !result.isExecuted(0) && !result.isSuccessful(0));
+        assertTrue("Transactions repeated in the block must run once", result.isExecuted(1) && !result.isExecuted(2));
+        assertTrue("Rewards must only be paid for executed transactions",
+            !result.isRewarded(0) && result.isRewarded(1) && !result.isRewarded(2));
+    }
+
+    @Test
+    public void checkSameStateAsSerial() {
+        TESState initial = state(50);
+        for (int round = 0; round < 20; round++) {
+            BlockchainNode block = block(BlockExecutor.MIN_PARALLEL_TRANSACTIONS * (1 + round), 1 + round % 5);
+            Set<Long> executed = round % 2 == 0 ? Set.of() : Set.of(BlockchainNode.shortId(block.getTransactions().get(0)));
+
+            TESState expectedState = initial.copy();
+            BlockExecutor.Result expected = serial.execute(block, expectedState, t -> executed.contains(BlockchainNode.shortId(t)));
+            TESState state = initial.copy();
+            BlockExecutor.Result result = parallel.execute(block, state, t -> executed.contains(BlockchainNode.shortId(t)));
+            assertSameExecution(block, expected, expectedState, result, state);
+        }
+    }
+
+    // Large blocks of mostly independent transfers, timed serially and in parallel. A benchmark rather than a
+    //  unit test, only run with -Dbenchmarks=true
+    @Test
+    public void checkLargeBlocks() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+        TESState initial = state(5000);
+        List<BlockchainNode> blocks = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            blocks.add(block(20000, 5000));
+        // Digests are computed once per transaction, and both paths warmed up before timing them
+        for (BlockchainNode block : blocks) {
+            serial.execute(block, initial.copy(), t -> false);
+            parallel.execute(block, initial.copy(), t -> false);
+        }
+
+        long serialTime = 0;
+        long parallelTime = 0;
+        for (BlockchainNode block : blocks) {
+            TESState expectedState = initial.copy();
+            long start = System.nanoTime();
+            BlockExecutor.Result expected = serial.execute(block, expectedState, t -> false);
+            serialTime += System.nanoTime() - start;
+
+            TESState state = initial.copy();
+            start = System.nanoTime();
+            BlockExecutor.Result result = parallel.execute(block, state, t -> false);
+            parallelTime += System.nanoTime() - start;
+            assertSameExecution(block, expected, expectedState, result, state);
+        }
+        System.out.printf("Blocks of 20000 transactions: serial %d ms, %d threads %d ms (%d processors)%n",
+            serialTime / 1000000, THREADS, parallelTime / 1000000, Runtime.getRuntime().availableProcessors());
+    }
+}
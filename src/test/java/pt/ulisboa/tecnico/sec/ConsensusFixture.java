@@ -0,0 +1,167 @@
+package pt.ulisboa.tecnico.sec;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.broadcasts.BestEffortBroadcast;
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+import pt.ulisboa.tecnico.sec.instances.InstanceManager;
+import pt.ulisboa.tecnico.sec.instances.Server;
+import pt.ulisboa.tecnico.sec.links.Channel;
+import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.messages.Message;
+
+/**
+ * Servers of the consensus unit tests. The test signs and delivers the messages of the other servers itself, and
+ * the messages of the process under test are recorded instead of sent.
+ */
+public class ConsensusFixture {
+    // The servers' sockets stay open for the whole run, so every fixture takes ports of its own
+    private static final AtomicInteger nextPort = new AtomicInteger(9100);
+
+    private final List<Server> servers = new ArrayList<>();
+    // Messages the process under test broadcast or sent to a single process, in order
+    private final BlockingQueue<BFTMessage<BlockchainNode>> sent = new LinkedBlockingQueue<>();
+    // When each ROUND_CHANGE was first sent, by round
+    private final Map<Integer, Long> roundChangesSent = new ConcurrentHashMap<>();
+
+    public ConsensusFixture(int count, int byzantines) throws UnknownHostException {
+        // Suppress consensus debug output
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        for (int i = 0; i < count; i++)
+            servers.add(new Server(i + 1, nextPort.getAndIncrement()));
+        InstanceManager.setSystemParameters(new ArrayList<>(), servers, byzantines);
+    }
+
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    public Server get(int index) {
+        return servers.get(index);
+    }
+
+    // Broadcast of the process whose messages are recorded, forgetting those of the previous one
+    public BestEffortBroadcast recording(Server owner) {
+        sent.clear();
+        roundChangesSent.clear();
+        return broadcast(owner, true);
+    }
+
+    // Broadcast of the process whose messages are dropped
+    public BestEffortBroadcast discarding(Server owner) {
+        return broadcast(owner, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private BestEffortBroadcast broadcast(Server owner, boolean record) {
+        Channel channel = new Channel(owner) {
+            @Override
+            public void send(LinkMessage message) {
+                if (record) record((BFTMessage<BlockchainNode>) message.getMessage());
+            }
+
+            @Override
+            public LinkMessage deliver() {
+                throw new IllegalStateException("[ERROR] The test delivers the messages");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        return new BestEffortBroadcast(channel, new ArrayList<HDLProcess>(servers)) {
+            @Override
+            public void broadcast(Message message) {
+                if (record) record((BFTMessage<BlockchainNode>) message);
+            }
+        };
+    }
+
+    private void record(BFTMessage<BlockchainNode> message) {
+        if (message.getType() == BFTMessage.Type.ROUND_CHANGE)
+            roundChangesSent.putIfAbsent(message.getRound(), System.nanoTime());
+        sent.add(message);
+    }
+
+    public BlockingQueue<BFTMessage<BlockchainNode>> getSent() {
+        return sent;
+    }
+
+    // The next recorded message of the given type within the time, null if none
+    public BFTMessage<BlockchainNode> sent(BFTMessage.Type type, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        BFTMessage<BlockchainNode> message;
+        do {
+            message = sent.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } while (message != null && message.getType() != type);
+        return message;
+    }
+
+    // When the ROUND_CHANGE to the round was first sent (System.nanoTime), null if it wasn't
+    public Long roundChangeSent(int round) {
+        return roundChangesSent.get(round);
+    }
+
+    public static byte[] digest(BlockchainNode value) {
+        return new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 0, 0, value).getValueDigest();
+    }
+
+    public static BFTMessage<BlockchainNode> prePrepare(Server leader, int instance, int round, BlockchainNode value) {
+        BFTMessage<BlockchainNode> prePrepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, instance, round, value);
+        prePrepare.signMessage(leader.getPrivateKey());
+        return prePrepare;
+    }
+
+    public static BFTMessage<BlockchainNode> prepare(Server sender, int instance, int round, BlockchainNode value) {
+        BFTMessage<BlockchainNode> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, instance, round, BlockchainNode.class, digest(value));
+        prepare.signMessage(sender.getPrivateKey());
+        return prepare;
+    }
+
+    // PREPAREs of the first servers for the value, in the round of instance 0
+    public Map<Integer, BFTMessage<BlockchainNode>> prepares(int round, BlockchainNode value, int count) {
+        Map<Integer, BFTMessage<BlockchainNode>> prepares = new HashMap<>();
+        for (int i = 0; i < count; i++)
+            prepares.put(servers.get(i).getID(), prepare(servers.get(i), 0, round, value));
+        return prepares;
+    }
+
+    // ROUND_CHANGE of the server to the round of instance 0, that neither prepared nor accepted a value
+    public static BFTMessage<BlockchainNode> roundChange(Server sender, int round) {
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 0, round, BlockchainNode.class, null);
+        roundChange.signMessage(sender.getPrivateKey());
+        return roundChange;
+    }
+
+    // ROUND_CHANGE of the server that prepared the value in preparedRound, with the certificate
+    public static BFTMessage<BlockchainNode> preparedRoundChange(Server sender, int round, int preparedRound, BlockchainNode value,
+            Map<Integer, BFTMessage<BlockchainNode>> certificate) {
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 0, round, value);
+        roundChange.setPreparedRound(preparedRound);
+        roundChange.setJustification(certificate);
+        roundChange.signMessage(sender.getPrivateKey());
+        return roundChange;
+    }
+
+    // ROUND_CHANGE of the server that accepted the value in acceptedRound but didn't prepare it (fast path)
+    public static BFTMessage<BlockchainNode> acceptedRoundChange(Server sender, int round, int acceptedRound, BlockchainNode value) {
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 0, round, value);
+        roundChange.setAcceptedPrepare(prepare(sender, 0, acceptedRound, value));
+        roundChange.signMessage(sender.getPrivateKey());
+        return roundChange;
+    }
+}
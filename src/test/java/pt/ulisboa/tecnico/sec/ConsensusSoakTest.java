@@ -0,0 +1,135 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.prePrepare;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.prepare;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.Consensus;
+import pt.ulisboa.tecnico.sec.instances.Server;
+import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+
+/**
+ * Soak test for the garbage collection of finished consensus instances.
+ */
+public class ConsensusSoakTest {
+    private static final int INSTANCES = 3000;
+    private static final long MAX_HEAP_GROWTH = 2 * 1024 * 1024; // bytes
+
+    private static ConsensusFixture fixture;
+    private static Server server;
+    private static Transaction transaction;
+    private Consensus<BlockchainNode> consensus;
+
+    @BeforeClass
+    public static void setupSystem() throws UnknownHostException {
+        // A single server (quorum of 1), the test delivers every message to it
+        fixture = new ConsensusFixture(1, 0);
+        server = fixture.get(0);
+        transaction = new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic());
+    }
+
+    @Before
+    public void setup() {
+        consensus = new Consensus<>(server, fixture.discarding(server), BlockchainNode.class, BlockchainNode::new);
+    }
+
+    @After
+    public void stop() {
+        consensus.stop();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private void decide(int instance) throws InterruptedException {
+        BlockchainNode block = new BlockchainNode(new ArrayList<>(List.of(transaction)), new ArrayList<>());
+
+        consensus.handlePrePrepare(new LinkMessage(prePrepare(server, instance, 0, block), server, server));
+        consensus.handlePrepare(new LinkMessage(prepare(server, instance, 0, block), server, server));
+
+        BFTMessage<BlockchainNode> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, instance, 0, BlockchainNode.class, ConsensusFixture.digest(block));
+        assertTrue("Every instance must be decided", consensus.handleCommit(new LinkMessage(commit, server, server)) != null);
+
+        consensus.instanceApplied(instance, server);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void checkFlatHeap() throws InterruptedException {
+        int maxRetained = 2 * consensus.getCheckpointInterval();
+        long warmHeap = 0;
+
+        for (int instance = 0; instance < INSTANCES; instance++) {
+            decide(instance);
+            assertTrue("Only the instances since the previous checkpoint may be kept", consensus.getRetainedInstances() <= maxRetained);
+            if (instance == INSTANCES / 4) warmHeap = usedHeap();
+        }
+
+        long growth = usedHeap() - warmHeap;
+        assertTrue("The heap must not grow with the decided instances (grew " + growth + " bytes)", growth < MAX_HEAP_GROWTH);
+        assertTrue("The low watermark must follow the checkpoints",
+            consensus.getLowWatermark() == INSTANCES - INSTANCES % consensus.getCheckpointInterval() - consensus.getCheckpointInterval());
+    }
+
+    @Test
+    public void checkLateMessagesIgnored() throws InterruptedException {
+        int instances = 3 * consensus.getCheckpointInterval();
+        for (int instance = 0; instance < instances; instance++)
+            decide(instance);
+        int retained = consensus.getRetainedInstances();
+
+        BFTMessage<BlockchainNode> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, 0, 0, BlockchainNode.class, new byte[32]);
+        assertTrue("A discarded instance must not be decided again", consensus.handleCommit(new LinkMessage(commit, server, server)) == null);
+        assertTrue("Late messages must not bring back a discarded instance", consensus.getRetainedInstances() == retained);
+    }
+
+    @Test
+    public void checkFutureMessagesIgnored() throws InterruptedException {
+        int window = 2 * consensus.getCheckpointInterval() + consensus.getPipeline();
+        BlockchainNode block = new BlockchainNode(new ArrayList<>(List.of(transaction)), new ArrayList<>());
+        Random random = new Random(0);
+
+        // A faulty server sends messages for arbitrary instances past the window while the others are decided
+        int instances = 5 * consensus.getCheckpointInterval();
+        for (int instance = 0; instance < instances; instance++) {
+            decide(instance);
+            int future = consensus.getLowWatermark() + window + random.nextInt(Integer.MAX_VALUE / 2);
+            consensus.handlePrepare(new LinkMessage(prepare(server, future, 0, block), server, server));
+            BFTMessage<BlockchainNode> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, future, 0, BlockchainNode.class, ConsensusFixture.digest(block));
+            consensus.handleCommit(new LinkMessage(commit, server, server));
+            BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, future, 1, BlockchainNode.class, null);
+            roundChange.signMessage(server.getPrivateKey());
+            consensus.handleRoundChange(new LinkMessage(roundChange, server, server));
+            assertTrue("Messages past the window must not be kept", consensus.getRetainedInstances() <= window);
+        }
+
+        int retained = consensus.getRetainedInstances();
+        int last = consensus.getLowWatermark() + window - 1;
+        consensus.handlePrepare(new LinkMessage(prepare(server, last, 0, block), server, server));
+        assertTrue("The last instance of the window must still be held", consensus.getRetainedInstances() == retained + 1);
+    }
+}
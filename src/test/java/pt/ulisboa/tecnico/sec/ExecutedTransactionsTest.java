@@ -0,0 +1,90 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.ExecutedTransactions;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+
+/**
+ * Unit test for the executed transactions of a server, which are only kept by id for a window of instances.
+ */
+public class ExecutedTransactionsTest {
+    private static final int WINDOW = 4;
+
+    private KeyPair source;
+    private AccountId destination;
+    private ExecutedTransactions executed;
+
+    @Before
+    public void setup() {
+        source = KeyHandler.generateAccountKeyPair();
+        destination = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+        executed = new ExecutedTransactions(WINDOW);
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private Transaction transfer(int nonce) {
+        Transaction t = new TransferTransaction(AccountId.of(source.getPublic()), destination, 1);
+        t.authenticateTransaction(nonce, source.getPrivate());
+        return t;
+    }
+
+    // Applies the instances up to the given one, with no transactions
+    private void applyUpTo(int from, int to) {
+        for (int instance = from; instance <= to; instance++)
+            executed.applied(instance);
+    }
+
+    @Test
+    public void checkKeepsWindowById() {
+        Transaction first = transfer(1);
+        Transaction later = transfer(3);
+        executed.add(0, later);
+        executed.applied(0);
+        executed.add(1, first);
+        executed.applied(1);
+
+        assertTrue("Executed transactions must be known", executed.contains(first) && executed.contains(later));
+        assertTrue("Transactions out of nonce order in the window must not hide others", !executed.contains(transfer(2)));
+        assertTrue("Transactions not executed must not be known", !executed.contains(transfer(4)));
+    }
+
+    @Test
+    public void checkFoldsOldInstances() {
+        for (int i = 0; i < 3; i++) {
+            executed.add(i, transfer(i + 1));
+            executed.applied(i);
+        }
+        applyUpTo(3, 100);
+
+        assertTrue("Ids must only be kept for the window", executed.size() == 0);
+        assertTrue("Transactions before the window must still be known by nonce",
+            executed.contains(transfer(1)) && executed.contains(transfer(3)));
+        assertTrue("Later nonces of the source must not be known", !executed.contains(transfer(4)));
+    }
+
+    @Test
+    public void checkUnsignedTransactions() {
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        executed.add(0, transfer(5));
+        executed.add(0, create);
+        applyUpTo(0, WINDOW);
+
+        assertTrue("Signed transactions must move the nonce of their source", executed.contains(transfer(2)));
+        assertTrue("Unsigned transactions must not be told by their nonce", !executed.contains(create));
+    }
+}
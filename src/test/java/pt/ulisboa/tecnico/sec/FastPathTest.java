@@ -0,0 +1,194 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.acceptedRoundChange;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.digest;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.prepare;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.Consensus;
+import pt.ulisboa.tecnico.sec.instances.InstanceManager;
+import pt.ulisboa.tecnico.sec.instances.Server;
+import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+
+/**
+ * Unit test for the fast path of consensus, with 4 servers (f = 1, quorum of 3).
+ */
+public class FastPathTest {
+    private static final long FAST_PATH_TIMEOUT = 50; // ms
+
+    private static ConsensusFixture fixture;
+    private static List<Server> servers;
+    private static BlockchainNode proposed;
+    private static BlockchainNode other;
+    private Consensus<BlockchainNode> consensus;
+
+    @BeforeClass
+    public static void setupSystem() throws UnknownHostException {
+        fixture = new ConsensusFixture(4, 1);
+        servers = fixture.getServers();
+        proposed = new BlockchainNode(new ArrayList<>(List.of(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()))), new ArrayList<>());
+        other = new BlockchainNode(new ArrayList<>(List.of(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()))), new ArrayList<>());
+    }
+
+    @After
+    public void stop() {
+        if (consensus != null) consensus.stop();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    // Consensus of the given server on the fast path
+    private void start(Server process) {
+        InstanceManager.setParameter("fast-path", "1");
+        InstanceManager.setParameter("fast-path-timeout", String.valueOf(FAST_PATH_TIMEOUT));
+        try {
+            consensus = new Consensus<>(process, fixture.recording(process), BlockchainNode.class, BlockchainNode::new);
+        } finally {
+            InstanceManager.setParameter("fast-path", "0");
+            InstanceManager.setParameter("fast-path-timeout", String.valueOf(Consensus.DEFAULT_FAST_PATH_TIMEOUT));
+        }
+    }
+
+    // Certificate of the PREPAREs of the first servers for the value, in the round
+    private static BFTMessage<BlockchainNode> certificate(int round, BlockchainNode value, int count) {
+        BFTMessage<BlockchainNode> certificate = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, 0, round, BlockchainNode.class, digest(value));
+        certificate.setJustification(fixture.prepares(round, value, count));
+        return certificate;
+    }
+
+    // ROUND_CHANGE to round 1 of a server that accepted the value in round 0 but didn't prepare it (if any)
+    private static BFTMessage<BlockchainNode> roundChange(Server sender, BlockchainNode accepted) {
+        return accepted == null ? ConsensusFixture.roundChange(sender, 1) : acceptedRoundChange(sender, 1, 0, accepted);
+    }
+
+    private void propose(BlockchainNode value) throws InterruptedException {
+        consensus.handlePrePrepare(new LinkMessage(ConsensusFixture.prePrepare(servers.get(0), 0, 0, value), servers.get(0), servers.get(1)));
+    }
+
+    private BFTMessage<BlockchainNode> fastCommit(BFTMessage<BlockchainNode> certificate) throws InterruptedException {
+        return consensus.handleFastCommit(new LinkMessage(certificate, servers.get(0), servers.get(1)));
+    }
+
+    private BFTMessage<BlockchainNode> sent(BFTMessage.Type type, long timeout) throws InterruptedException {
+        return fixture.sent(type, timeout);
+    }
+
+    @Test
+    public void checkFastCertificates() throws InterruptedException {
+        start(servers.get(1));
+        propose(proposed);
+
+        assertTrue("The PREPAREs of all but one server must not be a certificate", fastCommit(certificate(0, proposed, 3)) == null);
+        BFTMessage<BlockchainNode> mismatched = certificate(0, proposed, 4);
+        Map<Integer, BFTMessage<BlockchainNode>> prepares = new HashMap<>(mismatched.getJustification());
+        prepares.put(servers.get(3).getID(), prepare(servers.get(3), 0, 0, other));
+        mismatched = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, 0, 0, BlockchainNode.class, digest(proposed));
+        mismatched.setJustification(prepares);
+        assertTrue("PREPAREs of another value must not be a certificate", fastCommit(mismatched) == null);
+        prepares.put(servers.get(3).getID(), prepare(servers.get(3), 0, 1, proposed));
+        mismatched = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, 0, 0, BlockchainNode.class, digest(proposed));
+        mismatched.setJustification(prepares);
+        assertTrue("PREPAREs of another round must not be a certificate", fastCommit(mismatched) == null);
+
+        BFTMessage<BlockchainNode> decision = fastCommit(certificate(0, proposed, 4));
+        assertTrue("The PREPAREs of all the servers must decide the value", decision != null
+            && Arrays.equals(decision.getValueDigest(), digest(proposed)));
+    }
+
+    @Test
+    public void checkReproposesFastDecision() throws InterruptedException {
+        // Leader of round 1; the value may have been decided on the fast path, none of the senders prepared it
+        start(servers.get(1));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(0), proposed), servers.get(0), servers.get(1)));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(2), proposed), servers.get(2), servers.get(1)));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(3), null), servers.get(3), servers.get(1)));
+
+        BFTMessage<BlockchainNode> prePrepare = sent(BFTMessage.Type.PRE_PREPARE, 100);
+        assertTrue("A value f+1 servers accepted must be proposed again", prePrepare != null && prePrepare.getRound() == 1
+            && Arrays.equals(prePrepare.getValueDigest(), digest(proposed)));
+
+        // A replica only takes that value from the new leader
+        Map<Integer, BFTMessage<BlockchainNode>> roundChanges = new HashMap<>(prePrepare.getJustification());
+        stop();
+        start(servers.get(2));
+        for (BlockchainNode value : List.of(new BlockchainNode(), proposed)) {
+            BFTMessage<BlockchainNode> proposal = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 0, 1, value);
+            proposal.setJustification(roundChanges);
+            proposal.signMessage(servers.get(1).getPrivateKey());
+            consensus.handlePrePrepare(new LinkMessage(proposal, servers.get(1), servers.get(2)));
+        }
+        BFTMessage<BlockchainNode> prepare = sent(BFTMessage.Type.PREPARE, 100);
+        assertTrue("A replica must only prepare the value f+1 servers accepted", prepare != null
+            && Arrays.equals(prepare.getValueDigest(), digest(proposed)) && sent(BFTMessage.Type.PREPARE, 100) == null);
+    }
+
+    @Test
+    public void checkSingleAcceptIsNotEnough() throws InterruptedException {
+        // A single server accepting a value may be byzantine, the leader is free to propose its own
+        start(servers.get(1));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(0), proposed), servers.get(0), servers.get(1)));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(2), null), servers.get(2), servers.get(1)));
+        consensus.handleRoundChange(new LinkMessage(roundChange(servers.get(3), null), servers.get(3), servers.get(1)));
+
+        BFTMessage<BlockchainNode> prePrepare = sent(BFTMessage.Type.PRE_PREPARE, 100);
+        assertTrue("A value accepted by f servers must not bind the leader", prePrepare != null
+            && Arrays.equals(prePrepare.getValueDigest(), digest(new BlockchainNode())));
+    }
+
+    @Test
+    public void checkCommitsLate() throws InterruptedException {
+        start(servers.get(1));
+        propose(proposed);
+        for (int i = 0; i < 3; i++)
+            consensus.handlePrepare(new LinkMessage(prepare(servers.get(i), 0, 0, proposed), servers.get(i), servers.get(1)));
+
+        assertTrue("A prepared value must wait for the certificate", sent(BFTMessage.Type.COMMIT, FAST_PATH_TIMEOUT / 2) == null);
+        BFTMessage<BlockchainNode> commit = sent(BFTMessage.Type.COMMIT, 20 * FAST_PATH_TIMEOUT);
+        assertTrue("Without a certificate the process must fall back to COMMIT", commit != null
+            && Arrays.equals(commit.getValueDigest(), digest(proposed)) && consensus.getCommittedInstance() == 0);
+    }
+
+    @Test
+    public void checkCertificateBeforeTimeout() throws InterruptedException {
+        start(servers.get(1));
+        propose(proposed);
+        for (int i = 0; i < 3; i++)
+            consensus.handlePrepare(new LinkMessage(prepare(servers.get(i), 0, 0, proposed), servers.get(i), servers.get(1)));
+
+        assertTrue("The certificate must decide the value", fastCommit(certificate(0, proposed, 4)) != null);
+        assertTrue("A decided process must not fall back to COMMIT", sent(BFTMessage.Type.COMMIT, 4 * FAST_PATH_TIMEOUT) == null);
+    }
+
+    @Test
+    public void checkCertificateBeforeValue() throws InterruptedException {
+        // The certificate arrives before the PRE_PREPARE, the decision waits for the value
+        start(servers.get(1));
+        assertTrue("A certificate without the value must not decide yet", fastCommit(certificate(0, proposed, 4)) == null);
+
+        // A decided server answers the replica's ROUND_CHANGE with its COMMIT, which carries the value
+        BFTMessage<BlockchainNode> commit = new BFTMessage<>(BFTMessage.Type.COMMIT, 0, 0, proposed);
+        BFTMessage<BlockchainNode> decision = consensus.handleCommit(new LinkMessage(commit, servers.get(0), servers.get(1)));
+        assertTrue("The value of a COMMIT must complete the certified decision", decision != null
+            && Arrays.equals(decision.getValueDigest(), digest(proposed)));
+        assertTrue("The sender of the COMMIT must be sent the certificate", sent(BFTMessage.Type.FAST_COMMIT, 100) != null);
+    }
+}
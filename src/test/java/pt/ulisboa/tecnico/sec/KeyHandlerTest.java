@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.UnknownHostException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.ibft.HDLProcess;
+import pt.ulisboa.tecnico.sec.instances.InstanceManager;
+
+/**
+ * Unit test for the keystore provisioning mode.
+ */
+public class KeyHandlerTest {
+    private HDLProcess p1;
+    private HDLProcess p2;
+    private HDLProcess p3;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        KeyHandler.setProvisioningMode(KeyHandler.ProvisioningMode.KEYSTORE);
+
+        p1 = new HDLProcess(0);
+        p2 = new HDLProcess(1);
+        p3 = new HDLProcess(2);
+
+        InstanceManager.setSystemParameters(List.of(p1, p2, p3));
+    }
+
+    @Test
+    public void checkPairwiseSecrets() {
+        assertTrue("Pairwise secret must be the same on both ends",
+            p1.getSecretKeyFor(p2).equals(p2.getSecretKeyFor(p1)));
+        assertFalse("Different pairs must not share a secret",
+            p1.getSecretKeyFor(p2).equals(p1.getSecretKeyFor(p3)));
+    }
+
+    @Test
+    public void checkKeyPairs() {
+        byte[] data = "amogus".getBytes();
+        String signature = AuthenticationHandler.signBytes(p1.getPrivateKey(), data);
+
+        assertTrue("Signature must verify with the stored public key",
+            AuthenticationHandler.checkSignature(p1.getPublicKey(), signature, data));
+        assertFalse("Signature must not verify with another process key",
+            AuthenticationHandler.checkSignature(p2.getPublicKey(), signature, data));
+    }
+
+    @Test
+    public void checkInterning() {
+        PublicKey key = KeyHandler.generateAccountKeyPair().getPublic();
+
+        PublicKey decoded = KeyHandler.deserializePublicKey(key.getEncoded());
+        assertTrue("Decoded key differs from the original", decoded.equals(key));
+        assertTrue("Decoding the same key twice must give the canonical instance",
+            KeyHandler.deserializePublicKey(key.getEncoded()) == decoded);
+        assertTrue("Process keys must be interned", p1.getPublicKey() == p1.getPublicKey());
+        assertTrue("Equal keys must be the same key", KeyHandler.sameKey(decoded, key));
+        assertFalse("Different keys must not be the same key", KeyHandler.sameKey(decoded, p1.getPublicKey()));
+
+        byte[] fingerprint = KeyHandler.fingerprint(key);
+        fingerprint[0] ^= 1;
+        assertFalse("Changing a fingerprint must not change the cached one", Arrays.equals(fingerprint, KeyHandler.fingerprint(key)));
+        assertTrue("Keys must still compare after a fingerprint is changed", KeyHandler.sameKey(decoded, key));
+    }
+
+    @Test
+    public void checkInterningCleared() {
+        PublicKey key = KeyHandler.generateAccountKeyPair().getPublic();
+        PublicKey decoded = KeyHandler.deserializePublicKey(key.getEncoded());
+
+        KeyHandler.cleanKeys();
+        PublicKey again = KeyHandler.deserializePublicKey(key.getEncoded());
+        assertTrue("Cleaning the keys must drop the interned instances", again != decoded && again.equals(decoded));
+        assertTrue("Keys must still compare after cleaning", KeyHandler.sameKey(again, decoded));
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+        KeyHandler.setProvisioningMode(KeyHandler.ProvisioningMode.FILES);
+    }
+}
@@ -0,0 +1,74 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.Consensus;
+import pt.ulisboa.tecnico.sec.instances.Server;
+import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+
+/**
+ * Unit test for the instances and leaders of parallel consensus lanes.
+ */
+public class LanesTest {
+    private static final int LANES = 2;
+
+    private static ConsensusFixture fixture;
+    private static Server first;
+    private static Server second;
+    private Consensus<BlockchainNode> consensus;
+
+    @BeforeClass
+    public static void setupSystem() throws UnknownHostException {
+        fixture = new ConsensusFixture(2, 0);
+        first = fixture.get(0);
+        second = fixture.get(1);
+    }
+
+    @Before
+    public void setup() {
+        consensus = new Consensus<>(first, fixture.discarding(first), BlockchainNode.class, instance -> new BlockchainNode(), LANES);
+    }
+
+    @After
+    public void stop() {
+        consensus.stop();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    @Test
+    public void checkLaneLeaders() {
+        assertTrue("Instances must go round robin over the lanes", consensus.getLane(4) == 0 && consensus.getLane(7) == 1);
+        assertTrue("Each lane must start with its own server",
+            consensus.getLeader(4, 0).equals(first) && consensus.getLeader(7, 0).equals(second));
+        assertTrue("Round changes must move the lane on to the next server", consensus.getLeader(7, 1).equals(first));
+        assertTrue("The server must lead its own lane", consensus.getOwnLane() == 0 && consensus.leadsNextInstance());
+        assertTrue("The pipeline must cover every lane", consensus.getPipeline() == LANES * Consensus.DEFAULT_PIPELINE);
+    }
+
+    @Test
+    public void checkLaneInstances() throws InterruptedException {
+        assertTrue("The lane must start at its first instance", consensus.startConsensus(new BlockchainNode()) == 0);
+        assertTrue("The lane must propose its own sequence", consensus.startConsensus(new BlockchainNode()) == 2);
+        assertTrue("A lane ahead of the others isn't behind", !consensus.isBehind());
+
+        // The other lane gets further ahead
+        consensus.handlePrePrepare(new LinkMessage(ConsensusFixture.prePrepare(second, 7, 0, new BlockchainNode()), second, first));
+        assertTrue("An instance of another lane after the next one must hold the lane back", consensus.isBehind());
+        assertTrue("The lane must fill its next instance", consensus.startConsensus(new BlockchainNode()) == 4);
+        assertTrue("The lane must fill up to the others", consensus.startConsensus(new BlockchainNode()) == 6 && !consensus.isBehind());
+    }
+}
@@ -0,0 +1,97 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.Mempool;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+
+/**
+ * Unit test for the pool of pending client transactions.
+ */
+public class MempoolTest {
+    private KeyPair source;
+    private AccountId destination;
+    private List<Mempool.Entry> evicted;
+    private Set<Transaction> pinned;
+
+    @Before
+    public void setup() {
+        source = KeyHandler.generateAccountKeyPair();
+        destination = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+        evicted = new ArrayList<>();
+        pinned = new HashSet<>();
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private Transaction transfer(int nonce, double amount) {
+        Transaction t = new TransferTransaction(AccountId.of(source.getPublic()), destination, amount);
+        t.authenticateTransaction(nonce, source.getPrivate());
+        return t;
+    }
+
+    private Mempool mempool(int capacity, long maxAge) {
+        return new Mempool(capacity, maxAge, pinned::contains, evicted::add);
+    }
+
+    @Test
+    public void checkRejectsDuplicates() {
+        Mempool mempool = mempool(10, 60000);
+        Transaction t = transfer(1, 1);
+
+        assertTrue("A new transaction must be added", mempool.add(t, null) == Mempool.Admission.ADDED);
+        assertTrue("The same transaction must only be pending once", mempool.add(transfer(1, 1), null) == Mempool.Admission.DUPLICATE);
+        assertTrue("A source must not reuse a nonce", mempool.add(transfer(1, 2), null) == Mempool.Admission.DUPLICATE);
+        assertTrue("Duplicates must not be kept", mempool.size() == 1);
+    }
+
+    @Test
+    public void checkArrivalOrderAndRemoval() {
+        Mempool mempool = mempool(10, 60000);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int nonce = 1; nonce <= 5; nonce++) {
+            transactions.add(transfer(nonce, 1));
+            mempool.add(transactions.get(nonce - 1), null);
+        }
+
+        assertTrue("Candidates must be in arrival order", mempool.candidates(t -> true).equals(transactions));
+        assertTrue("A pending transaction must be found", mempool.remove(transactions.get(2)) != null);
+        assertTrue("A decided transaction must only be removed once", mempool.remove(transactions.get(2)) == null);
+        transactions.remove(2);
+        assertTrue("Removing must keep the order of the others", mempool.candidates(t -> true).equals(transactions));
+        assertTrue("The filter must be applied", mempool.candidates(t -> t.getNonce() > 3).size() == 2);
+    }
+
+    @Test
+    public void checkBounds() throws InterruptedException {
+        Mempool mempool = mempool(2, 50);
+        Transaction first = transfer(1, 1);
+        Transaction second = transfer(2, 1);
+        mempool.add(first, null);
+        mempool.add(second, null);
+        assertTrue("A full pool must turn transactions away", mempool.add(transfer(3, 1), null) == Mempool.Admission.FULL);
+        assertTrue("Turned away transactions must not be kept", mempool.size() == 2 && evicted.isEmpty());
+
+        pinned.add(first);
+        Thread.sleep(100);
+        assertTrue("Old transactions must make room", mempool.add(transfer(4, 1), null) == Mempool.Admission.ADDED);
+        assertTrue("Only old transactions that aren't proposed must be evicted",
+            evicted.size() == 1 && evicted.get(0).getTransaction().equals(second) && mempool.contains(first));
+    }
+}
@@ -0,0 +1,100 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.instances.OrderedApplier;
+
+/**
+ * Unit test for the in-order application of decided instances.
+ */
+public class OrderedApplierTest {
+    private static final long WAIT = 200; // ms
+
+    // Values in the order they were applied
+    private BlockingQueue<String> applied;
+    private BlockingQueue<RuntimeException> failures;
+    private OrderedApplier<String> applier;
+
+    @Before
+    public void setup() {
+        applied = new LinkedBlockingQueue<>();
+        failures = new LinkedBlockingQueue<>();
+        applier = new OrderedApplier<>(0, (instance, value) -> {
+            if (value.equals("fail")) throw new IllegalStateException("[ERROR] Applying instance " + instance);
+            applied.add(instance + ":" + value);
+        }, failures::add);
+        applier.start("ordered-applier-test");
+    }
+
+    @After
+    public void cleanup() {
+        applier.stop();
+    }
+
+    @Test
+    public void checkAppliesInOrder() throws InterruptedException {
+        applier.submit(2, "c");
+        applier.submit(1, "b");
+        assertTrue("Instances must wait for every previous one", applied.poll(WAIT, TimeUnit.MILLISECONDS) == null);
+
+        applier.submit(0, "a");
+        assertTrue("Buffered instances must be applied in order", "0:a".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS))
+            && "1:b".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS)) && "2:c".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS)));
+        waitForInstance(3);
+        assertTrue("The applier must wait for the next instance", applier.getNextInstance() == 3);
+    }
+
+    @Test
+    public void checkIgnoresDuplicates() throws InterruptedException {
+        applier.submit(1, "b");
+        applier.submit(1, "other");
+        applier.submit(0, "a");
+        assertTrue("The first decision of an instance must be applied", "0:a".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS))
+            && "1:b".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS)));
+        waitForInstance(2);
+
+        applier.submit(0, "again");
+        applier.submit(1, "again");
+        assertTrue("Applied instances must not be applied again", applied.poll(WAIT, TimeUnit.MILLISECONDS) == null);
+        assertTrue("Applied instances must not move the applier", applier.getNextInstance() == 2);
+    }
+
+    @Test
+    public void checkStopsOnFailure() throws InterruptedException {
+        applier.submit(0, "a");
+        applier.submit(1, "fail");
+        applier.submit(2, "c");
+
+        assertTrue("Instances before the failure must be applied", "0:a".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS)));
+        assertTrue("A failed instance must be reported", failures.poll(WAIT, TimeUnit.MILLISECONDS) != null);
+        assertTrue("Instances after a failed one must not be applied", applied.poll(WAIT, TimeUnit.MILLISECONDS) == null);
+        assertTrue("A failed instance must not count as applied", applier.getNextInstance() == 1);
+    }
+
+    @Test
+    public void checkStop() throws InterruptedException {
+        applier.submit(0, "a");
+        assertTrue("Instances must be applied before stopping", "0:a".equals(applied.poll(WAIT, TimeUnit.MILLISECONDS)));
+        waitForInstance(1);
+
+        applier.stop();
+        Thread.sleep(WAIT / 4);
+        applier.submit(1, "b");
+        assertTrue("A stopped applier must not apply instances", applied.poll(WAIT, TimeUnit.MILLISECONDS) == null);
+        assertTrue("Stopping must not be reported as a failure", failures.isEmpty());
+    }
+
+    // The applier moves past an instance right after applying it
+    private void waitForInstance(int instance) throws InterruptedException {
+        for (int i = 0; i < 20 && applier.getNextInstance() < instance; i++)
+            Thread.sleep(WAIT / 20);
+    }
+}
@@ -0,0 +1,77 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.ReadBatcher;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue.Read;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+
+/**
+ * Unit test for the batching of strong reads.
+ */
+public class ReadBatcherTest {
+    private static final long WINDOW = 100; // ms
+
+    private List<AccountId> clients;
+    private Semaphore ticks;
+    private ReadBatcher batcher;
+
+    @Before
+    public void setup() {
+        clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            clients.add(AccountId.of(KeyHandler.generateAccountKeyPair().getPublic()));
+        ticks = new Semaphore(0);
+        batcher = new ReadBatcher("read-batcher-test", WINDOW, 2, ticks::release);
+    }
+
+    @After
+    public void cleanup() {
+        batcher.stop();
+        KeyHandler.cleanKeys();
+    }
+
+    private Read read(int client, int nonce) {
+        return new Read(clients.get(client), nonce, clients.get(0));
+    }
+
+    @Test
+    public void checkOneTickPerWindow() throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++)
+            batcher.add(read(i, 1), null, 0);
+
+        assertTrue("The window must end with a tick", ticks.tryAcquire(4 * WINDOW, TimeUnit.MILLISECONDS));
+        assertTrue("Reads must wait for the window", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(WINDOW));
+        assertTrue("Reads of a window must share its tick", !ticks.tryAcquire(2 * WINDOW, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void checkBatches() throws InterruptedException {
+        for (int i = 0; i < 3; i++)
+            batcher.add(read(i, 1), null, 0);
+        assertTrue("The same read must only be pending once", !batcher.add(read(0, 1), null, 0));
+
+        List<Read> batch = batcher.nextBatch();
+        assertTrue("Batches must be in arrival order, up to the limit", batch.equals(List.of(read(0, 1), read(1, 1))));
+        batcher.proposed(batch, 7);
+        assertTrue("Proposed reads must not be batched again", batcher.nextBatch().equals(List.of(read(2, 1))));
+        assertTrue("Every pending read is in a proposal", batcher.nextBatch().isEmpty());
+
+        batcher.remove(read(0, 1));
+        batcher.decided(7);
+        assertTrue("Reads left out of the decision must be batched again", batcher.nextBatch().equals(List.of(read(1, 1))));
+        assertTrue("Reads arriving after their decision must be ignored", !batcher.add(read(0, 1), null, 0));
+        assertTrue("The next read of the client must be batched", batcher.add(read(0, 2), null, 0));
+    }
+}
@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.ReadIndex;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue.Read;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+
+/**
+ * Unit test for the strong reads answered from a quorum read index.
+ */
+public class ReadIndexTest {
+    private static final int QUORUM = 3;
+    private static final int LIMIT = 10;
+
+    private List<AccountId> clients;
+    private ReadIndex readIndex;
+
+    @Before
+    public void setup() {
+        clients = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            clients.add(AccountId.of(KeyHandler.generateAccountKeyPair().getPublic()));
+        readIndex = new ReadIndex(QUORUM);
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private Read read(int client, int nonce) {
+        return new Read(clients.get(client), nonce, clients.get(0));
+    }
+
+    @Test
+    public void checkQuorumIndex() {
+        Read read = read(0, 1);
+        assertTrue("A new read must be added", readIndex.add(read, null));
+        assertTrue("The same read must only wait once", !readIndex.add(read, null));
+
+        assertTrue("One report isn't a quorum", readIndex.report(clients.get(0), 1, 1, 4, LIMIT) == null);
+        assertTrue("Repeated reports must not count", readIndex.report(clients.get(0), 1, 1, 6, LIMIT) == null);
+        assertTrue("Reports over the limit must not count", readIndex.report(clients.get(0), 1, 2, LIMIT, LIMIT) == null);
+        assertTrue("Two reports aren't a quorum", readIndex.report(clients.get(0), 1, 3, 2, LIMIT) == null);
+
+        ReadIndex.Ready ready = readIndex.report(clients.get(0), 1, 4, 3, LIMIT);
+        assertTrue("A quorum of reports must make the read due", ready != null && ready.getRead().equals(read));
+        assertTrue("The index must be the highest reported", ready.getIndex() == 4);
+        assertTrue("A due read must only be returned once", readIndex.report(clients.get(0), 1, 2, 5, LIMIT) == null);
+        assertTrue("An answered read must not wait again", !readIndex.add(read, null));
+    }
+
+    @Test
+    public void checkEarlyReports() {
+        for (int replica = 1; replica <= QUORUM; replica++)
+            assertTrue("Reads not received yet can't be due", readIndex.report(clients.get(1), 2, replica, replica, LIMIT) == null);
+        readIndex.report(clients.get(1), 1, 1, 0, LIMIT);
+
+        readIndex.add(read(1, 2), null);
+        ReadIndex.Ready ready = readIndex.report(clients.get(1), 2, QUORUM + 1, 0, LIMIT);
+        assertTrue("Reports before the read must count", ready != null && ready.getIndex() == QUORUM);
+        assertTrue("Reports of older reads of the client must be dropped", readIndex.size() == 0);
+        assertTrue("Older reads of the client must not wait", !readIndex.add(read(1, 1), null));
+    }
+
+    @Test
+    public void checkMadeUpReports() {
+        // A faulty server reports reads that never come, genuine early reports of the next one still count
+        int faulty = QUORUM + 1;
+        for (int nonce = 1; nonce <= 1000; nonce++)
+            readIndex.report(clients.get(0), nonce, faulty, 0, LIMIT);
+        for (int replica = 1; replica < QUORUM; replica++)
+            readIndex.report(clients.get(0), 1001, replica, replica, LIMIT);
+        assertTrue("Only the latest early report of each server may be kept", readIndex.size() == 2);
+        assertTrue("An older report must not replace a later one", readIndex.report(clients.get(0), 5, faulty, 0, LIMIT) == null
+            && readIndex.size() == 2);
+
+        readIndex.add(read(0, 1001), null);
+        ReadIndex.Ready ready = readIndex.report(clients.get(0), 1001, QUORUM, 0, LIMIT);
+        assertTrue("Early reports must count once the read arrives", ready != null && ready.getIndex() == QUORUM - 1);
+        assertTrue("Answering the read must drop the made-up ones", readIndex.size() == 0);
+    }
+}
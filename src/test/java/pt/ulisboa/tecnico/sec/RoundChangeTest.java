@@ -0,0 +1,180 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.digest;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.preparedRoundChange;
+import static pt.ulisboa.tecnico.sec.ConsensusFixture.roundChange;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.Consensus;
+import pt.ulisboa.tecnico.sec.instances.InstanceManager;
+import pt.ulisboa.tecnico.sec.instances.Server;
+import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.LinkMessage;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+
+/**
+ * Unit test for the round changes of a consensus instance, with 4 servers (f = 1, quorum of 3).
+ */
+public class RoundChangeTest {
+    private static final long ROUND_TIMEOUT = 40; // ms
+
+    private static ConsensusFixture fixture;
+    private static List<Server> servers;
+    private static BlockchainNode proposed;
+    private static BlockchainNode other;
+    private Consensus<BlockchainNode> consensus;
+
+    @BeforeClass
+    public static void setupSystem() throws UnknownHostException {
+        fixture = new ConsensusFixture(4, 1);
+        servers = fixture.getServers();
+        proposed = new BlockchainNode(new ArrayList<>(List.of(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()))), new ArrayList<>());
+        other = new BlockchainNode(new ArrayList<>(List.of(new CreateAccountTransaction(KeyHandler.generateAccountKeyPair().getPublic()))), new ArrayList<>());
+    }
+
+    @After
+    public void stop() {
+        if (consensus != null) consensus.stop();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private void start(Server process) {
+        consensus = new Consensus<>(process, fixture.recording(process), BlockchainNode.class, BlockchainNode::new);
+    }
+
+    private void deliver(BFTMessage<BlockchainNode> roundChange, Server sender) throws InterruptedException {
+        consensus.handleRoundChange(new LinkMessage(roundChange, sender, servers.get(0)));
+    }
+
+    private BFTMessage<BlockchainNode> sent(BFTMessage.Type type) throws InterruptedException {
+        return fixture.sent(type, 100);
+    }
+
+    // PRE_PREPARE of the leader of round 1 with the ROUND_CHANGEs of the given servers
+    private BFTMessage<BlockchainNode> prePrepare(BlockchainNode value, Map<Integer, BFTMessage<BlockchainNode>> roundChanges) {
+        BFTMessage<BlockchainNode> prePrepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 0, 1, value);
+        prePrepare.setJustification(roundChanges);
+        prePrepare.signMessage(servers.get(1).getPrivateKey());
+        return prePrepare;
+    }
+
+    @Test
+    public void checkJustifiedPrePrepare() throws InterruptedException {
+        start(servers.get(0));
+        Map<Integer, BFTMessage<BlockchainNode>> roundChanges = new HashMap<>();
+        for (int i = 1; i < 3; i++)
+            roundChanges.put(servers.get(i).getID(), roundChange(servers.get(i), 1));
+
+        consensus.handlePrePrepare(new LinkMessage(prePrepare(proposed, roundChanges), servers.get(1), servers.get(0)));
+        assertTrue("A PRE_PREPARE after round 0 without a quorum of ROUND_CHANGEs must be rejected",
+            sent(BFTMessage.Type.PREPARE) == null && consensus.getRound(0) == 0);
+
+        // A quorum in which one server prepared a value: only that value may be proposed
+        roundChanges.put(servers.get(3).getID(), preparedRoundChange(servers.get(3), 1, 0, proposed, fixture.prepares(0, proposed, 3)));
+        consensus.handlePrePrepare(new LinkMessage(prePrepare(other, roundChanges), servers.get(1), servers.get(0)));
+        assertTrue("A PRE_PREPARE must not replace the prepared value", sent(BFTMessage.Type.PREPARE) == null);
+
+        consensus.handlePrePrepare(new LinkMessage(prePrepare(proposed, roundChanges), servers.get(1), servers.get(0)));
+        BFTMessage<BlockchainNode> prepare = sent(BFTMessage.Type.PREPARE);
+        assertTrue("A justified PRE_PREPARE must be prepared in its round", prepare != null && prepare.getRound() == 1
+            && Arrays.equals(prepare.getValueDigest(), digest(proposed)) && consensus.getRound(0) == 1);
+    }
+
+    @Test
+    public void checkAcceptsOnlyFromLeader() throws InterruptedException {
+        start(servers.get(0));
+        List<BFTMessage<BlockchainNode>> accepted = new ArrayList<>();
+        int future = consensus.getLowWatermark() + 2 * consensus.getCheckpointInterval() + consensus.getPipeline();
+        Server futureLeader = servers.get(servers.indexOf(consensus.getLeader(future, 0)));
+
+        // Not the leader of round 0, round 1 without ROUND_CHANGEs, and an instance past the window
+        consensus.handlePrePrepare(new LinkMessage(ConsensusFixture.prePrepare(servers.get(2), 0, 0, proposed), servers.get(2), servers.get(0)), accepted::add);
+        consensus.handlePrePrepare(new LinkMessage(prePrepare(proposed, new HashMap<>()), servers.get(1), servers.get(0)), accepted::add);
+        consensus.handlePrePrepare(new LinkMessage(ConsensusFixture.prePrepare(futureLeader, future, 0, proposed), futureLeader, servers.get(0)), accepted::add);
+        assertTrue("Only the leader's PRE_PREPAREs within the window may be accepted", accepted.isEmpty());
+
+        consensus.handlePrePrepare(new LinkMessage(ConsensusFixture.prePrepare(servers.get(0), 0, 0, proposed), servers.get(0), servers.get(0)), accepted::add);
+        assertTrue("The leader's PRE_PREPARE must be accepted before it is prepared", accepted.size() == 1
+            && fixture.sent(BFTMessage.Type.PREPARE, 100) != null);
+    }
+
+    @Test
+    public void checkReproposesHighestPrepared() throws InterruptedException {
+        // Leader of round 2
+        start(servers.get(2));
+        deliver(preparedRoundChange(servers.get(0), 2, 0, proposed, fixture.prepares(0, proposed, 3)), servers.get(0));
+        deliver(preparedRoundChange(servers.get(1), 2, 1, other, fixture.prepares(1, other, 3)), servers.get(1));
+        assertTrue("f+1 ROUND_CHANGEs must make the process join their round", sent(BFTMessage.Type.ROUND_CHANGE) != null
+            && consensus.getRound(0) == 2);
+        deliver(roundChange(servers.get(3), 2), servers.get(3));
+
+        BFTMessage<BlockchainNode> prePrepare = sent(BFTMessage.Type.PRE_PREPARE);
+        assertTrue("The new leader must propose the value of the highest prepared round", prePrepare != null
+            && prePrepare.getRound() == 2 && Arrays.equals(prePrepare.getValueDigest(), digest(other)));
+    }
+
+    @Test
+    public void checkRejectsInvalidCertificates() throws InterruptedException {
+        // Leader of round 1
+        start(servers.get(1));
+        Server forger = servers.get(3);
+        // Short of a quorum, for another round, for another value, and signed by someone else
+        Map<Integer, BFTMessage<BlockchainNode>> forged = fixture.prepares(0, other, 3);
+        forged.put(servers.get(0).getID(), forged.get(servers.get(1).getID()));
+        List<Map<Integer, BFTMessage<BlockchainNode>>> certificates = List.of(fixture.prepares(0, other, 2),
+            fixture.prepares(1, other, 3), fixture.prepares(0, proposed, 3), forged);
+        for (Map<Integer, BFTMessage<BlockchainNode>> certificate : certificates)
+            deliver(preparedRoundChange(forger, 1, 0, other, certificate), forger);
+        assertTrue("ROUND_CHANGEs with invalid certificates must be ignored", fixture.getSent().isEmpty() && consensus.getRound(0) == 0);
+
+        deliver(roundChange(servers.get(0), 1), servers.get(0));
+        deliver(roundChange(servers.get(2), 1), servers.get(2));
+        assertTrue("A quorum must not count invalid ROUND_CHANGEs", sent(BFTMessage.Type.PRE_PREPARE) == null);
+
+        deliver(roundChange(forger, 1), forger);
+        BFTMessage<BlockchainNode> prePrepare = sent(BFTMessage.Type.PRE_PREPARE);
+        assertTrue("Without a valid prepared certificate the leader must propose its own value", prePrepare != null
+            && Arrays.equals(prePrepare.getValueDigest(), digest(new BlockchainNode())));
+    }
+
+    @Test
+    public void checkTimerBackoff() throws InterruptedException {
+        InstanceManager.setParameter("round-timeout", String.valueOf(ROUND_TIMEOUT));
+        try {
+            start(servers.get(0));
+        } finally {
+            InstanceManager.setParameter("round-timeout", String.valueOf(Consensus.DEFAULT_ROUND_TIMEOUT));
+        }
+        consensus.expectInstance(0);
+
+        for (int round = 1; round <= 3; round++) {
+            BFTMessage<BlockchainNode> roundChange = fixture.getSent().poll(20 * ROUND_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue("Every timeout must move to the next round", roundChange != null && roundChange.getRound() == round);
+        }
+        // Timers never fire early, the ROUND_CHANGEs may only be sent late
+        for (int round = 2; round <= 3; round++) {
+            long waited = TimeUnit.NANOSECONDS.toMillis(fixture.roundChangeSent(round) - fixture.roundChangeSent(round - 1));
+            assertTrue("The timer of round " + (round - 1) + " must be doubled (waited " + waited + " ms)",
+                waited >= (ROUND_TIMEOUT << (round - 1)) * 3 / 4);
+        }
+    }
+}
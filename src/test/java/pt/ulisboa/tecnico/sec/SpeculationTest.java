@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockExecutor;
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.instances.Speculation;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.TESAccount;
+import pt.ulisboa.tecnico.sec.tes.TESState;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+
+/**
+ * Unit test for the tentative execution of prepared blocks.
+ */
+public class SpeculationTest {
+    private KeyPair source;
+    private AccountId producer;
+    private TESState previous;
+    private Transaction create;
+    private Transaction transfer;
+
+    @Before
+    public void setup() {
+        source = KeyHandler.generateAccountKeyPair();
+        producer = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+
+        create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+        transfer = new TransferTransaction(create.getSource(), producer, 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+
+        previous = new TESState();
+        previous.addAccount(new TESAccount(producer));
+    }
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    private BlockchainNode block(Transaction... transactions) {
+        BlockchainNode block = new BlockchainNode();
+        for (Transaction t : transactions)
+            block.addTransaction(t, producer);
+        return block;
+    }
+
+    @Test
+    public void checkTentativeState() {
+        BlockchainNode block = block(create, transfer);
+        double producerBalance = previous.getAccount(producer).getTucs();
+
+        Speculation speculation = new Speculation(3, block, previous, new BlockExecutor(1), t -> false);
+        assertTrue("The previous state must be left as it was",
+            previous.getAccount(create.getSource()) == null && previous.getAccount(producer).getTucs() == producerBalance);
+
+        TESState expected = previous.copy();
+        boolean created = create.updateTESState(expected);
+        boolean transferred = transfer.updateTESState(expected);
+        for (Transaction reward : block.getRewards())
+            reward.updateTESState(expected);
+        assertTrue("Results must be the ones of applying the block",
+            speculation.getResult().isSuccessful(0) == created && speculation.getResult().isSuccessful(1) == transferred);
+        assertTrue("The tentative state must be the one of applying the block",
+            speculation.getState().getAccount(create.getSource()).getTucs() == expected.getAccount(create.getSource()).getTucs()
+            && speculation.getState().getAccount(producer).getTucs() == expected.getAccount(producer).getTucs());
+        assertTrue("Only the decided block must keep the execution",
+            speculation.matches(3, block(create, transfer)) && !speculation.matches(4, block) && !speculation.matches(3, block(create)));
+    }
+}
@@ -0,0 +1,543 @@
+package pt.ulisboa.tecnico.sec;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.sec.blockchain.BlockchainNode;
+import pt.ulisboa.tecnico.sec.crypto.AuthenticationHandler;
+import pt.ulisboa.tecnico.sec.crypto.KeyHandler;
+import pt.ulisboa.tecnico.sec.ibft.IBFTValueRegistry;
+import pt.ulisboa.tecnico.sec.instances.BatchPool;
+import pt.ulisboa.tecnico.sec.instances.StrongReadIBFTValue;
+import pt.ulisboa.tecnico.sec.messages.ACKMessage;
+import pt.ulisboa.tecnico.sec.messages.BFTMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchAckMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchCertificateMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchMessage;
+import pt.ulisboa.tecnico.sec.messages.BatchRequestMessage;
+import pt.ulisboa.tecnico.sec.messages.Message;
+import pt.ulisboa.tecnico.sec.messages.PropagateChangesMessage;
+import pt.ulisboa.tecnico.sec.messages.ReadIndexMessage;
+import pt.ulisboa.tecnico.sec.messages.TransactionForwardMessage;
+import pt.ulisboa.tecnico.sec.tes.AccountId;
+import pt.ulisboa.tecnico.sec.tes.SignedTESAccount;
+import pt.ulisboa.tecnico.sec.tes.TESAccount;
+import pt.ulisboa.tecnico.sec.tes.transactions.CreateAccountTransaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.Transaction;
+import pt.ulisboa.tecnico.sec.tes.transactions.TransferTransaction;
+import pt.ulisboa.tecnico.sec.utils.Compression;
+import pt.ulisboa.tecnico.sec.utils.Metrics;
+import pt.ulisboa.tecnico.sec.utils.WireCodec;
+
+/**
+ * Unit test for the ByteBuffer message codec and the cached message encodings.
+ */
+public class WireCodecTest {
+
+    @After
+    public void cleanup() {
+        KeyHandler.cleanKeys();
+    }
+
+    @Test
+    public void checkUTFCompatibility() throws IOException {
+        for (String s : new String[] { "", AuthenticationHandler.UNDEFINED_HASH, "amogus+/=", "ção€" }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DataOutputStream(baos).writeUTF(s);
+
+            byte[] encoded = WireCodec.toByteArray(buffer -> WireCodec.putUTF(buffer, s));
+            assertTrue("Strings must be encoded like DataOutputStream.writeUTF", Arrays.equals(baos.toByteArray(), encoded));
+            assertTrue("Strings must decode back to the original", s.equals(WireCodec.decode(encoded, WireCodec::getUTF)));
+        }
+    }
+
+    @Test
+    public void checkBlockRoundTrip() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+        Transaction transfer = new TransferTransaction(create.getSource(), AccountId.of(producer.getPublic()), 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(create, AccountId.of(producer.getPublic()));
+        node.addTransaction(transfer, AccountId.of(producer.getPublic()));
+
+        BFTMessage<BlockchainNode> message = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 0, node);
+        message.signMessage(producer.getPrivate());
+
+        byte[] bytes = message.toByteArray();
+        Message decoded = Message.fromByteArray(bytes);
+
+        assertTrue("Decoded message must be equal to the original", message.equals(decoded));
+        assertTrue("Decoded message must encode to the same bytes", Arrays.equals(bytes, decoded.toByteArray()));
+        assertTrue("Signature must still verify after decoding", decoded.hasValidSignature(producer.getPublic()));
+    }
+
+    @Test
+    public void checkSingleEncoding() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+        SecretKey secret = new SecretKeySpec(new byte[16], "AES");
+
+        Transaction transfer = new TransferTransaction(AccountId.of(source.getPublic()), AccountId.of(producer.getPublic()), 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(transfer, AccountId.of(producer.getPublic()));
+
+        long messageEncodings = Metrics.get(Metrics.MESSAGE_ENCODINGS);
+        long transactionEncodings = Metrics.get(Metrics.TRANSACTION_ENCODINGS);
+
+        // Sign, MAC it for 3 receivers, send it and check it as the receivers do
+        BFTMessage<BlockchainNode> message = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 0, node);
+        message.signMessage(producer.getPrivate());
+        for (int i = 0; i < 3; i++) {
+            message.setMessageMAC(secret);
+            message.toByteArray();
+        }
+        assertTrue("Signature must verify", message.hasValidSignature(producer.getPublic()));
+        assertTrue("MAC must verify", message.hasValidMAC(secret));
+        message.getDigest();
+
+        assertTrue("The message must be encoded only once",
+            Metrics.get(Metrics.MESSAGE_ENCODINGS) - messageEncodings == 1);
+        assertTrue("Only the unsigned reward must be encoded (the transfer was, when signed)",
+            Metrics.get(Metrics.TRANSACTION_ENCODINGS) - transactionEncodings == 1);
+
+        // Decoded messages reuse the received bytes
+        messageEncodings = Metrics.get(Metrics.MESSAGE_ENCODINGS);
+        Message decoded = Message.fromByteArray(message.toByteArray());
+        assertTrue("Decoded signature must verify", decoded.hasValidSignature(producer.getPublic()));
+        assertTrue("Decoded message must have the same digest", Arrays.equals(message.getDigest(), decoded.getDigest()));
+        assertTrue("Decoded messages must not be encoded again",
+            Metrics.get(Metrics.MESSAGE_ENCODINGS) == messageEncodings);
+    }
+
+    @Test
+    public void checkValueTags() throws IOException {
+        KeyPair client = KeyHandler.generateAccountKeyPair();
+        AccountId clientId = AccountId.of(client.getPublic());
+        AccountId ownerId = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+        StrongReadIBFTValue value = new StrongReadIBFTValue(3, List.of(
+            new StrongReadIBFTValue.Read(clientId, 4, ownerId), new StrongReadIBFTValue.Read(ownerId, 1, clientId)));
+        byte[] bytes = new BFTMessage<>(BFTMessage.Type.COMMIT, 1, 0, value).toByteArray();
+
+        assertTrue("The value must be identified by its one byte tag", bytes[Integer.BYTES] == IBFTValueRegistry.STRONG_READ);
+        BFTMessage<?> decoded = (BFTMessage<?>) Message.fromByteArray(bytes);
+        assertTrue("The tag must decode to the registered value", value.equals(decoded.getValue()));
+
+        bytes[Integer.BYTES] = (byte) 0xFF;
+        boolean rejected = false;
+        try {
+            Message.fromByteArray(bytes);
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue("Unknown value tags must be rejected", rejected);
+    }
+
+    @Test
+    public void checkDigestOnlyMessage() throws IOException {
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+        Transaction create = new CreateAccountTransaction(producer.getPublic());
+        create.authenticateTransaction(0, producer.getPrivate());
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(create, AccountId.of(producer.getPublic()));
+
+        BFTMessage<BlockchainNode> full = new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0, node);
+        BFTMessage<BlockchainNode> digestOnly = new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0,
+            BlockchainNode.class, full.getValueDigest());
+
+        byte[] bytes = digestOnly.toByteArray();
+        assertTrue("Digest-only messages must not carry the value", bytes.length < full.toByteArray().length);
+
+        BFTMessage<?> decoded = (BFTMessage<?>) Message.fromByteArray(bytes);
+        assertTrue("Decoded message must have no value", !decoded.hasValue());
+        assertTrue("Decoded message must keep the value class", decoded.getClazz() == BlockchainNode.class);
+        assertTrue("Decoded digest must match the value digest", Arrays.equals(full.getValueDigest(), decoded.getValueDigest()));
+        assertTrue("Digest-only message must equal the full value message", full.equals(decoded));
+    }
+
+    @Test
+    public void checkTransactionForward() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        Transaction transfer = new TransferTransaction(AccountId.of(source.getPublic()),
+            AccountId.of(KeyHandler.generateAccountKeyPair().getPublic()), 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+
+        Message decoded = Message.fromByteArray(new TransactionForwardMessage(List.of(create, transfer)).toByteArray());
+        assertTrue("Forwards must decode as forwards", decoded instanceof TransactionForwardMessage);
+        assertTrue("Forwarded transactions must decode in order",
+            ((TransactionForwardMessage) decoded).getTransactions().equals(List.of(create, transfer)));
+    }
+
+    // More concurrent encodings than pooled buffers, each nesting the encoding of its read index reports
+    @Test
+    public void checkConcurrentEncoding() throws InterruptedException {
+        AccountId client = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 64; i++) {
+            int nonce = i;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        int committed = j;
+                        byte[] bytes = WireCodec.toByteArray(buffer -> {
+                            new ReadIndexMessage(client, nonce, committed).writeTo(buffer);
+                            new ReadIndexMessage(client, nonce, committed).getDigest();
+                        });
+                        ReadIndexMessage decoded = (ReadIndexMessage) Message.fromByteArray(bytes);
+                        if (decoded.getNonce() != nonce || decoded.getCommitted() != committed) failures.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue("Concurrent encodings must not share a buffer", failures.get() == 0);
+    }
+
+    @Test
+    public void checkReadIndex() throws IOException {
+        AccountId client = AccountId.of(KeyHandler.generateAccountKeyPair().getPublic());
+
+        Message decoded = Message.fromByteArray(new ReadIndexMessage(client, 3, 41).toByteArray());
+        assertTrue("Read index reports must decode as such", decoded instanceof ReadIndexMessage);
+        ReadIndexMessage report = (ReadIndexMessage) decoded;
+        assertTrue("Read index reports must keep their read and index",
+            report.getClient().equals(client) && report.getNonce() == 3 && report.getCommitted() == 41);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void checkCompactProposal() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+        Transaction transfer = new TransferTransaction(create.getSource(), AccountId.of(producer.getPublic()), 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(create, AccountId.of(producer.getPublic()));
+        node.addTransaction(transfer, AccountId.of(producer.getPublic()));
+
+        BFTMessage<BlockchainNode> full = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 0, node);
+        BFTMessage<BlockchainNode> compact = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 0, node);
+        compact.useCompactForm();
+        compact.signMessage(producer.getPrivate());
+
+        byte[] bytes = compact.toByteArray();
+        assertTrue("Compact proposals must be smaller than full ones", bytes.length < full.toByteArray().length);
+
+        BFTMessage<BlockchainNode> decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(bytes);
+        assertTrue("Decoded proposal must be compact", decoded.isCompact() && !decoded.getValue().isComplete());
+        assertTrue("Signature must verify on the compact form", decoded.hasValidSignature(producer.getPublic()));
+
+        Map<Long, Transaction> known = new HashMap<>();
+        known.put(BlockchainNode.shortId(create), create);
+        List<Long> missing = decoded.getValue().complete(known);
+        assertTrue("Unknown transactions must be reported missing",
+            missing.size() == 1 && missing.get(0) == BlockchainNode.shortId(transfer));
+
+        known.put(BlockchainNode.shortId(transfer), transfer);
+        assertTrue("Known transactions must complete the proposal", decoded.getValue().complete(known).isEmpty());
+        assertTrue("Completed proposal must match the sent digest", decoded.hasValidValueDigest());
+        assertTrue("Completed proposal must equal the original value", node.equals(decoded.getValue()));
+        assertTrue("Completed proposal must have the original rewards",
+            Arrays.equals(node.toByteArray(), decoded.getValue().toByteArray()));
+
+        // A short id collision completes to another value
+        known.put(BlockchainNode.shortId(transfer), create);
+        decoded.getValue().complete(known);
+        assertTrue("Wrongly completed proposals must not match the sent digest", !decoded.hasValidValueDigest());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void checkJustifiedRoundChange() throws IOException {
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+        Transaction create = new CreateAccountTransaction(producer.getPublic());
+        create.authenticateTransaction(0, producer.getPrivate());
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(create, AccountId.of(producer.getPublic()));
+
+        // Value prepared in round 0, justified by signed PREPAREs
+        Map<Integer, BFTMessage<BlockchainNode>> prepares = new HashMap<>();
+        for (int sender = 1; sender <= 3; sender++) {
+            BFTMessage<BlockchainNode> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0,
+                BlockchainNode.class, new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0, node).getValueDigest());
+            prepare.signMessage(producer.getPrivate());
+            prepares.put(sender, prepare);
+        }
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 1, 1, node);
+        roundChange.setPreparedRound(0);
+        roundChange.setJustification(prepares);
+        roundChange.signMessage(producer.getPrivate());
+
+        BFTMessage<BlockchainNode> decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(roundChange.toByteArray());
+        assertTrue("Decoded ROUND_CHANGE must keep its prepared round", decoded.getPreparedRound() == 0 && node.equals(decoded.getValue()));
+        assertTrue("Decoded ROUND_CHANGE must keep its justification", decoded.getJustification().keySet().equals(prepares.keySet()));
+        for (BFTMessage<BlockchainNode> prepare : decoded.getJustification().values()) {
+            assertTrue("Justifying messages must still verify", prepare.hasValidSignature(producer.getPublic()));
+            assertTrue("Justifying messages must match the prepared value", Arrays.equals(prepare.getValueDigest(), decoded.getValueDigest()));
+        }
+        assertTrue("Signature must verify over the justification", decoded.hasValidSignature(producer.getPublic()));
+
+        // Processes that prepared nothing send no value
+        BFTMessage<BlockchainNode> empty = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 1, 1, BlockchainNode.class, null);
+        decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(empty.toByteArray());
+        assertTrue("ROUND_CHANGE without prepared value must decode as such",
+            decoded.getPreparedRound() == -1 && !decoded.hasValue() && decoded.getValueDigest() == null);
+    }
+
+    private static boolean rejects(BFTMessage<BlockchainNode> message) throws IOException {
+        byte[] bytes = message.toByteArray();
+        try {
+            Message.fromByteArray(bytes);
+        } catch (IOException e) {
+            return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void checkNestedMessageTypes() throws IOException {
+        BlockchainNode node = new BlockchainNode();
+        byte[] digest = new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0, node).getValueDigest();
+        BFTMessage<BlockchainNode> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, 1, 0, BlockchainNode.class, digest);
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 1, 1, node);
+        roundChange.setPreparedRound(0);
+        roundChange.setJustification(Map.of(1, prepare));
+        BFTMessage<BlockchainNode> prePrepare = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 1, node);
+        prePrepare.setJustification(Map.of(1, roundChange));
+
+        BFTMessage<BlockchainNode> decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(prePrepare.toByteArray());
+        assertTrue("A PRE_PREPARE must keep its ROUND_CHANGEs and their PREPAREs",
+            decoded.getJustification().get(1).getJustification().get(1).getType() == BFTMessage.Type.PREPARE);
+
+        BFTMessage<BlockchainNode> accepted = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 1, 2, node);
+        accepted.setAcceptedPrepare(roundChange);
+        BFTMessage<BlockchainNode> certificate = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, 1, 0, BlockchainNode.class, digest);
+        certificate.setJustification(Map.of(1, roundChange));
+        BFTMessage<BlockchainNode> justified = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 1, 2, node);
+        justified.setJustification(Map.of(1, prePrepare));
+        assertTrue("Only PREPAREs may be nested in ROUND_CHANGEs and certificates",
+            rejects(accepted) && rejects(certificate) && rejects(justified));
+
+        // Unsigned nested PRE_PREPAREs are rejected at the first level, however deep they go
+        BFTMessage<BlockchainNode> nested = prePrepare;
+        for (int depth = 0; depth < 100; depth++) {
+            BFTMessage<BlockchainNode> outer = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 1, BlockchainNode.class, digest);
+            outer.setJustification(Map.of(1, nested));
+            nested = outer;
+        }
+        assertTrue("Only ROUND_CHANGEs may be nested in PRE_PREPAREs", rejects(nested));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void checkFastPathMessages() throws IOException {
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+        BlockchainNode node = new BlockchainNode();
+        byte[] digest = new BFTMessage<>(BFTMessage.Type.PREPARE, 2, 1, node).getValueDigest();
+
+        // Commit certificate: the PREPAREs of all the servers
+        Map<Integer, BFTMessage<BlockchainNode>> prepares = new HashMap<>();
+        for (int sender = 1; sender <= 4; sender++) {
+            BFTMessage<BlockchainNode> prepare = new BFTMessage<>(BFTMessage.Type.PREPARE, 2, 1, BlockchainNode.class, digest);
+            prepare.signMessage(producer.getPrivate());
+            prepares.put(sender, prepare);
+        }
+        BFTMessage<BlockchainNode> certificate = new BFTMessage<>(BFTMessage.Type.FAST_COMMIT, 2, 1, BlockchainNode.class, digest);
+        certificate.setJustification(prepares);
+
+        BFTMessage<BlockchainNode> decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(certificate.toByteArray());
+        assertTrue("Decoded certificate must keep its digest",
+            decoded.getType() == BFTMessage.Type.FAST_COMMIT && Arrays.equals(decoded.getValueDigest(), digest));
+        assertTrue("Decoded certificate must keep all the PREPAREs", decoded.getJustification().keySet().equals(prepares.keySet()));
+        for (BFTMessage<BlockchainNode> prepare : decoded.getJustification().values())
+            assertTrue("Certified PREPAREs must still verify", prepare.hasValidSignature(producer.getPublic()));
+
+        // ROUND_CHANGE of a process that accepted a value without preparing it
+        BFTMessage<BlockchainNode> roundChange = new BFTMessage<>(BFTMessage.Type.ROUND_CHANGE, 2, 2, node);
+        roundChange.setAcceptedPrepare(prepares.get(1));
+        roundChange.signMessage(producer.getPrivate());
+        decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(roundChange.toByteArray());
+        assertTrue("Decoded ROUND_CHANGE must keep the accepted PREPARE", decoded.getPreparedRound() == -1
+            && decoded.getAcceptedPrepare() != null && decoded.getAcceptedPrepare().getRound() == 1
+            && Arrays.equals(decoded.getAcceptedPrepare().getValueDigest(), digest));
+        assertTrue("The accepted PREPARE must still verify", decoded.getAcceptedPrepare().hasValidSignature(producer.getPublic()));
+        assertTrue("Signature must verify over the accepted PREPARE", decoded.hasValidSignature(producer.getPublic()));
+    }
+
+    @Test
+    public void checkBatchProposal() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        KeyPair producer = KeyHandler.generateAccountKeyPair();
+
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+        Transaction transfer = new TransferTransaction(create.getSource(), AccountId.of(producer.getPublic()), 2);
+        transfer.authenticateTransaction(1, source.getPrivate());
+        List<Transaction> first = List.of(create);
+        List<Transaction> second = List.of(transfer);
+
+        BlockchainNode node = new BlockchainNode();
+        node.addTransaction(create, AccountId.of(producer.getPublic()));
+        node.addTransaction(transfer, AccountId.of(producer.getPublic()));
+        node.setBatches(List.of(BatchPool.digest(first), BatchPool.digest(second)));
+
+        BFTMessage<BlockchainNode> proposal = new BFTMessage<>(BFTMessage.Type.PRE_PREPARE, 1, 0, node);
+        proposal.useCompactForm();
+        proposal.signMessage(producer.getPrivate());
+
+        BFTMessage<BlockchainNode> decoded = (BFTMessage<BlockchainNode>) Message.fromByteArray(proposal.toByteArray());
+        assertTrue("Decoded proposal must only have the batch digests", decoded.isCompact() && !decoded.getValue().isComplete()
+            && decoded.getValue().getBatches().size() == 2 && decoded.getValue().getTransactions().isEmpty());
+        assertTrue("Signature must verify on the batch form", decoded.hasValidSignature(producer.getPublic()));
+
+        Map<String, List<Transaction>> known = new HashMap<>();
+        known.put(Base64.getEncoder().encodeToString(BatchPool.digest(first)), first);
+        List<byte[]> missing = decoded.getValue().completeBatches(digest -> known.get(Base64.getEncoder().encodeToString(digest)));
+        assertTrue("Unknown batches must be reported missing",
+            missing.size() == 1 && Arrays.equals(missing.get(0), BatchPool.digest(second)));
+
+        known.put(Base64.getEncoder().encodeToString(BatchPool.digest(second)), second);
+        assertTrue("Known batches must complete the proposal",
+            decoded.getValue().completeBatches(digest -> known.get(Base64.getEncoder().encodeToString(digest))).isEmpty());
+        assertTrue("Completed proposal must match the sent digest", decoded.hasValidValueDigest());
+        assertTrue("Completed proposal must have the original rewards",
+            Arrays.equals(node.toByteArray(), decoded.getValue().toByteArray()));
+    }
+
+    @Test
+    public void checkBatchMessages() throws IOException {
+        KeyPair source = KeyHandler.generateAccountKeyPair();
+        KeyPair server = KeyHandler.generateAccountKeyPair();
+        Transaction create = new CreateAccountTransaction(source.getPublic());
+        create.authenticateTransaction(0, source.getPrivate());
+
+        BatchMessage batch = (BatchMessage) Message.fromByteArray(new BatchMessage(List.of(create)).toByteArray());
+        assertTrue("Decoded batch must keep its transactions", batch.getTransactions().equals(List.of(create)));
+        byte[] digest = BatchPool.digest(batch.getTransactions());
+
+        Map<Integer, BatchAckMessage> acks = new HashMap<>();
+        for (int sender = 1; sender <= 2; sender++) {
+            BatchAckMessage ack = new BatchAckMessage(digest);
+            ack.signMessage(server.getPrivate());
+            acks.put(sender, ack);
+        }
+        BatchCertificateMessage certificate = (BatchCertificateMessage) Message.fromByteArray(
+            new BatchCertificateMessage(digest, acks).toByteArray());
+        assertTrue("Decoded certificate must keep its digest and acks",
+            Arrays.equals(certificate.getBatchDigest(), digest) && certificate.getAcks().keySet().equals(acks.keySet()));
+        for (BatchAckMessage ack : certificate.getAcks().values())
+            assertTrue("Certified acks must still verify", Arrays.equals(ack.getBatchDigest(), digest)
+                && ack.hasValidSignature(server.getPublic()));
+
+        BatchRequestMessage request = (BatchRequestMessage) Message.fromByteArray(new BatchRequestMessage(digest).toByteArray());
+        assertTrue("Decoded request must keep its digest", Arrays.equals(request.getBatchDigest(), digest));
+    }
+
+    @Test
+    public void checkCompression() throws IOException {
+        KeyPair account = KeyHandler.generateAccountKeyPair();
+        PropagateChangesMessage message = new PropagateChangesMessage(1);
+        for (int i = 0; i < 8; i++) {
+            SignedTESAccount state = new SignedTESAccount(new TESAccount(AccountId.of(account.getPublic())));
+            state.authenticateState(AccountId.of(account.getPublic()), account.getPrivate());
+            message.addAccount(state);
+        }
+        byte[] bytes = message.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.MAX_MESSAGE_SIZE);
+        buffer.put(bytes);
+        assertTrue("Large payloads must be compressed", Compression.compress(buffer, 0));
+        assertTrue("Compressed payloads must be smaller", buffer.position() < bytes.length);
+
+        buffer.flip();
+        ByteBuffer decompressed = Compression.decompress(buffer);
+        assertTrue("Decompressed payloads must be the original bytes",
+            Arrays.equals(bytes, Arrays.copyOfRange(decompressed.array(), 0, decompressed.limit())));
+
+        ByteBuffer small = ByteBuffer.allocate(WireCodec.MAX_MESSAGE_SIZE);
+        small.put(new ACKMessage(7).toByteArray());
+        int position = small.position();
+        assertTrue("Small payloads must not be compressed", !Compression.compress(small, 0) && small.position() == position);
+    }
+
+    @Test
+    public void checkConcurrentCompression() throws InterruptedException {
+        byte[] bytes = new byte[4 * Compression.THRESHOLD];
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 4 * 8; i++) {
+            byte fill = (byte) i;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < 20; j++) {
+                        byte[] payload = bytes.clone();
+                        Arrays.fill(payload, j * 100, j * 100 + 100, fill);
+                        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.MAX_MESSAGE_SIZE);
+                        buffer.put(payload);
+                        if (!Compression.compress(buffer, 0)) failures.incrementAndGet();
+                        buffer.flip();
+                        ByteBuffer decompressed = Compression.decompress(buffer);
+                        if (!Arrays.equals(payload, Arrays.copyOfRange(decompressed.array(), 0, decompressed.limit())))
+                            failures.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue("Concurrent compressions must not share a deflater or inflater", failures.get() == 0);
+    }
+
+    @Test
+    public void checkTruncatedMessage() throws IOException {
+        byte[] bytes = new ACKMessage(7).toByteArray();
+
+        boolean rejected = false;
+        try {
+            Message.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue("Truncated messages must be rejected", rejected);
+    }
+}